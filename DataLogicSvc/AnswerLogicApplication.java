@@ -1,12 +1,45 @@
 
+import java.util.Properties;
+
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
+import org.springframework.scheduling.annotation.EnableScheduling;
 
 @SpringBootApplication
+@EnableScheduling
 public class AnswerLogicApplication {
 
     public static void main(String[] args) {
-        SpringApplication.run(AnswerLogicApplication.class, args);
+    	//Idle connections to AnswerSvc are dropped by the client before Tomcat's default 20s keep-alive closes them
+    	//on the server side, so a pooled connection is never reused just as the server hangs up. Can be overridden
+    	//with -Djdk.httpclient.keepalive.timeout=<seconds>; must be set before the first HttpClient is created.
+    	if (System.getProperty("jdk.httpclient.keepalive.timeout") == null) {
+    		System.setProperty("jdk.httpclient.keepalive.timeout", "15");
+    	}
+        SpringApplication application = new SpringApplication(AnswerLogicApplication.class);
+        application.setDefaultProperties(defaultProperties());
+        application.run(args);
+    }
+    
+    /*
+     * Exposes every meter for scraping at /actuator/prometheus, tagged with the application, with histogram buckets
+     * for http.server.requests and the answer.* timers and summaries, so that percentiles can be aggregated across
+     * instances. Log lines carry the trace and span ids of the request (see TraceContext). Any of these can be
+     * overridden like other properties.
+     * 
+     * The answer matrix is streamed as an async request, which Spring MVC would otherwise cut off after the
+     * container's 30s default, truncating it for a large population. It has no time limit, as a stream whose client
+     * has gone fails on its next write.
+     */
+    private static Properties defaultProperties() {
+    	Properties defaults = new Properties();
+    	defaults.setProperty("spring.mvc.async.request-timeout", "-1");
+    	defaults.setProperty("management.endpoints.web.exposure.include", "health,info,metrics,prometheus");
+    	defaults.setProperty("management.metrics.tags.application", "AnswerLogicSvc");
+    	defaults.setProperty("management.metrics.distribution.percentiles-histogram.http.server.requests", "true");
+    	defaults.setProperty("management.metrics.distribution.percentiles-histogram.answer", "true");
+    	defaults.setProperty("logging.pattern.level", "%5p [%X{traceId:-},%X{spanId:-}]");
+    	return defaults;
     }
 
 }
@@ -0,0 +1,194 @@
+package benchmark;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.BenchmarkParams;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.Result;
+import org.openjdk.jmh.results.RunResult;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/*
+ * AnswerLogicBenchmark measures every AnswerLogicService method, and the steps of building the answer index, on
+ * synthetic answers with AnswerSvc stubbed out (see AnswerLogicOperations and SyntheticAnswers).
+ *
+ * Each operation is reported both as throughput and as sampled latencies, with their percentiles, and main() adds
+ * the GC profiler for the allocation rate (gc.alloc.rate.norm is bytes allocated per operation). The data set is set
+ * with the users, questions, answersPerUser and malformedHeightRatio parameters, and single operations can be picked
+ * with -p operation=, as with any JMH benchmark.
+ *
+ * JMH (jmh-core, with jmh-generator-annprocess as annotation processor) must be on the classpath along with
+ * DataLogicSvc's own dependencies. To run as a regression gate:
+ * 		java -cp <classpath> benchmark.AnswerLogicBenchmark <results.json> [<baseline.json> [<maxRegression>]] [<JMH options>]
+ *
+ * Results are written to results.json. Given the results.json of an earlier run as baseline, the run fails with exit
+ * status 1 if any operation's throughput fell, or its mean latency or bytes allocated per operation rose, by more
+ * than maxRegression (0.10 by default) against the same operation and parameters in the baseline. Compare runs on
+ * the same machine only.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = { "-Xms4g", "-Xmx4g" })
+public class AnswerLogicBenchmark {
+
+	private static final String ALLOCATION = "\u00b7gc.alloc.rate.norm";
+
+	@Param({ "getAllUserHashmap", "writeAnswerMatrix", "getHashmapByUserId", "getHashmapByUserIds", "getHashmapByQId",
+			 "youngerThan", "atLeastAge", "ageBetween", "underHeight", "atLeastHeight", "heightBetween",
+			 "underBMI", "atLeastBMI", "bmiBetween", "userSelect", "userSelectMany",
+			 "ansAtLeast", "ansUnder", "ansBetween", "selectUsers", "getVersionTag",
+			 "loadAnswers", "buildIndex", "buildTypedColumns", "convertToInches" })
+	public String operation;
+
+	@Param("100000")
+	public int users;
+
+	@Param("20")
+	public int questions;
+
+	@Param("8")
+	public double answersPerUser;
+
+	@Param("0.05")
+	public double malformedHeightRatio;
+
+	private Supplier<Object> call;
+
+	@Setup
+	@SuppressWarnings("unchecked")
+	public void setUp() throws ReflectiveOperationException {
+		Function<String, Supplier<Object>> operations = (Function<String, Supplier<Object>>) Class.forName("AnswerLogicOperations")
+				.getConstructor(int.class, int.class, double.class, double.class)
+				.newInstance(users, questions, answersPerUser, malformedHeightRatio);
+		call = operations.apply(operation);
+	}
+
+	@Benchmark
+	public Object run() {
+		return call.get();
+	}
+
+	public static void main(String[] args) throws RunnerException, IOException, CommandLineOptionException {
+		//Positional arguments come before the first JMH option
+		int positional = 0;
+		while (positional < args.length && !args[positional].startsWith("-")) {
+			positional++;
+		}
+		if (positional < 1 || positional > 3) {
+			System.err.println("Usage: benchmark.AnswerLogicBenchmark <results.json> [<baseline.json> [<maxRegression>]] [<JMH options>]");
+			System.exit(2);
+		}
+		File results = new File(args[0]);
+		File baseline = positional > 1 ? new File(args[1]) : null;
+		double maxRegression = positional > 2 ? Double.parseDouble(args[2]) : 0.10;
+		String[] jmhArgs = new String[args.length - positional];
+		System.arraycopy(args, positional, jmhArgs, 0, jmhArgs.length);
+
+		//Read first, so that a missing baseline fails before the run rather than after it
+		Map<String, JsonNode> baselineResults = baseline == null ? null : readResults(baseline);
+
+		Collection<RunResult> runResults = new Runner(new OptionsBuilder()
+				.parent(new CommandLineOptions(jmhArgs))
+				.include(AnswerLogicBenchmark.class.getName() + "\\.")
+				.addProfiler(GCProfiler.class)
+				.resultFormat(ResultFormatType.JSON)
+				.result(results.getPath())
+				.build()).run();
+
+		if (baselineResults != null) {
+			List<String> regressions = compare(runResults, baselineResults, maxRegression);
+			String threshold = String.format("%.1f%%", maxRegression * 100);
+			if (!regressions.isEmpty()) {
+				System.err.println("Regressed by more than " + threshold + " against " + baseline + ":");
+				regressions.forEach(regression -> System.err.println("\t" + regression));
+				System.exit(1);
+			}
+			System.out.println("No regression of more than " + threshold + " against " + baseline);
+		}
+	}
+
+	//Results of an earlier run, by key()
+	private static Map<String, JsonNode> readResults(File file) throws IOException {
+		Map<String, JsonNode> results = new HashMap<String, JsonNode>();
+		for (JsonNode result : new ObjectMapper().readTree(file)) {
+			Map<String, String> params = new TreeMap<String, String>();
+			Iterator<Map.Entry<String, JsonNode>> fields = result.path("params").fields();
+			while (fields.hasNext()) {
+				Map.Entry<String, JsonNode> field = fields.next();
+				params.put(field.getKey(), field.getValue().asText());
+			}
+			results.put(key(result.get("benchmark").asText(), result.get("mode").asText(), params), result);
+		}
+		return results;
+	}
+
+	private static List<String> compare(Collection<RunResult> runResults, Map<String, JsonNode> baseline, double maxRegression) {
+		List<String> regressions = new ArrayList<String>();
+		for (RunResult runResult : runResults) {
+			BenchmarkParams params = runResult.getParams();
+			Map<String, String> paramValues = new TreeMap<String, String>();
+			for (String param : params.getParamsKeys()) {
+				paramValues.put(param, params.getParam(param));
+			}
+			String key = key(params.getBenchmark(), params.getMode().shortLabel(), paramValues);
+			JsonNode previous = baseline.get(key);
+			if (previous == null) {
+				continue;		//New since the baseline
+			}
+
+			//Throughput should not fall, latency should not rise
+			Result primary = runResult.getPrimaryResult();
+			double previousScore = previous.path("primaryMetric").path("score").asDouble();
+			boolean higherIsBetter = params.getMode() == Mode.Throughput;
+			if (higherIsBetter ? primary.getScore() < previousScore * (1 - maxRegression)
+							   : primary.getScore() > previousScore * (1 + maxRegression)) {
+				regressions.add(String.format("%s: %.3f %s, was %.3f", key, primary.getScore(), primary.getScoreUnit(), previousScore));
+			}
+
+			Result allocation = runResult.getSecondaryResults().get(ALLOCATION);
+			JsonNode previousAllocation = previous.path("secondaryMetrics").path(ALLOCATION).path("score");
+			if (allocation != null && previousAllocation.isNumber()
+				&& allocation.getScore() > previousAllocation.asDouble() * (1 + maxRegression)) {
+				regressions.add(String.format("%s: %.0f bytes allocated per operation, was %.0f", key, allocation.getScore(), previousAllocation.asDouble()));
+			}
+		}
+		return regressions;
+	}
+
+	private static String key(String benchmark, String mode, Map<String, String> params) {
+		return benchmark + " " + mode + " " + params;
+	}
+}
@@ -0,0 +1,156 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+import org.springframework.beans.factory.support.StaticListableBeanFactory;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+/*
+ * AnswerLogicOperations is the fixture benchmark.AnswerLogicBenchmark measures: an AnswerLogicImpl loaded with
+ * SyntheticAnswers through a StubAnswerSvcClient, and one named operation per AnswerLogicService method, plus the
+ * steps of building its index (loading, the answer index, the typed columns with their BMI join, and
+ * convertToInches on their own).
+ *
+ * JMH only accepts benchmarks in a named package, which cannot refer to the classes of DataLogicSvc, so the
+ * benchmark creates this class by name and looks operations up through java.util.function types, once per trial.
+ *
+ * Operations on one user draw a random user on each call. Questions 4 and 5 are the first choice and numeric
+ * questions of SyntheticAnswers.
+ */
+public class AnswerLogicOperations implements Function<String, Supplier<Object>> {
+
+	private static final String MIN_ANSWER_DATE = "2018-01-01";
+	private static final int USER_LISTS = 64;
+	private static final int USERS_PER_LIST = 100;
+
+	private static final String COHORT =
+			"{\"op\": \"and\", \"args\": ["
+			+ "{\"op\": \"age\", \"min\": 18, \"max\": 65},"
+			+ "{\"op\": \"answer\", \"questionId\": 4, \"answers\": [\"Good\", \"Fair\"]},"
+			+ "{\"op\": \"not\", \"args\": [{\"op\": \"bmi\", \"min\": 30}]}]}";
+
+	private final SyntheticAnswers answers;
+	private final AnswerLogicImpl answerLogic;
+	private final SlicedAnswerLoader loader;
+	private final LongObjectHashMap<LongObjectHashMap<Answer>> grouped;
+	private final AnswerSnapshot snapshot;
+	private final String[] heights;
+	private final List<List<Long>> userLists = new ArrayList<List<Long>>();
+	private final CohortExpression cohort;
+
+	private final LinkedHashMap<String, Supplier<Object>> operations = new LinkedHashMap<String, Supplier<Object>>();
+
+	public AnswerLogicOperations(int users, int questions, double answersPerUser, double malformedHeightRatio) throws IOException {
+		this.answers = new SyntheticAnswers(users, questions, answersPerUser, malformedHeightRatio);
+		StubAnswerSvcClient client = new StubAnswerSvcClient(answers);
+		StaticListableBeanFactory beans = new StaticListableBeanFactory();
+
+		//No staleness bound, no stream and no saved index, so the index is loaded once and never reloaded
+		this.answerLogic = new AnswerLogicImpl(client, beans.getBeanProvider(MeterRegistry.class), Long.MAX_VALUE, Long.MAX_VALUE,
+											   8, 50_000, false, 45_000, 5_000, "", 0);
+		this.loader = new SlicedAnswerLoader(etag -> client.fetchUserIdRange(etag).join(), client::fetchMostRecentAnswers,
+											 8, 50_000, new SimpleMeterRegistry());
+		this.grouped = answers.groupByQuestion();
+		this.snapshot = new AnswerSnapshot(grouped);
+
+		List<String> heightList = new ArrayList<String>();
+		snapshot.getByQuestionId(TypedColumns.HEIGHT_QUESTION_ID).forEach(currAns -> heightList.add(currAns.getAnswer()));
+		this.heights = heightList.toArray(new String[0]);
+
+		Random random = new Random(7);
+		for (int i = 0; i < USER_LISTS; i++) {
+			List<Long> userIds = new ArrayList<Long>(USERS_PER_LIST);
+			for (int j = 0; j < USERS_PER_LIST; j++) {
+				userIds.add(answers.getUserId(random.nextInt(answers.getUserCount())));
+			}
+			userLists.add(userIds);
+		}
+		this.cohort = new ObjectMapper().readValue(COHORT, CohortExpression.class);
+
+		answerLogic.getHashmapByQId(TypedColumns.AGE_QUESTION_ID);		//Loads the index
+		register();
+	}
+
+	private void register() {
+		operations.put("getAllUserHashmap", answerLogic::getAllUserHashmap);
+		operations.put("writeAnswerMatrix", () -> {
+			try {
+				answerLogic.writeAnswerMatrix(OutputStream.nullOutputStream());
+				return null;
+			}
+			catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		});
+		operations.put("getHashmapByUserId", () -> answerLogic.getHashmapByUserId(randomUserId()));
+		operations.put("getHashmapByUserIds", () -> answerLogic.getHashmapByUserIds(randomUserList(), null));
+		operations.put("getHashmapByQId", () -> answerLogic.getHashmapByQId(4L));
+
+		operations.put("youngerThan", () -> answerLogic.youngerThan(40));
+		operations.put("atLeastAge", () -> answerLogic.atLeastAge(40));
+		operations.put("ageBetween", () -> answerLogic.ageBetween(18, 65));
+		operations.put("underHeight", () -> answerLogic.underHeight(66));
+		operations.put("atLeastHeight", () -> answerLogic.atLeastHeight(66));
+		operations.put("heightBetween", () -> answerLogic.heightBetween(60, 72));
+		operations.put("underBMI", () -> answerLogic.underBMI(25));
+		operations.put("atLeastBMI", () -> answerLogic.atLeastBMI(25));
+		operations.put("bmiBetween", () -> answerLogic.bmiBetween(18.5, 25));
+
+		operations.put("userSelect", () -> answerLogic.userSelect(4L, "Good", MIN_ANSWER_DATE));
+		operations.put("userSelectMany", () -> answerLogic.userSelectMany("4~Good~Fair~Excellent", MIN_ANSWER_DATE));
+		operations.put("ansAtLeast", () -> answerLogic.ansAtLeast(5L, 5.0, MIN_ANSWER_DATE));
+		operations.put("ansUnder", () -> answerLogic.ansUnder(5L, 5.0, MIN_ANSWER_DATE));
+		operations.put("ansBetween", () -> answerLogic.ansBetween(5L, 3.0, 7.0, MIN_ANSWER_DATE));
+		operations.put("selectUsers", () -> answerLogic.selectUsers(cohort));
+		operations.put("getVersionTag", () -> answerLogic.getVersionTag("application/json"));
+
+		operations.put("loadAnswers", loader::get);
+		operations.put("buildIndex", () -> new AnswerSnapshot(grouped));
+		operations.put("buildTypedColumns", () -> new TypedColumns(snapshot));
+		operations.put("convertToInches", () -> {
+			long inches = 0;
+			for (String height : heights) {
+				if (TypedColumns.isHeightFormat(height)) {
+					try {
+						inches += TypedColumns.convertToInches(height);
+					}
+					catch (NumberFormatException e) {
+						//Skipped, as TypedColumns does
+					}
+				}
+			}
+			return inches;
+		});
+	}
+
+	/*
+	 * Returns the named operation. Unknown names are rejected with the list of known ones.
+	 */
+	@Override
+	public Supplier<Object> apply(String name) {
+		Supplier<Object> operation = operations.get(name);
+		if (operation == null) {
+			throw new IllegalArgumentException("Unknown operation '" + name + "', expected one of " + operations.keySet());
+		}
+		return operation;
+	}
+
+	private long randomUserId() {
+		return answers.getUserId(ThreadLocalRandom.current().nextInt(answers.getUserCount()));
+	}
+
+	private List<Long> randomUserList() {
+		return userLists.get(ThreadLocalRandom.current().nextInt(USER_LISTS));
+	}
+}
@@ -0,0 +1,141 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.time.LocalDateTime;
+import java.util.Random;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/*
+ * AnswerMatrixExportBenchmark compares the size and time of exporting the whole-population matrix of most recent
+ * answers as the JSON of /answer-logic/map against the application/x-answer-matrix format of AnswerMatrixEncoder,
+ * each with and without gzip at the level /answer-logic/map uses, on a synthetic ANSWER table.
+ *
+ * The synthetic table has up to users * questions rows (1M users x 20 questions by default). Each user answers
+ * each question with a probability of 0.8, and answers are drawn from the question's pool: a handful of choices for
+ * most questions, and numeric values or dates for some.
+ *
+ * The JSON time includes building the map returned by getAllUserHashmap(), as the endpoint does per request. Output
+ * is counted and discarded rather than sent anywhere, and each time is the best of several runs after a warm-up, e.g.
+ * 		java -Xms8g -Xmx8g AnswerMatrixExportBenchmark [users] [questions]
+ */
+public class AnswerMatrixExportBenchmark {
+
+	private static final String[] CHOICES = { "Good", "Fair", "Poor", "Excellent", "Yes", "No" };
+	private static final int RUNS = 5;
+
+	private interface Export {
+		void write(OutputStream out) throws IOException;
+	}
+
+	public static void main(String[] args) throws IOException {
+		int users = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+		int questions = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+
+		AnswerSnapshot snapshot = buildSnapshot(users, questions);
+		long rows = 0;
+		for (long qId : snapshot.getQuestionIds()) {
+			rows += snapshot.getByQuestionId(qId).size();
+		}
+		System.out.printf("Synthetic most recent answers: %,d (%,d users x %d questions)%n", rows, users, questions);
+
+		ObjectMapper mapper = new ObjectMapper().registerModule(new LongCollectionsModule());
+		Export json = out -> mapper.writeValue(out, buildUserHashmap(snapshot));
+		Export matrix = out -> AnswerMatrixEncoder.write(snapshot, out);
+
+		long[] jsonResult = measure(json, false);
+		report("application/json", jsonResult, jsonResult, rows);
+		report("application/json, gzip", measure(json, true), jsonResult, rows);
+		report(AnswerMatrixEncoder.MEDIA_TYPE, measure(matrix, false), jsonResult, rows);
+		report(AnswerMatrixEncoder.MEDIA_TYPE + ", gzip", measure(matrix, true), jsonResult, rows);
+	}
+
+	private static AnswerSnapshot buildSnapshot(int users, int questions) {
+		Random random = new Random(42);
+		LocalDateTime answerDate = LocalDateTime.of(2019, 7, 1, 12, 0);
+		LongObjectHashMap<LongObjectHashMap<Answer>> byQuestion = new LongObjectHashMap<LongObjectHashMap<Answer>>(questions);
+		for (long qId = 1; qId <= questions; qId++) {
+			LongObjectHashMap<Answer> userMap = new LongObjectHashMap<Answer>(users);
+			for (int i = 0; i < users; i++) {
+				if (random.nextInt(10) < 8) {
+					long userId = 100_000L + i * 3L;
+					userMap.put(userId, new Answer(userId, qId, answer(random, qId), answerDate));
+				}
+			}
+			byQuestion.put(qId, userMap);
+		}
+		return new AnswerSnapshot(byQuestion);
+	}
+
+	//Questions 1 and 2 take numbers and question 3 a date, like height, weight and birth date; the rest are choices
+	private static String answer(Random random, long qId) {
+		if (qId == 1) {
+			return Integer.toString(55 + random.nextInt(25));
+		}
+		if (qId == 2) {
+			return Integer.toString(90 + random.nextInt(200));
+		}
+		if (qId == 3) {
+			return LocalDateTime.of(1940, 1, 1, 0, 0).plusDays(random.nextInt(25_000)).toLocalDate().toString();
+		}
+		return CHOICES[random.nextInt(CHOICES.length)];
+	}
+
+	//The map AnswerLogicImpl.getAllUserHashmap() builds from a snapshot
+	private static LongObjectHashMap<LongObjectHashMap<String>> buildUserHashmap(AnswerSnapshot snapshot) {
+		LongObjectHashMap<LongObjectHashMap<String>> hmap = new LongObjectHashMap<LongObjectHashMap<String>>();
+		snapshot.forEachQuestion((qId, userMap) -> userMap.forEach((userId, userAns) -> {
+			LongObjectHashMap<String> userHmap = hmap.get(userId);
+			if (userHmap == null) {
+				userHmap = new LongObjectHashMap<String>();
+				hmap.put(userId, userHmap);
+			}
+			userHmap.put(qId, userAns.getAnswer());
+		}));
+		return hmap;
+	}
+
+	//Returns the bytes written and the best time in milliseconds
+	private static long[] measure(Export export, boolean gzip) throws IOException {
+		long bytes = 0;
+		long bestNanos = Long.MAX_VALUE;
+		for (int run = 0; run <= RUNS; run++) {
+			CountingOutputStream counter = new CountingOutputStream();
+			long start = System.nanoTime();
+			if (gzip) {
+				GZIPOutputStream out = new GZIPOutputStream(counter, 64 * 1024) {{ def.setLevel(Deflater.BEST_SPEED); }};
+				export.write(out);
+				out.finish();
+			}
+			else {
+				export.write(counter);
+			}
+			long nanos = System.nanoTime() - start;
+			if (run > 0) {		//The first run only warms up
+				bestNanos = Math.min(bestNanos, nanos);
+			}
+			bytes = counter.count;
+		}
+		return new long[] { bytes, bestNanos / 1_000_000 };
+	}
+
+	private static void report(String label, long[] result, long[] jsonResult, long rows) {
+		System.out.printf("%-40s %,8d KB  %6.2f bytes/answer  %,6d ms  (%.3fx the size of JSON)%n",
+				label, result[0] >> 10, (double) result[0] / rows, result[1], (double) result[0] / jsonResult[0]);
+	}
+
+	private static final class CountingOutputStream extends OutputStream {
+		long count;
+
+		@Override
+		public void write(int b) {
+			count++;
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) {
+			count += len;
+		}
+	}
+}
@@ -0,0 +1,278 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.springframework.beans.factory.support.StaticListableBeanFactory;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+/*
+ * AnswerSvcClientStress runs AnswerSvcClient from many threads at once against a local stub of AnswerSvc, and checks
+ * its timeouts, retries and CircuitBreaker in four phases:
+ * 		retry		every request fails its first attempt, with a 503 or by outliving the request timeout, and
+ * 					succeeds on the next; every call must deliver all its rows and the breaker stay closed
+ * 		open		every attempt gets a 503; calls must fail, the breaker open, and calls made while it is open be
+ * 					refused without reaching the stub
+ * 		trial		still failing once the open period is over; the single trial call let through must fail and
+ * 					open the breaker again
+ * 		recovery	the stub is healthy again; once the open period is over, a burst of calls must let only one
+ * 					trial request reach the stub until it has closed the breaker, after which every call succeeds
+ *
+ * Each call asks for its own userId range, so that the stub can tell the attempts of one call apart. Run with the
+ * classes of DataLogicSvc and its dependencies on the classpath, built as for the benchmarks:
+ * 		java -cp <classpath> AnswerSvcClientStress [<threads> [<callsPerThread>]]
+ * It prints the outcome of each phase and exits with status 1 if any check failed. 64 threads by default.
+ */
+public class AnswerSvcClientStress {
+
+	private static final int ROWS_PER_CALL = 50;
+	private static final long REQUEST_TIMEOUT_MS = 500;
+	private static final int RETRY_ATTEMPTS = 3;
+	private static final long RETRY_BACKOFF_MS = 20;
+	private static final int FAILURE_THRESHOLD = 5;
+	private static final long OPEN_MS = 1000;
+
+	private enum Mode { FAIL_FIRST_ATTEMPT, DOWN, UP }
+
+	private final int threads;
+	private final int callsPerThread;
+	private final List<String> failures = new ArrayList<String>();
+
+	private final HttpServer server;
+	private final ExecutorService serverThreads = Executors.newCachedThreadPool();
+	private final ConcurrentHashMap<String, AtomicInteger> attempts = new ConcurrentHashMap<String, AtomicInteger>();
+	private final AtomicInteger hits = new AtomicInteger();
+	private final AtomicInteger hitsWhileOpen = new AtomicInteger();
+	private volatile Mode mode = Mode.UP;
+
+	private final MeterRegistry registry = new SimpleMeterRegistry();
+	private final AnswerSvcClient client;
+	private final AtomicLong nextUserId = new AtomicLong();
+
+	AnswerSvcClientStress(int threads, int callsPerThread) throws IOException {
+		this.threads = threads;
+		this.callsPerThread = callsPerThread;
+		this.server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+		server.createContext("/answers", this::handle);
+		server.setExecutor(serverThreads);
+		server.start();
+
+		StaticListableBeanFactory beans = new StaticListableBeanFactory();
+		beans.addBean("meterRegistry", registry);
+		this.client = new AnswerSvcClient(new ObjectMapper(), beans.getBeanProvider(MeterRegistry.class),
+										  "http://localhost:" + server.getAddress().getPort() + "/answers", "stress", "stress",
+										  1000, REQUEST_TIMEOUT_MS, RETRY_ATTEMPTS, RETRY_BACKOFF_MS, FAILURE_THRESHOLD, OPEN_MS);
+	}
+
+	public static void main(String[] args) throws Exception {
+		int threads = args.length > 0 ? Integer.parseInt(args[0]) : 64;
+		int callsPerThread = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+		AnswerSvcClientStress stress = new AnswerSvcClientStress(threads, callsPerThread);
+		try {
+			stress.retry();
+			stress.open();
+			stress.trial();
+			stress.recovery();
+		}
+		finally {
+			stress.server.stop(0);
+			stress.serverThreads.shutdownNow();
+		}
+		if (!stress.failures.isEmpty()) {
+			System.err.println(stress.failures.size() + " check(s) failed:");
+			stress.failures.forEach(failure -> System.err.println("\t" + failure));
+			System.exit(1);
+		}
+		System.out.println("All checks passed");
+	}
+
+	private void retry() throws InterruptedException {
+		mode = Mode.FAIL_FIRST_ATTEMPT;
+		double retriesBefore = retries();
+		Outcome outcome = run(threads, callsPerThread);
+		int calls = threads * callsPerThread;
+		report("retry", outcome);
+		check(outcome.succeeded.get() == calls, "retry: " + outcome.succeeded + " of " + calls + " calls succeeded");
+		check(outcome.rows.get() == (long) calls * ROWS_PER_CALL, "retry: " + outcome.rows + " rows of " + (long) calls * ROWS_PER_CALL);
+		check(retries() - retriesBefore >= calls, "retry: " + (retries() - retriesBefore) + " retries for " + calls + " calls");
+		check(!isBreakerOpen(), "retry: breaker opened although every call succeeded");
+	}
+
+	private void open() throws InterruptedException {
+		mode = Mode.DOWN;
+		Outcome outcome = run(threads, callsPerThread);
+		report("open", outcome);
+		check(outcome.succeeded.get() == 0, "open: " + outcome.succeeded + " calls succeeded against a failing AnswerSvc");
+		check(outcome.refused.get() > 0, "open: no call was refused by the breaker");
+		check(isBreakerOpen(), "open: breaker did not open");
+
+		int hitsBefore = hits.get();
+		Outcome whileOpen = run(threads, 1);
+		check(whileOpen.refused.get() == threads, "open: " + whileOpen.refused + " of " + threads + " calls refused while open");
+		check(hits.get() == hitsBefore, "open: " + (hits.get() - hitsBefore) + " requests reached AnswerSvc while open");
+	}
+
+	private void trial() throws InterruptedException {
+		Thread.sleep(OPEN_MS + 100);
+		int hitsBefore = hits.get();
+		Outcome outcome = run(threads, 1);
+		report("trial", outcome);
+		check(outcome.succeeded.get() == 0, "trial: " + outcome.succeeded + " calls succeeded against a failing AnswerSvc");
+		check(hits.get() - hitsBefore == RETRY_ATTEMPTS, "trial: " + (hits.get() - hitsBefore) + " requests reached AnswerSvc, "
+			  + "expected the " + RETRY_ATTEMPTS + " attempts of one trial call");
+		check(isBreakerOpen(), "trial: breaker did not open again after its trial failed");
+	}
+
+	private void recovery() throws InterruptedException {
+		mode = Mode.UP;
+		Thread.sleep(OPEN_MS + 100);
+		hitsWhileOpen.set(0);
+		Outcome burst = run(threads, 1);
+		report("recovery", burst);
+		check(burst.succeeded.get() >= 1, "recovery: the trial call did not succeed");
+		check(burst.succeeded.get() + burst.refused.get() == threads, "recovery: " + burst.failed + " calls failed other than by refusal");
+		check(hitsWhileOpen.get() == 1, "recovery: " + hitsWhileOpen + " requests reached AnswerSvc while half-open");
+		check(!isBreakerOpen(), "recovery: breaker did not close after a successful trial");
+
+		Outcome after = run(threads, callsPerThread);
+		report("recovered", after);
+		check(after.succeeded.get() == threads * callsPerThread, "recovery: " + after.succeeded + " of " + threads * callsPerThread
+			  + " calls succeeded once closed");
+	}
+
+	//Makes callsPerThread calls from each of threads threads, all starting together
+	private Outcome run(int threads, int callsPerThread) throws InterruptedException {
+		Outcome outcome = new Outcome();
+		CountDownLatch start = new CountDownLatch(1);
+		List<Thread> callers = new ArrayList<Thread>();
+		for (int i = 0; i < threads; i++) {
+			Thread caller = new Thread(() -> {
+				try {
+					start.await();
+				}
+				catch (InterruptedException e) {
+					return;
+				}
+				for (int j = 0; j < callsPerThread; j++) {
+					call(outcome);
+				}
+			});
+			caller.start();
+			callers.add(caller);
+		}
+		start.countDown();
+		for (Thread caller : callers) {
+			caller.join();
+		}
+		return outcome;
+	}
+
+	private void call(Outcome outcome) {
+		long fromUserId = nextUserId.getAndAdd(ROWS_PER_CALL);
+		AtomicInteger rows = new AtomicInteger();
+		try {
+			client.fetchMostRecentAnswers(fromUserId, fromUserId + ROWS_PER_CALL, currAns -> rows.incrementAndGet()).join();
+			outcome.succeeded.incrementAndGet();
+			outcome.rows.addAndGet(rows.get());
+		}
+		catch (CompletionException e) {
+			if (e.getCause() instanceof CircuitBreaker.OpenException) {
+				outcome.refused.incrementAndGet();
+			}
+			else {
+				outcome.failed.incrementAndGet();
+			}
+		}
+	}
+
+	//Serves ROWS_PER_CALL answers, one per userId of the requested range, as newline-delimited JSON
+	private void handle(HttpExchange exchange) throws IOException {
+		hits.incrementAndGet();
+		if (isBreakerOpen()) {
+			hitsWhileOpen.incrementAndGet();		//Only ever the trial request
+		}
+		try {
+			String query = exchange.getRequestURI().getQuery();
+			int attempt = attempts.computeIfAbsent(query, key -> new AtomicInteger()).incrementAndGet();
+			if (mode == Mode.DOWN || (mode == Mode.FAIL_FIRST_ATTEMPT && attempt == 1)) {
+				if (mode == Mode.FAIL_FIRST_ATTEMPT && query.hashCode() % 4 == 0) {
+					Thread.sleep(REQUEST_TIMEOUT_MS * 2);		//Outlives the client's request timeout
+				}
+				exchange.sendResponseHeaders(503, -1);
+				return;
+			}
+			long fromUserId = Long.parseLong(parameter(query, "fromUserId"));
+			StringBuilder body = new StringBuilder();
+			for (int i = 0; i < ROWS_PER_CALL; i++) {
+				body.append("{\"userId\":").append(fromUserId + i).append(",\"questionId\":4,\"answer\":\"Good\"}\n");
+			}
+			byte[] bytes = body.toString().getBytes(StandardCharsets.UTF_8);
+			exchange.getResponseHeaders().set("Content-Type", "application/x-ndjson");
+			exchange.sendResponseHeaders(200, bytes.length);
+			try (OutputStream out = exchange.getResponseBody()) {
+				out.write(bytes);
+			}
+		}
+		catch (InterruptedException | IOException e) {
+			//The client gave up on this attempt
+		}
+		finally {
+			exchange.close();
+		}
+	}
+
+	private static String parameter(String query, String name) {
+		for (String pair : query.split("&")) {
+			if (pair.startsWith(name + "=")) {
+				return pair.substring(name.length() + 1);
+			}
+		}
+		throw new IllegalArgumentException("No " + name + " in " + query);
+	}
+
+	private double retries() {
+		Counter retries = registry.find("answer.client.retries").counter();
+		return retries == null ? 0 : retries.count();
+	}
+
+	private boolean isBreakerOpen() {
+		Gauge open = registry.find("answer.client.circuit.open").gauge();
+		return open != null && open.value() == 1;
+	}
+
+	private void check(boolean passed, String failure) {
+		if (!passed) {
+			failures.add(failure);
+		}
+	}
+
+	private void report(String phase, Outcome outcome) {
+		System.out.printf("%-10s succeeded %6d  refused %6d  failed %6d  requests so far %6d  retries so far %6.0f  breaker %s%n",
+						  phase, outcome.succeeded.get(), outcome.refused.get(), outcome.failed.get(), hits.get(), retries(),
+						  isBreakerOpen() ? "open" : "closed");
+	}
+
+	private static final class Outcome {
+		final AtomicInteger succeeded = new AtomicInteger();
+		final AtomicInteger refused = new AtomicInteger();
+		final AtomicInteger failed = new AtomicInteger();
+		final AtomicLong rows = new AtomicLong();
+	}
+}
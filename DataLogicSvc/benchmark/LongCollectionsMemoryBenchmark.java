@@ -0,0 +1,115 @@
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.function.Supplier;
+
+/*
+ * LongCollectionsMemoryBenchmark compares the retained heap of the boxed collections AnswerLogicImpl used to build
+ * against the primitive LongHashSet and LongObjectHashMap, on a synthetic ANSWER table.
+ *
+ * The synthetic table has users * questions rows (5M by default: 1M users answering 5 questions each). For each
+ * representation the benchmark builds the whole-population userId -> (questionId -> answer) map returned by
+ * /answer-logic/map, and separately a cohort set holding every userId, and reports the heap each retains after a
+ * full GC.
+ *
+ * Run with a fixed heap so GC sizing does not skew the numbers, e.g.
+ * 		java -Xms8g -Xmx8g LongCollectionsMemoryBenchmark [users] [questions]
+ */
+public class LongCollectionsMemoryBenchmark {
+
+	private static final String[] ANSWER_POOL = { "Good", "Fair", "Poor", "Excellent", "5ft 10in", "160", "1980-01-01" };
+
+	private static Object sink;
+
+	public static void main(String[] args) {
+		int users = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+		int questions = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+
+		//Row columns are generated up front so they are part of the baseline and not of either measurement
+		long[] userIds = new long[users];
+		Random random = new Random(42);
+		for (int i = 0; i < users; i++) {
+			userIds[i] = 100_000L + i * 3L + random.nextInt(3);
+		}
+
+		System.out.printf("Synthetic ANSWER rows: %,d (%,d users x %d questions)%n", (long) users * questions, users, questions);
+
+		long boxedMap = measure(() -> buildBoxedMap(userIds, questions));
+		long primitiveMap = measure(() -> buildPrimitiveMap(userIds, questions));
+		long boxedSet = measure(() -> buildBoxedSet(userIds));
+		long primitiveSet = measure(() -> buildPrimitiveSet(userIds));
+
+		report("HashMap<Long, HashMap<Long, String>>", boxedMap, primitiveMap, users);
+		report("LongObjectHashMap<LongObjectHashMap<String>>", primitiveMap, boxedMap, users);
+		report("HashSet<Long>", boxedSet, primitiveSet, users);
+		report("LongHashSet", primitiveSet, boxedSet, users);
+	}
+
+	private static Object buildBoxedMap(long[] userIds, int questions) {
+		HashMap<Long, HashMap<Long, String>> userMap = new HashMap<Long, HashMap<Long, String>>();
+		for (int i = 0; i < userIds.length; i++) {
+			HashMap<Long, String> answers = new HashMap<Long, String>();
+			for (int q = 1; q <= questions; q++) {
+				answers.put((long) q, ANSWER_POOL[(i + q) % ANSWER_POOL.length]);
+			}
+			userMap.put(userIds[i], answers);
+		}
+		return userMap;
+	}
+
+	private static Object buildPrimitiveMap(long[] userIds, int questions) {
+		LongObjectHashMap<LongObjectHashMap<String>> userMap = new LongObjectHashMap<LongObjectHashMap<String>>();
+		for (int i = 0; i < userIds.length; i++) {
+			LongObjectHashMap<String> answers = new LongObjectHashMap<String>();
+			for (int q = 1; q <= questions; q++) {
+				answers.put(q, ANSWER_POOL[(i + q) % ANSWER_POOL.length]);
+			}
+			userMap.put(userIds[i], answers);
+		}
+		return userMap;
+	}
+
+	private static Object buildBoxedSet(long[] userIds) {
+		HashSet<Long> cohort = new HashSet<Long>();
+		for (long userId : userIds) {
+			cohort.add(userId);
+		}
+		return cohort;
+	}
+
+	private static Object buildPrimitiveSet(long[] userIds) {
+		LongHashSet cohort = new LongHashSet();
+		for (long userId : userIds) {
+			cohort.add(userId);
+		}
+		return cohort;
+	}
+
+	//Returns the heap retained by the structure built by the supplier, which is held until after the measurement
+	private static long measure(Supplier<Object> builder) {
+		long baseline = usedHeap();
+		sink = builder.get();
+		long retained = usedHeap() - baseline;
+		sink = null;
+		return retained;
+	}
+
+	private static void report(String label, long bytes, long otherBytes, int users) {
+		System.out.printf("%-48s %,6d MB  %,5d bytes/user  (%.2fx of the other)%n",
+				label, bytes >> 20, bytes / users, (double) bytes / otherBytes);
+	}
+
+	private static long usedHeap() {
+		Runtime runtime = Runtime.getRuntime();
+		for (int i = 0; i < 3; i++) {
+			System.gc();
+			try {
+				Thread.sleep(100);
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+}
@@ -0,0 +1,38 @@
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
+
+import org.springframework.beans.factory.support.StaticListableBeanFactory;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import io.micrometer.core.instrument.MeterRegistry;
+
+/*
+ * StubAnswerSvcClient serves SyntheticAnswers in place of AnswerSvc, so that the benchmarks measure AnswerLogicImpl
+ * and its index without any HTTP. It reports no change feed, so the index is only ever loaded in full.
+ */
+public class StubAnswerSvcClient extends AnswerSvcClient {
+
+	private final SyntheticAnswers answers;
+
+	public StubAnswerSvcClient(SyntheticAnswers answers) {
+		super(new ObjectMapper(), new StaticListableBeanFactory().getBeanProvider(MeterRegistry.class),
+			  "http://localhost:0/answers", "", "", 1000, 1000, 1, 0, 1, 0);
+		this.answers = answers;
+	}
+
+	@Override
+	public CompletableFuture<UserIdRange> fetchUserIdRange(String ifNoneMatch) {
+		return CompletableFuture.completedFuture(new UserIdRange(answers.getUserIdRange(), null, false));
+	}
+
+	@Override
+	public CompletableFuture<Void> fetchMostRecentAnswers(Long fromUserId, Long toUserId, Consumer<Answer> consumer) {
+		return CompletableFuture.runAsync(() -> answers.forEach(fromUserId, toUserId, consumer));
+	}
+
+	@Override
+	public CompletableFuture<Long> fetchChangeWatermark() {
+		return CompletableFuture.completedFuture(null);
+	}
+}
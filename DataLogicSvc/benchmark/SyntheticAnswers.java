@@ -0,0 +1,139 @@
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.function.Consumer;
+
+/*
+ * SyntheticAnswers generates a reproducible table of most recent answers for the benchmarks, shaped like the ANSWER
+ * table AnswerLogicImpl serves:
+ *
+ * 		question 1		birth dates, between 1930 and 2005
+ * 		question 2		heights in "[n]ft [m]in" format, of which a malformedHeightRatio share is formatted in one of
+ * 						the ways convertToInches cannot parse, like the test db entries isHeightFormat skips
+ * 		question 3		weights in pounds
+ * 		questions 4..	alternately a choice among a few answers and a numeric value from 0 to 10
+ *
+ * Each user answers each question with a probability of answersPerUser / questions, so the number of answers per
+ * user follows a binomial distribution around answersPerUser. Answer dates are spread over 2017 to 2019, so that
+ * minAnswerDate filters keep part of each posting.
+ *
+ * Answers are held in ascending userId order, so that a userId range can be served as a slice would be by AnswerSvc.
+ */
+public class SyntheticAnswers {
+
+	static final long FIRST_USER_ID = 100_000L;
+
+	private static final String[] CHOICES = { "Good", "Fair", "Poor", "Excellent", "Yes", "No" };
+	private static final String[] MALFORMED_HEIGHTS = { "5.9", "5ft 10.5in", "178cm", "5ft ten in", "" };
+	private static final LocalDateTime FIRST_ANSWER_DATE = LocalDateTime.of(2017, 1, 1, 0, 0);
+	private static final int ANSWER_DATE_SECONDS = 3 * 365 * 24 * 3600;
+
+	private final List<Answer> answers = new ArrayList<Answer>();
+	private final long[] userIds;
+	private final int questions;
+
+	public SyntheticAnswers(int users, int questions, double answersPerUser, double malformedHeightRatio) {
+		if (questions < 3) {
+			throw new IllegalArgumentException("questions must include the birth date, height and weight questions 1 to 3");
+		}
+		this.questions = questions;
+		this.userIds = new long[users];
+
+		Random random = new Random(42);
+		double answerProbability = Math.min(1.0, answersPerUser / questions);
+		for (int i = 0; i < users; i++) {
+			long userId = FIRST_USER_ID + i * 3L + random.nextInt(3);
+			userIds[i] = userId;
+			for (long qId = 1; qId <= questions; qId++) {
+				if (random.nextDouble() < answerProbability) {
+					LocalDateTime answerDate = FIRST_ANSWER_DATE.plusSeconds(random.nextInt(ANSWER_DATE_SECONDS));
+					answers.add(new Answer(userId, qId, answer(random, qId, malformedHeightRatio), answerDate));
+				}
+			}
+		}
+	}
+
+	private static String answer(Random random, long qId, double malformedHeightRatio) {
+		if (qId == TypedColumns.AGE_QUESTION_ID) {
+			return LocalDate.of(1930, 1, 1).plusDays(random.nextInt(75 * 365)).toString();
+		}
+		if (qId == TypedColumns.HEIGHT_QUESTION_ID) {
+			if (random.nextDouble() < malformedHeightRatio) {
+				return MALFORMED_HEIGHTS[random.nextInt(MALFORMED_HEIGHTS.length)];
+			}
+			return (4 + random.nextInt(3)) + "ft " + random.nextInt(12) + "in";
+		}
+		if (qId == TypedColumns.WEIGHT_QUESTION_ID) {
+			return Integer.toString(90 + random.nextInt(210));
+		}
+		return qId % 2 == 0 ? CHOICES[random.nextInt(CHOICES.length)] : Integer.toString(random.nextInt(11));
+	}
+
+	/*
+	 * Hands each answer of users in [fromUserId, toUserId), or of all users if both are null, to the consumer.
+	 */
+	public void forEach(Long fromUserId, Long toUserId, Consumer<Answer> consumer) {
+		int from = fromUserId == null ? 0 : firstIndexOf(fromUserId);
+		int to = toUserId == null ? answers.size() : firstIndexOf(toUserId);
+		for (int i = from; i < to; i++) {
+			consumer.accept(answers.get(i));
+		}
+	}
+
+	//Index of the first answer of a user with a userId of at least userId
+	private int firstIndexOf(long userId) {
+		int low = 0;
+		int high = answers.size();
+		while (low < high) {
+			int mid = (low + high) >>> 1;
+			if (answers.get(mid).getUserId() < userId) {
+				low = mid + 1;
+			}
+			else {
+				high = mid;
+			}
+		}
+		return low;
+	}
+
+	/*
+	 * Returns the answers grouped by questionId and userId, as SlicedAnswerLoader returns them.
+	 */
+	public LongObjectHashMap<LongObjectHashMap<Answer>> groupByQuestion() {
+		LongObjectHashMap<LongObjectHashMap<Answer>> byQuestion = new LongObjectHashMap<LongObjectHashMap<Answer>>(questions);
+		for (Answer currAns : answers) {
+			LongObjectHashMap<Answer> userMap = byQuestion.get(currAns.getQuestionId());
+			if (userMap == null) {
+				userMap = new LongObjectHashMap<Answer>(userIds.length);
+				byQuestion.put(currAns.getQuestionId(), userMap);
+			}
+			userMap.put(currAns.getUserId(), currAns);
+		}
+		return byQuestion;
+	}
+
+	/*
+	 * Returns {smallest userId, largest userId + 1}, as /answers/userIdRange does.
+	 */
+	public long[] getUserIdRange() {
+		return new long[] { userIds[0], userIds[userIds.length - 1] + 1 };
+	}
+
+	public long getUserId(int i) {
+		return userIds[i];
+	}
+
+	public int getUserCount() {
+		return userIds.length;
+	}
+
+	public int getQuestionCount() {
+		return questions;
+	}
+
+	public int getAnswerCount() {
+		return answers.size();
+	}
+}
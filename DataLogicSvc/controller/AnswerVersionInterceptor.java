@@ -0,0 +1,63 @@
+import java.util.Set;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.MediaType;
+import org.springframework.stereotype.Component;
+import org.springframework.web.context.request.ServletWebRequest;
+import org.springframework.web.servlet.HandlerMapping;
+import org.springframework.web.servlet.config.annotation.InterceptorRegistry;
+import org.springframework.web.servlet.config.annotation.WebMvcConfigurer;
+import org.springframework.web.servlet.handler.HandlerInterceptorAdapter;
+
+/*
+ * AnswerVersionInterceptor makes the GET endpoints of Api conditional. Every response carries an ETag for the version
+ * of the answer index it was computed from (see AnswerLogicService.getVersionTag()), and a request whose
+ * If-None-Match still matches is answered 304 Not Modified without running the query.
+ *
+ * The tag also covers the representation: the media type the matched handler produces and, for the matrix, whether
+ * it is gzipped. A client or cache holding the JSON of /answer-logic/map therefore never gets a 304 for the matrix,
+ * or the other way around. Every response of that URL, 304s included, carries Vary: Accept, Accept-Encoding so that
+ * shared caches keep the representations apart too.
+ *
+ * The tag is read before the handler runs, so a reload landing during the request only makes the next request
+ * compute the result again.
+ */
+@Component
+public class AnswerVersionInterceptor extends HandlerInterceptorAdapter implements WebMvcConfigurer {
+
+	//The one URL Api serves in more than one representation
+	private static final String NEGOTIATED_PATTERN = "/answer-logic/map";
+
+	@Autowired
+	private AnswerLogicService answerLogicSvc;
+
+	@Override
+	public void addInterceptors(InterceptorRegistry registry) {
+		registry.addInterceptor(this).addPathPatterns("/answer-logic/**");
+	}
+
+	@Override
+	public boolean preHandle(HttpServletRequest request, HttpServletResponse response, Object handler) {
+		if (NEGOTIATED_PATTERN.equals(request.getAttribute(HandlerMapping.BEST_MATCHING_PATTERN_ATTRIBUTE))) {
+			response.setHeader("Vary", "Accept, Accept-Encoding");
+		}
+		if (!"GET".equals(request.getMethod()) && !"HEAD".equals(request.getMethod())) {
+			return true;
+		}
+		return !new ServletWebRequest(request, response).checkNotModified(answerLogicSvc.getVersionTag(representation(request)));
+	}
+
+	//The handler mapping records what the matched handler produces; handlers without produces write JSON
+	@SuppressWarnings("unchecked")
+	private static String representation(HttpServletRequest request) {
+		Set<MediaType> produces = (Set<MediaType>) request.getAttribute(HandlerMapping.PRODUCIBLE_MEDIA_TYPES_ATTRIBUTE);
+		String mediaType = produces == null || produces.isEmpty() ? MediaType.APPLICATION_JSON_VALUE : produces.iterator().next().toString();
+		if (AnswerMatrixEncoder.MEDIA_TYPE.equals(mediaType) && Api.acceptsGzip(request.getHeader("Accept-Encoding"))) {
+			return mediaType + ";gzip";
+		}
+		return mediaType;
+	}
+}
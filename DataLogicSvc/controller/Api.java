@@ -5,18 +5,25 @@
  * NOTE: As of 7/25/19 the pom.xml file is set only for local database access.
  * 
  * @param /answer-logic/map								returns hashmap of questionId:answer pairs for userId
+ * 															(Accept: application/x-answer-matrix for a columnar matrix of the same answers)
  * @param /answer-logic/map/users/{userid}				returns hashmap of userId:hashmap pairs for ANSWER table,
  * 											 				where value hashmap is of questionId:answer pairs for userId
  * 
+ * @param /answer-logic/map/users						(POST) returns hashmap of userId:hashmap pairs for a list of userIds,
+ * 															optionally restricted to a list of questionIds
+ * 
  * @param /answer-logic/map/questions/{questionid} 		returns hashmap of answer:list pairs for a questionId
  * 															where the list comprises of row entries with the given answer
  * 
  * @param /answer-logic/users/age/max/{years}			returns set of userIds corresponding to ages less than years
  * @param /answer-logic/users/age/min/{years}			returns set of userIds corresponding to ages at least years
+ * @param /answer-logic/users/age/between/{min}/{max}	returns set of userIds corresponding to ages at least min and less than max
  * @param /answer-logic/users/height/max/{inches}		returns set of userIds corresponding to height under inches
  * @param /answer-logic/users/height/min/{inches}		returns set of userIds corresponding to height at least inches
+ * @param /answer-logic/users/height/between/{min}/{max}	returns set of userIds corresponding to height at least min and under max
  * @param /answer-logic/users/bmi/max/{bmi}				returns set of userIds corresponding to bmi less than input
  * @param /answer-logic/users/bmi/min/{bmi}				returns set of userIds corresponding to bmi at least input
+ * @param /answer-logic/users/bmi/between/{min}/{max}	returns set of userIds corresponding to bmi at least min and less than max
  * 
  * @param /answer-logic/users/questions/{questionid}/answers/{answer}?minAnswerDate={minAnswerDate}
  * 		returns set of userIds corresponding to question and answer, ignoring answers older than minAnswerDate
@@ -27,32 +34,48 @@
  * 		returns set of userIds with answers at least a value for question, ignoring answers older than minAnswerDate
  * @param /answer-logic/users/questions/{questionid}/max/{maxval}?minAnswerDate={minAnswerDate}
  * 		returns set of userIds with answers less than than a value for question, ignoring answers older than minAnswerDate
+ * @param /answer-logic/users/questions/{questionid}/between/{minval}/{maxval}?minAnswerDate={minAnswerDate}
+ * 		returns set of userIds with answers at least minval and less than maxval for question, ignoring answers older than minAnswerDate
+ * 
+ * @param /answer-logic/users/select		(POST) returns set of userIds matching a boolean expression of the conditions above
  * 
  * The functions beginning with /users/ is intended to efficiently identify users for selection modules. These functions 
  * return Set objects of users, for which native intersection and union operations can be applied in other modules to easily identify 
- * userIds meeting multiple conditions.
+ * userIds meeting multiple conditions. To avoid one request per condition, /users/select combines any number of them
+ * with and/or/not in a single request.
  * 
  * Note that ALL functions EXCEPT /answer, /answer/user, and /answer/question use only the
  * most recent answers in the case of multiple answers to the same questionId. For example, if a user
  * provides answer "Fair" to question 18 and later provides answer "Good", both answers appear in /answer
  * but only "Good" appears on functions like users/q-and-a/.
  * 
+ * Most recent answers are served from an in-memory index of the ANSWER table rather than fetched from AnswerSvc
+ * per request. Results may therefore lag the database by up to answer_index_max_staleness_ms (default 60 seconds).
+ * 
+ * GET responses carry an ETag for the version of that index, and a request sending it back in If-None-Match gets an
+ * empty 304 Not Modified while the index is unchanged (see AnswerVersionInterceptor).
+ * 
+ * The time each query spends on the index, the calls to AnswerSvc and the index reloads are timed per phase (see
+ * AnswerLogicImpl, AnswerSvcClient and LatestAnswerIndex), and all metrics can be scraped from /actuator/prometheus.
+ * A traceparent header sent by the caller is continued and passed on to AnswerSvc (see TraceContext).
+ * 
  * @author David Fu
  */
 import java.time.LocalDate;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.List;
 import java.util.NoSuchElementException;
-import java.util.Set;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
 
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.data.util.Pair;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 
 @RestController
 public class Api {
@@ -61,42 +84,98 @@ public class Api {
     private AnswerLogicService answerLogicSvc;
     
 	/**
-	 * Returns a HashMap of HashMaps for all answers for all users from the ANSWER table.
+	 * Returns a map of maps for all answers for all users from the ANSWER table.
 	 * 
-	 * The keys of the returned outer HashMap draw from the userId field from the ANSWER table, a Long variable. The
-	 * value corresponding to each userId key is a HashMap<Long, String> mapping all questionId and answers of that
+	 * The keys of the returned outer map draw from the userId field from the ANSWER table, a long variable. The
+	 * value corresponding to each userId key is a LongObjectHashMap<String> mapping all questionId and answers of that
 	 * user.
 	 * 
-	 * The keys of the inner HashMap draw from the questionId field from the ANSWER table, a Long variable. The
+	 * The keys of the inner map draw from the questionId field from the ANSWER table, a Long variable. The
 	 * value corresponding to each questionId key is the String answer for that questionId for the given userId.
 	 * 
 	 * Uses most recent answers only.
 	 * 
-	 * @return JSON HashMap<Long, HashMap> mapping userId to a HashMap of questionId::answer for that user.
+	 * @return JSON object mapping userId to an object of questionId::answer for that user.
 	 */
     
     @GetMapping(path = "/answer-logic/map", produces = "application/json")
-    public HashMap<Long, HashMap> getAll() {
+    public LongObjectHashMap<LongObjectHashMap<String>> getAll() {
         return answerLogicSvc.getAllUserHashmap();
     }
     
 	/**
-	 * Returns a HashMap for a given user, mapping questionId to their answers for the ANSWER table.
+	 * Returns the same answers as getAll() as a user x question matrix in the application/x-answer-matrix format,
+	 * selected with an Accept: application/x-answer-matrix header. See AnswerMatrixEncoder for the layout.
+	 * 
+	 * Each question's answers are dictionary-coded and users without an answer take a single bit, so the response is
+	 * a fraction of the size of the JSON and is streamed without building any per-user map. It is gzip-compressed
+	 * when the request's Accept-Encoding allows it.
+	 * 
+	 * Uses most recent answers only.
+	 * 
+	 * @return the matrix of most recent answers, one row per userId and one column per questionId
+	 */
+    
+    @GetMapping(path = "/answer-logic/map", produces = AnswerMatrixEncoder.MEDIA_TYPE)
+    public ResponseEntity<StreamingResponseBody> getAllMatrix(
+    		@RequestHeader(value = "Accept-Encoding", defaultValue = "") String acceptEncoding) {
+    	//Vary is set by AnswerVersionInterceptor, on the JSON of this URL as well
+    	ResponseEntity.BodyBuilder response = ResponseEntity.ok();
+    	if (!acceptsGzip(acceptEncoding)) {
+    		return response.body(out -> answerLogicSvc.writeAnswerMatrix(out));
+    	}
+    	return response.header("Content-Encoding", "gzip").body(out -> {
+    		//The fastest level, as on the long runs of repeated codes it also compresses best
+    		GZIPOutputStream gzip = new GZIPOutputStream(out, 64 * 1024) {{ def.setLevel(Deflater.BEST_SPEED); }};
+    		answerLogicSvc.writeAnswerMatrix(gzip);
+    		gzip.finish();
+    	});
+    }
+    
+    //Whether getAllMatrix() gzips its response, which AnswerVersionInterceptor also needs to know for the ETag
+    static boolean acceptsGzip(String acceptEncoding) {
+    	return acceptEncoding != null && acceptEncoding.contains("gzip");
+    }
+    
+	/**
+	 * Returns a map for a given user, mapping questionId to their answers for the ANSWER table.
 	 * 
-	 * The keys of the returned HashMap draw from the questionId field from the ANSWER table, a Long variable. The
+	 * The keys of the returned map draw from the questionId field from the ANSWER table, a Long variable. The
 	 * value corresponding to each questionId key is the String answer for that questionId for the given userId.
 	 * 
 	 * Uses most recent answers only.
 	 * 
 	 * @param userId - an entry from the userId field from the ANSWER table
-	 * @return JSON HashMap<Long, String> mapping questionId to answer.
+	 * @return JSON object mapping questionId to answer.
 	 */
     
     @GetMapping(path = "/answer-logic/map/users/{userid}", produces = "application/json")
-    public HashMap<Long, String> getHashmapByUserId(@PathVariable("userid") Long userId){
+    public LongObjectHashMap<String> getHashmapByUserId(@PathVariable("userid") Long userId){
     	return answerLogicSvc.getHashmapByUserId(userId);
     }
     
+	/**
+	 * Returns maps of questionId to answer for many users at once, so that a client needing the answers of many
+	 * users makes one request rather than one per user to /answer-logic/map/users/{userid}.
+	 * 
+	 * The request body lists the userIds, at most UserAnswersRequest.MAX_USERS of them, and optionally the
+	 * questionIds to restrict the answers to, for example:
+	 * 
+	 * {"userIds": [1, 2, 3], "questionIds": [18, 20]}
+	 * 
+	 * Users without any matching answer are left out.
+	 * Uses most recent answers only.
+	 * 
+	 * @param request - the userIds and optional questionIds
+	 * @return JSON object mapping userId to an object of questionId:answer for that user
+	 */
+    
+    @PostMapping(path = "/answer-logic/map/users", consumes = "application/json", produces = "application/json")
+    public LongObjectHashMap<LongObjectHashMap<String>> getHashmapByUserIds(@RequestBody UserAnswersRequest request) {
+    	request.validate();
+    	return answerLogicSvc.getHashmapByUserIds(request.getUserIds(), request.getQuestionIds());
+    }
+    
 	/**
 	 * Returns a HashMap mapping answer strings for a given question to row entries from the ANSWER table.
 	 * 
@@ -123,11 +202,11 @@ public class Api {
 	 * Uses most recent answers only.
 	 * 
 	 * @param years - the age in years users must be younger than
-	 * @return JSON Set<Long> of userId entries corresponding to ages under the given age
+	 * @return JSON array of userId entries corresponding to ages under the given age
 	 */
     
     @GetMapping(path = "/answer-logic/users/age/max/{years}", produces = "application/json")
-    public Set<Long> youngerThan(@PathVariable("years") int years) {
+    public LongHashSet youngerThan(@PathVariable("years") int years) {
     	return answerLogicSvc.youngerThan(years);
     }
     
@@ -138,14 +217,30 @@ public class Api {
 	 * Uses most recent answers only.
 	 * 
 	 * @param years - the age in years users must be equal to or older than
-	 * @return JSON Set<Long> of userId entries corresponding to ages under the given age
+	 * @return JSON array of userId entries corresponding to ages under the given age
 	 */
     
     @GetMapping(path = "/answer-logic/users/age/min/{years}", produces = "application/json")
-    public Set<Long> atLeastAge(@PathVariable("years") int years) {
+    public LongHashSet atLeastAge(@PathVariable("years") int years) {
     	return answerLogicSvc.atLeastAge(years);
     }
     
+	/**
+	 * Returns users at least minYears old and STRICTLY younger than maxYears from the ANSWER table.
+	 * 
+	 * Equivalent to intersecting /age/min/{minYears} with /age/max/{maxYears}, in one request.
+	 * Uses most recent answers only.
+	 * 
+	 * @param minYears - the age in years users must be equal to or older than
+	 * @param maxYears - the age in years users must be younger than
+	 * @return JSON array of userId entries corresponding to ages in the given range
+	 */
+    
+    @GetMapping(path = "/answer-logic/users/age/between/{minYears}/{maxYears}", produces = "application/json")
+    public LongHashSet ageBetween(@PathVariable("minYears") int minYears, @PathVariable("maxYears") int maxYears) {
+    	return answerLogicSvc.ageBetween(minYears, maxYears);
+    }
+    
 	/**
 	 * Returns users STRICTLY less than a given height in inches from the ANSWER table.
 	 * 
@@ -153,11 +248,11 @@ public class Api {
 	 * input is 72, users of 71 inches would be included but users of 72 would not. 
 	 * 
 	 * @param inches - the height in inches that users must be shorter than
-	 * @return JSON Set<Long> of userId entries corresponding to heights under the given height
+	 * @return JSON array of userId entries corresponding to heights under the given height
 	 */
     
     @GetMapping(path = "/answer-logic/users/height/max/{inches}", produces = "application/json")
-    public Set<Long> underHeight(@PathVariable("inches") int inches) {
+    public LongHashSet underHeight(@PathVariable("inches") int inches) {
     	return answerLogicSvc.underHeight(inches);
     }
     
@@ -168,14 +263,29 @@ public class Api {
 	 * Uses most recent answers only.
 	 * 
 	 * @param inches - the height in inches that users must be shorter than
-	 * @return JSON Set<Long> of userId entries corresponding to heights under the given height
+	 * @return JSON array of userId entries corresponding to heights under the given height
 	 */
     
     @GetMapping(path = "/answer-logic/users/height/min/{inches}", produces = "application/json")
-    public Set<Long> atLeastHeight(@PathVariable("inches") int inches) {
+    public LongHashSet atLeastHeight(@PathVariable("inches") int inches) {
     	return answerLogicSvc.atLeastHeight(inches);
     }
     
+	/**
+	 * Returns users at least minInches and STRICTLY less than maxInches tall from the ANSWER table.
+	 * 
+	 * Equivalent to intersecting /height/min/{minInches} with /height/max/{maxInches}, in one request.
+	 * Uses most recent answers only.
+	 * 
+	 * @param minInches - the height in inches that users must be equal to or over
+	 * @param maxInches - the height in inches that users must be shorter than
+	 * @return JSON array of userId entries corresponding to heights in the given range
+	 */
+    
+    @GetMapping(path = "/answer-logic/users/height/between/{minInches}/{maxInches}", produces = "application/json")
+    public LongHashSet heightBetween(@PathVariable("minInches") int minInches, @PathVariable("maxInches") int maxInches) {
+    	return answerLogicSvc.heightBetween(minInches, maxInches);
+    }
 
 	/**
 	 * Returns users STRICTLY less than an input BMI given their weight and height from the ANSWER table.
@@ -186,11 +296,11 @@ public class Api {
 	 * Uses most recent answers only.
 	 * 
 	 * @param bmi - the BMI that users must be less than
-	 * @return JSON Set<Long> of userId entries corresponding to BMIs under the given input
+	 * @return JSON array of userId entries corresponding to BMIs under the given input
 	 */
     
     @GetMapping(path = "/answer-logic/users/bmi/max/{bmi}", produces = "application/json")
-    public Set<Long> underBMI(@PathVariable("bmi") double bmi) {
+    public LongHashSet underBMI(@PathVariable("bmi") double bmi) {
     	return answerLogicSvc.underBMI(bmi);
     }
     
@@ -202,14 +312,31 @@ public class Api {
 	 * Uses most recent answers only.
 	 * 
 	 * @param bmi - the BMI that users must be more than
-	 * @return JSON Set<Long> of userId entries corresponding to BMIs equal to or over the given input
+	 * @return JSON array of userId entries corresponding to BMIs equal to or over the given input
 	 */
     
     @GetMapping(path = "/answer-logic/users/bmi/min/{bmi}", produces = "application/json")
-    public Set<Long> atLeastBMI(@PathVariable("bmi") double bmi) {
+    public LongHashSet atLeastBMI(@PathVariable("bmi") double bmi) {
     	return answerLogicSvc.atLeastBMI(bmi);
     }
     
+	/**
+	 * Returns users at least minBmi and STRICTLY less than maxBmi given their weight and height from the ANSWER table.
+	 * 
+	 * Equivalent to intersecting /bmi/min/{minBmi} with /bmi/max/{maxBmi}, in one request. The BMI formula used is
+	 * 703 * weight / height / height.
+	 * Uses most recent answers only.
+	 * 
+	 * @param minBmi - the BMI that users must be equal to or more than
+	 * @param maxBmi - the BMI that users must be less than
+	 * @return JSON array of userId entries corresponding to BMIs in the given range
+	 */
+    
+    @GetMapping(path = "/answer-logic/users/bmi/between/{minBmi}/{maxBmi}", produces = "application/json")
+    public LongHashSet bmiBetween(@PathVariable("minBmi") double minBmi, @PathVariable("maxBmi") double maxBmi) {
+    	return answerLogicSvc.bmiBetween(minBmi, maxBmi);
+    }
+    
     
 	/**
 	 * Returns users giving specified case-sensitive answer to specified question.
@@ -221,11 +348,11 @@ public class Api {
 	 * @param questionId 	- an entry from the questionId column of the Answer table
 	 * @param answer     	- an entry from the answer column of the Answer table
 	 * @param minAnswerDate - a YY-MM-DD date for which older answers will be ignored
-	 * @return JSON Set<Long> of userId entries corresponding to the input question-answer combination
+	 * @return JSON array of userId entries corresponding to the input question-answer combination
 	 */
     
     @GetMapping(path = "/answer-logic/users/questions/{questionid}/answers/{answer}", produces = "application/json")
-    public Set<Long> userSelect(@PathVariable("questionid") Long qId, 
+    public LongHashSet userSelect(@PathVariable("questionid") Long qId, 
     							@PathVariable("answer") String answer,
     							@RequestParam(value = "minAnswerDate", defaultValue = "2000-01-01") String minAnswerDate) {
     	return answerLogicSvc.userSelect(qId, answer, minAnswerDate);
@@ -246,11 +373,11 @@ public class Api {
 	 * 
 	 * @param Q_answer - questionId:answers combination formatted as "[questionId]~[answer]...~[answer]"
 	 * @param minAnswerDate - a YY-MM-DD date for which older answers will be ignored
-	 * @return JSON Set<Long> of userId entries corresponding to the input question-answers combination
+	 * @return JSON array of userId entries corresponding to the input question-answers combination
 	 */
     
     @GetMapping(path = "/answer-logic/users/questions/any/{questionid_answers}", produces = "application/json")
-    public Set<Long> userSelectMany(@PathVariable("questionid_answers") String questionId_answers, 
+    public LongHashSet userSelectMany(@PathVariable("questionid_answers") String questionId_answers, 
     								@RequestParam(value = "minAnswerDate", defaultValue = "2000-01-01") String minAnswerDate) {
     	return answerLogicSvc.userSelectMany(questionId_answers, minAnswerDate);
     }
@@ -265,11 +392,11 @@ public class Api {
 	 * 
 	 * @param Q_answer - questionId:value combination formatted as "[questionId]~value"
 	 * @param minAnswerDate - a YY-MM-DD date for which older answers will be ignored
-	 * @return JSON Set<Long> of userId entries corresponding to values at least the input value for the question
+	 * @return JSON array of userId entries corresponding to values at least the input value for the question
 	 */
     
     @GetMapping(path = "/answer-logic/users/questions/{questionid}/min/{minval}", produces = "application/json")
-    public Set<Long> ansAtLeast(@PathVariable("questionid") Long qId, @PathVariable("minval") Double minVal,
+    public LongHashSet ansAtLeast(@PathVariable("questionid") Long qId, @PathVariable("minval") Double minVal,
     							@RequestParam(value = "minAnswerDate", defaultValue = "2000-01-01") String minAnswerDate) {
     	return answerLogicSvc.ansAtLeast(qId, minVal, minAnswerDate);
     }
@@ -284,13 +411,63 @@ public class Api {
 	 * 
 	 * @param Q_answer - questionId:value combination formatted as "[questionId]~value"
 	 * @param minAnswerDate - a YY-MM-DD date for which older answers will be ignored
-	 * @return JSON Set<Long> of userId entries corresponding to values less than the input value for the question
+	 * @return JSON array of userId entries corresponding to values less than the input value for the question
 	 */
     @GetMapping(path = "/answer-logic/users/questions/{questionid}/max/{maxval}", produces = "application/json")
-    public Set<Long> ansUnder(@PathVariable("questionid") Long qId, @PathVariable("maxval") Double maxVal, 
+    public LongHashSet ansUnder(@PathVariable("questionid") Long qId, @PathVariable("maxval") Double maxVal, 
     						  @RequestParam(value = "minAnswerDate", defaultValue = "2000-01-01") String minAnswerDate) {
     	return answerLogicSvc.ansUnder(qId, maxVal, minAnswerDate);
     }
+    
+	/**
+	 * Returns users giving an answer at least minVal and STRICTLY less than maxVal for a given numeric question.
+	 * No answers older than minAnswerDate (format: 'YY-MM-DD') will be considered for finding users.
+	 * 
+	 * Equivalent to intersecting /min/{minVal} with /max/{maxVal} for the same question, in one request.
+	 * Uses most recent answers only.
+	 * 
+	 * @param qId - an entry from the questionId column of the Answer table
+	 * @param minVal - the value answers must be equal to or greater than
+	 * @param maxVal - the value answers must be less than
+	 * @param minAnswerDate - a YY-MM-DD date for which older answers will be ignored
+	 * @return JSON array of userId entries corresponding to values in the given range for the question
+	 */
+    @GetMapping(path = "/answer-logic/users/questions/{questionid}/between/{minval}/{maxval}", produces = "application/json")
+    public LongHashSet ansBetween(@PathVariable("questionid") Long qId, @PathVariable("minval") Double minVal,
+    							  @PathVariable("maxval") Double maxVal,
+    							  @RequestParam(value = "minAnswerDate", defaultValue = "2000-01-01") String minAnswerDate) {
+    	return answerLogicSvc.ansBetween(qId, minVal, maxVal, minAnswerDate);
+    }
+
+	/**
+	 * Returns users matching a boolean expression of the conditions served by the other /users/ endpoints.
+	 * 
+	 * The request body is a CohortExpression, a tree whose inner nodes are "and", "or" and "not" and whose leaves are
+	 * "age", "height", "bmi", "answer" and "value" conditions. For example, users aged 18 to 64 who answered "good" or
+	 * "fair" to question 18 and do not have a BMI of 30 or more:
+	 * 
+	 * {"op": "and", "args": [
+	 * 		{"op": "age", "min": 18, "max": 65},
+	 * 		{"op": "answer", "questionId": 18, "answers": ["good", "fair"]},
+	 * 		{"op": "not", "args": [{"op": "bmi", "min": 30}]}]}
+	 * 
+	 * Each condition is evaluated once to a bitmap of users and the bitmaps are combined server-side, so this
+	 * replaces one request per condition followed by client-side intersections and unions.
+	 * Uses most recent answers only.
+	 * 
+	 * @param expression - the CohortExpression to evaluate
+	 * @return JSON array of userId entries matching the expression
+	 */
+    
+    @PostMapping(path = "/answer-logic/users/select", consumes = "application/json", produces = "application/json")
+    public LongHashSet selectUsers(@RequestBody CohortExpression expression) {
+    	return answerLogicSvc.selectUsers(expression);
+    }
+
+    @ExceptionHandler({ IllegalArgumentException.class })
+    public ResponseEntity<String> handleBadRequest(Exception e) {
+        return new ResponseEntity<>(e.getMessage(), HttpStatus.BAD_REQUEST);
+    }
 
     @ExceptionHandler({ NoSuchElementException.class })
     public ResponseEntity<String> handleException(Exception e) {
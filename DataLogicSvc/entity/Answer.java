@@ -24,6 +24,17 @@ public class Answer implements Comparable<Answer>{
 
 	private Long questionnaireId;
 
+	public Answer() {
+	}
+
+	//Used by AnswerColumnarDecoder, which only carries the columns DataLogicSvc reads
+	public Answer(long userId, long questionId, String answer, LocalDateTime answerDate) {
+		this.userId = userId;
+		this.questionId = questionId;
+		this.answer = answer;
+		this.answerDate = answerDate;
+	}
+
 	public long getUserId() {
 		return userId;
 	}
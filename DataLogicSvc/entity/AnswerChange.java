@@ -0,0 +1,54 @@
+import java.time.LocalDateTime;
+
+/*
+ * AnswerChange is one entry of AnswerSvc's /answers/changes feed: the most recent answer a user now has to a
+ * question, or deleted = true if they no longer have one.
+ */
+public class AnswerChange {
+
+	private long id;
+
+	private long userId;
+
+	private long questionId;
+
+	private boolean deleted;
+
+	private String answer;
+
+	private LocalDateTime answerDate;
+
+	public AnswerChange() {
+	}
+
+	public long getId() {
+		return id;
+	}
+
+	public long getUserId() {
+		return userId;
+	}
+
+	public long getQuestionId() {
+		return questionId;
+	}
+
+	public boolean isDeleted() {
+		return deleted;
+	}
+
+	public String getAnswer() {
+		return answer;
+	}
+
+	public LocalDateTime getAnswerDate() {
+		return answerDate;
+	}
+
+	/*
+	 * Returns the answer the change leaves the user with. Only meaningful if the change is not a deletion.
+	 */
+	public Answer toAnswer() {
+		return new Answer(userId, questionId, answer, answerDate);
+	}
+}
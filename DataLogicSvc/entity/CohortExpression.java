@@ -0,0 +1,62 @@
+import java.util.List;
+
+/*
+ * CohortExpression is the request body of /answer-logic/users/select: a boolean expression over the conditions
+ * served by the other /answer-logic/users/ endpoints.
+ *
+ * The op field selects the kind of node:
+ * 		and, or		combine every expression in args
+ * 		not			negates its single expression in args, against all users with any answer
+ * 		age			age in years,  min inclusive and max exclusive
+ * 		height		height in inches, min inclusive and max exclusive
+ * 		bmi			BMI, min inclusive and max exclusive
+ * 		answer		answer to questionId is one of answers (case-sensitive)
+ * 		value		numeric answer to questionId, min inclusive and max exclusive
+ *
+ * A leaf may leave out either min or max for a one-sided range. The answer and value leaves accept minAnswerDate
+ * (format: 'YY-MM-DD') like their single-condition endpoints, defaulting to 2000-01-01.
+ */
+public class CohortExpression {
+
+	private String op;
+
+	private List<CohortExpression> args;
+
+	private Long questionId;
+
+	private List<String> answers;
+
+	private Double min;
+
+	private Double max;
+
+	private String minAnswerDate;
+
+	public String getOp() {
+		return op;
+	}
+
+	public List<CohortExpression> getArgs() {
+		return args;
+	}
+
+	public Long getQuestionId() {
+		return questionId;
+	}
+
+	public List<String> getAnswers() {
+		return answers;
+	}
+
+	public Double getMin() {
+		return min;
+	}
+
+	public Double getMax() {
+		return max;
+	}
+
+	public String getMinAnswerDate() {
+		return minAnswerDate;
+	}
+}
@@ -0,0 +1,32 @@
+import java.util.List;
+
+/*
+ * UserAnswersRequest is the request body of POST /answer-logic/map/users: the users to return the most recent
+ * answers of, at most MAX_USERS of them, and optionally the only questions to return answers to.
+ */
+public class UserAnswersRequest {
+
+	public static final int MAX_USERS = 10_000;
+
+	private List<Long> userIds;
+
+	private List<Long> questionIds;
+
+	public List<Long> getUserIds() {
+		return userIds;
+	}
+
+	//Null for all questions
+	public List<Long> getQuestionIds() {
+		return questionIds;
+	}
+
+	public void validate() {
+		if (userIds == null || userIds.isEmpty() || userIds.size() > MAX_USERS) {
+			throw new IllegalArgumentException("userIds must list between 1 and " + MAX_USERS + " users");
+		}
+		if (userIds.contains(null) || (questionIds != null && questionIds.contains(null))) {
+			throw new IllegalArgumentException("userIds and questionIds must not contain null");
+		}
+	}
+}
@@ -0,0 +1,97 @@
+/*
+ * AnswerChangeSubscription keeps a LatestAnswerIndex up to date with the changes AnswerSvc pushes over
+ * /answers/changes/stream, so that answers written to AnswerSvc are reflected in DataLogicSvc's results within
+ * about a second rather than after the next reload.
+ *
+ * Once started, it subscribes from the watermark of the index and applies each pushed batch to it. The stream is
+ * resumed from the index's watermark whenever it ends: when AnswerSvc closes it, when the connection fails or
+ * stays silent for idleTimeoutMs, or when a full load of the index moved the watermark so that the pushed batches
+ * no longer carry on from it. It resubscribes at once only if the stream delivered at least one event, which
+ * AnswerSvc's heartbeats ensure for any stream that stayed up; otherwise, e.g. when the connection fails or is
+ * closed straight away, it waits retryMs first, so that a failing endpoint is not hit in a tight loop.
+ *
+ * Nothing depends on the stream being up: while it is down the index goes on following the change feed by polling
+ * as before, and if AnswerSvc has no stream endpoint that is all that happens.
+ */
+public class AnswerChangeSubscription {
+
+	private final LatestAnswerIndex index;
+	private final AnswerSvcClient answerSvcClient;
+	private final long idleTimeoutMs;
+	private final long retryMs;
+
+	private volatile boolean connected;
+	private volatile boolean failureReported;
+	private Thread thread;
+
+	public AnswerChangeSubscription(LatestAnswerIndex index, AnswerSvcClient answerSvcClient, long idleTimeoutMs, long retryMs) {
+		this.index = index;
+		this.answerSvcClient = answerSvcClient;
+		this.idleTimeoutMs = idleTimeoutMs;
+		this.retryMs = retryMs;
+	}
+
+	/*
+	 * Starts following the stream on a daemon thread. The index is loaded first if it has not been yet.
+	 */
+	public synchronized void start() {
+		if (thread != null) {
+			return;
+		}
+		thread = new Thread(this::run, "answer-change-stream");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/*
+	 * True while subscribed to the stream.
+	 */
+	public boolean isConnected() {
+		return connected;
+	}
+
+	private void run() {
+		while (true) {
+			boolean delivered = false;
+			try {
+				index.current();
+				Long from = index.getWatermark();
+				if (from != null) {
+					follow(from);
+				}
+			}
+			catch (RuntimeException e) {
+				if (!failureReported) {
+					System.err.println("Answer change stream unavailable, following changes by polling: " + e);
+					failureReported = true;
+				}
+			}
+			finally {
+				delivered = connected;
+				connected = false;
+			}
+			if (!delivered) {
+				try {
+					Thread.sleep(retryMs);		//Also after a stream that ended before its first event
+				}
+				catch (InterruptedException e) {
+					return;
+				}
+			}
+		}
+	}
+
+	//Returns once the stream has ended
+	private void follow(long from) {
+		long[] position = { from };
+		answerSvcClient.streamChanges(from, idleTimeoutMs, batch -> {
+			connected = true;
+			failureReported = false;
+			if (!index.applyChanges(position[0], batch)) {
+				return false;
+			}
+			position[0] = batch.getWatermark();
+			return true;
+		}).join();
+	}
+}
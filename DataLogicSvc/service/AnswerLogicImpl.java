@@ -1,359 +1,478 @@
 
-import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.ObjectProvider;
 import org.springframework.beans.factory.annotation.Value;
-import org.springframework.boot.web.client.RestTemplateBuilder;
-import org.springframework.core.ParameterizedTypeReference;
-import org.springframework.http.HttpEntity;
-import org.springframework.http.HttpHeaders;
-import org.springframework.http.HttpMethod;
-import org.springframework.http.MediaType;
-import org.springframework.http.ResponseEntity;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Service;
-import org.springframework.web.client.RestTemplate;
 
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Paths;
 import java.time.LocalDate;
 import java.time.LocalDateTime;
+import java.time.ZoneOffset;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.List;
-import java.util.Optional;
-import java.util.Set;
+import java.util.concurrent.TimeUnit;
 
 
 @Service
 public class AnswerLogicImpl implements AnswerLogicService {
 
-    @Value("${answer_url}")
-    private String AnswerUrl;
+    private final LatestAnswerIndex answerIndex;
+    private final AnswerChangeSubscription changeSubscription;
+    private final AnswerSnapshotFile snapshotFile;
+    private final long snapshotMaxAgeMs;
+    private final MeterRegistry registry;
     
-    @Value("${answer_url_uname}")
-    private String AnswerUrlUName;
-
-    @Value("${answer_url_pass}")
-    private String AnswerUrlPass;
-	
-    private final RestTemplate restTemplate;
+    private final String epoch = Long.toString(System.currentTimeMillis(), 36);
     
-    private final Long ageQuestionId = 1L;
-    private final Long heightQuestionId = 2L;
-    private final Long weightQuestionId = 3L;
+    /*
+     * The index is pulled as userId-range slices, up to answer_fetch_concurrency at once, each spanning
+     * answer_fetch_slice_users userIds or more if the range is too wide for that. See SlicedAnswerLoader. In between
+     * full loads, which happen every answer_index_full_reload_ms, it follows AnswerSvc's change feed, as pushed over
+     * a stream unless answer_stream_enabled is false, and otherwise by polling. See AnswerChangeSubscription.
+     * 
+     * If answer_index_snapshot_path is set, the index is saved there every answer_index_snapshot_ms and a restart
+     * starts from the saved index, if it is less than answer_index_snapshot_max_age_ms old, rather than loading every
+     * answer again. The age limit must stay below how long AnswerSvc keeps its change log (see answer_change.sql),
+     * as the changes since the index was saved are read from it.
+     * 
+     * Each query on the index is timed by answer.logic.query, and the users it selected recorded in
+     * answer.logic.result.users, tagged with the operation and the class of its question (see
+     * TypedColumns.questionClass()). This is the aggregation time alone; serialization of the result is the rest of
+     * http.server.requests for the endpoint.
+     */
+    public AnswerLogicImpl(AnswerSvcClient answerSvcClient, ObjectProvider<MeterRegistry> meterRegistry,
+    					   @Value("${answer_index_max_staleness_ms:60000}") long maxStalenessMs,
+    					   @Value("${answer_index_full_reload_ms:3600000}") long fullReloadMs,
+    					   @Value("${answer_fetch_concurrency:8}") int fetchConcurrency,
+    					   @Value("${answer_fetch_slice_users:50000}") long fetchSliceUsers,
+    					   @Value("${answer_stream_enabled:true}") boolean streamEnabled,
+    					   @Value("${answer_stream_idle_timeout_ms:45000}") long streamIdleTimeoutMs,
+    					   @Value("${answer_stream_retry_ms:5000}") long streamRetryMs,
+    					   @Value("${answer_index_snapshot_path:}") String snapshotPath,
+    					   @Value("${answer_index_snapshot_max_age_ms:21600000}") long snapshotMaxAgeMs) {
+        this.registry = meterRegistry.getIfAvailable(SimpleMeterRegistry::new);
+        SlicedAnswerLoader loader = new SlicedAnswerLoader(etag -> answerSvcClient.fetchUserIdRange(etag).join(),
+        												   answerSvcClient::fetchMostRecentAnswers, 
+        												   fetchConcurrency, fetchSliceUsers, registry);
+        LatestAnswerIndex.ChangeFeed changeFeed = new LatestAnswerIndex.ChangeFeed() {
+        	public Long watermark() {
+        		return answerSvcClient.fetchChangeWatermark().join();
+        	}
+        	
+        	public AnswerSvcClient.ChangeBatch changesSince(long watermark) {
+        		return answerSvcClient.fetchChanges(watermark).join();
+        	}
+        };
+        this.answerIndex = new LatestAnswerIndex(loader, changeFeed, maxStalenessMs, fullReloadMs, registry);
+        this.changeSubscription = streamEnabled 
+        		? new AnswerChangeSubscription(answerIndex, answerSvcClient, streamIdleTimeoutMs, streamRetryMs) : null;
+        this.snapshotFile = snapshotPath.isEmpty() ? null : new AnswerSnapshotFile(Paths.get(snapshotPath));
+        this.snapshotMaxAgeMs = snapshotMaxAgeMs;
+    }
     
-    public AnswerLogicImpl(RestTemplateBuilder restTemplateBuilder) {
-        this.restTemplate = restTemplateBuilder.build();
+    /*
+     * Restores the saved index, if any, and then subscribes to AnswerSvc's changes once the application is up,
+     * loading the index if there was nothing to restore, rather than on the first request. This runs after startup
+     * rather than in the constructor because catching up with the changes since the index was saved calls AnswerSvc,
+     * which would hold up the application context for as long as AnswerSvc is slow or unreachable. A request
+     * arriving while the saved index is read and caught up waits for it (see LatestAnswerIndex.restore()); one
+     * arriving before startup has finished starts a full load instead, and the saved index is then not used.
+     */
+    @EventListener(ApplicationReadyEvent.class)
+    public void startAnswerIndex() {
+    	if (snapshotFile != null) {
+    		restoreAnswerIndex(snapshotMaxAgeMs);
+    	}
+    	if (changeSubscription != null) {
+    		changeSubscription.start();
+    	}
     }
     
-    HttpHeaders headers = new HttpHeaders();
-  
-    public HashMap<Long, String> getHashmapByUserId(Long userId){ 	
-    	List<Answer> userAnsList = this.getMostRecentAnswerByUserId(userId);
+    private void restoreAnswerIndex(long maxAgeMs) {
+    	try {
+    		answerIndex.restore(snapshotFile, maxAgeMs);
+    	}
+    	catch (IOException e) {
+    		System.err.println("Cannot restore the saved answer index, loading all answers: " + e);
+    	}
+    }
+    
+    @Scheduled(fixedDelayString = "${answer_index_snapshot_ms:300000}")
+    public void saveAnswerIndex() {
+    	if (snapshotFile == null) {
+    		return;
+    	}
+    	try {
+    		answerIndex.save(snapshotFile);
+    	}
+    	catch (IOException e) {
+    		System.err.println("Cannot save the answer index to " + snapshotFile.getPath() + ": " + e);
+    	}
+    }
+    
+    /*
+     * Reloads the latest answer index in the background at half the staleness bound, so that requests normally
+     * find a fresh index and only trigger a reload themselves if AnswerSvc has been unreachable for longer than
+     * the bound.
+     */
+    @Scheduled(fixedDelayString = "${answer_index_refresh_ms:30000}")
+    public void refreshAnswerIndex() {
+    	answerIndex.refreshIfStale();
+    }
+    
+    /*
+     * Combines the index version with the start time of this instance, and with today's date since ages are
+     * counted from it, and with a hash of the representation as AnswerSvc does.
+     */
+    public String getVersionTag(String representation) {
+    	return "\"" + epoch + "-" + Long.toString(answerIndex.getVersion(), 36) + "-" + LocalDate.now().toEpochDay()
+    		   + "-" + Integer.toHexString(representation.hashCode()) + "\"";
+    }
+    
+    public LongObjectHashMap<String> getHashmapByUserId(Long userId){ 	
+    	long startNs = System.nanoTime();
+    	List<Answer> userAnsList = answerIndex.current().getByUserId(userId);
  
-    	return getUserHashMap(userAnsList);
+    	return timed("getHashmapByUserId", "none", startNs, getUserHashMap(userAnsList));
     }
   
-    public HashMap<Long, HashMap> getAllUserHashmap(){
-  	
-	  	List<Answer> allUserAns = this.getAllMostRecentAnswer();	//List of all rows in ANSWER table
-	  	HashMap<Long, List> userIdMap = new HashMap<Long, List>();			//Helper mapping of userIds to lists of their Answers
-	  	HashMap<Long, HashMap> hmap = new HashMap<Long, HashMap>();	
+    /*
+     * Answers for many users at once, restricted to questionIds unless it is null. Users without any of the
+     * answers are left out.
+     */
+    public LongObjectHashMap<LongObjectHashMap<String>> getHashmapByUserIds(List<Long> userIds, List<Long> questionIds){
+    	long startNs = System.nanoTime();
+    	AnswerSnapshot snapshot = answerIndex.current();
+    	long[] qIds = questionIds == null ? snapshot.getQuestionIds() : questionIds.stream().mapToLong(Long::longValue).toArray();
+    	LongObjectHashMap<LongObjectHashMap<String>> hmap = new LongObjectHashMap<LongObjectHashMap<String>>(userIds.size());
+    	
+    	//Question by question, so that each question's map is looked up once and then probed per user
+    	for (long qId : qIds) {
+    		LongObjectHashMap<Answer> userMap = snapshot.getAnswersByUser(qId);
+    		if (userMap == null) {
+    			continue;
+    		}
+    		for (Long userId : userIds) {
+    			Answer userAns = userMap.get(userId);
+    			if (userAns == null) {
+    				continue;
+    			}
+    			LongObjectHashMap<String> userHmap = hmap.get(userId);
+    			if (userHmap == null) {
+    				userHmap = new LongObjectHashMap<String>();
+    				hmap.put(userId, userHmap);
+    			}
+    			userHmap.put(qId, userAns.getAnswer());
+    		}
+    	}
+    	return timed("getHashmapByUserIds", "none", startNs, hmap);
+    }
+  
+    public LongObjectHashMap<LongObjectHashMap<String>> getAllUserHashmap(){
+	  	long startNs = System.nanoTime();
+	  	LongObjectHashMap<LongObjectHashMap<String>> hmap = new LongObjectHashMap<LongObjectHashMap<String>>();
 	  	
-	  	//For each ANSWER table row, assign that row to its userId in the userId map
-	  	for (int i = 0; i < allUserAns.size(); i++) {
-	  		Answer userAns = allUserAns.get(i);
-	
-	  		//If userIdMap contains the userId key, add the row to that key's list. Else, make a new key:list pair.
-	  		if (userIdMap.containsKey(userAns.getUserId())) {
-	  			userIdMap.get(userAns.getUserId()).add(userAns);
+	  	//The index already holds only the most recent answer per user and question, so each answer is
+	  	//added directly to its user's questionId:answer map without a date comparison
+	  	answerIndex.current().forEachQuestion((qId, userMap) -> userMap.forEach((userId, userAns) -> {
+	  		LongObjectHashMap<String> userHmap = hmap.get(userId);
+	  		if (userHmap == null) {
+	  			userHmap = new LongObjectHashMap<String>();
+	  			hmap.put(userId, userHmap);
 	  		}
-	  		else {
-	  			List<Answer> userAnsList = new ArrayList();
-	  			userAnsList.add(userAns);
-	  			userIdMap.put(userAns.getUserId(), userAnsList);
-	  		}
-	  	}	
-  		
-	  	List<Long> userIds = new ArrayList<Long>(userIdMap.keySet());
-	  	//For each userId, use getUserHashMap() to generate userId:hashMap pairs from list stored in userIdMap
-	  	for (int i = 0; i < userIds.size(); i++) {
-	  		Long userIdtoAdd = userIds.get(i);
-	  		hmap.put(userIdtoAdd, getUserHashMap(userIdMap.get(userIdtoAdd)));
-	  	}
+	  		userHmap.put(qId, userAns.getAnswer());
+	  	}));
   	
-  		return hmap;
+  		return timed("getAllUserHashmap", "none", startNs, hmap);
+    }
+  
+    public void writeAnswerMatrix(OutputStream out) throws IOException {
+    	//Written column by column from the per-question answer indexes rather than from the getAllUserHashmap()
+    	//maps, so no per-user map is built
+    	AnswerMatrixEncoder.write(answerIndex.current(), out);
     }
   
     public HashMap<String, List> getHashmapByQId(Long qId) {
-    	List<Answer> allQAns = this.getMostRecentAnswerByQuestionId(qId);
-  	
-    	HashMap<String, List> hmap = new HashMap<String, List>();
+    	long startNs = System.nanoTime();
+    	InvertedAnswerIndex index = answerIndex.current().getAnswerIndex(qId);
   	
-	  	//For each answer, if it exists as a key in hmap we insert the Object into the list for that key.
-	  	//If the answer does not exist as a key, we create the key:list pair in hmap.
-	  	for (int i = 0; i < allQAns.size(); i++) {
-	  		Answer currAns = allQAns.get(i);
-	  		String key = currAns.getAnswer();
-	  		
-	  		if (hmap.containsKey(key)) {
-	  			hmap.get(key).add(currAns);
-	  		}
-	  		else {
-	  			ArrayList<Answer> userList = new ArrayList();
-	  			userList.add(currAns);
-	  			hmap.put(key, userList);
-	  		}
-	  	}
-	  	
-	  	return hmap;
+    	//The answer:Answers grouping is kept per question in the index, so only the outer map is built here
+    	return timed("getHashmapByQId", TypedColumns.questionClass(qId), startNs, 
+    				 index == null ? new HashMap<String, List>() : index.groupByAnswer());
     }
   
-    public Set<Long> youngerThan(int years) {
-    	LocalDate date = LocalDate.now().minusYears(years);
-    	Set<Long> userIdList = new HashSet<Long>();
-	  	List<Answer> ansList = this.getMostRecentAnswerByQuestionId(ageQuestionId);
-	  	
-	  	for (int i = 0; i < ansList.size(); i++) {
-	  		Answer currAns = ansList.get(i);
-	  		LocalDate currDate = LocalDate.parse(currAns.getAnswer());
-	  		
-	  		if (currDate.compareTo(date) > 0) {
-	  			userIdList.add(currAns.getUserId());
-	  		}
-	  	}
-	  	return userIdList;
+    public LongHashSet youngerThan(int years) {
+    	long startNs = System.nanoTime();
+    	AnswerSnapshot snapshot = answerIndex.current();
+    	return timed("youngerThan", "birthdate", startNs, snapshot.toUserIds(ageBitmap(snapshot, null, years)));
     }
   
-    public Set<Long> atLeastAge(int years) {
-	  	LocalDate date = LocalDate.now().minusYears(years);
-	    Set<Long> userIdList = new HashSet<Long>();
-	  	
-	    List<Answer> ansList = this.getMostRecentAnswerByQuestionId(ageQuestionId);
-	  	
-	  	for (int i = 0; i < ansList.size(); i++) {
-	  		Answer currAns = ansList.get(i);
-	  		LocalDate currDate = LocalDate.parse(currAns.getAnswer());
-	  		
-	  		if (currDate.compareTo(date) < 0 || currDate.isEqual(date)) {
-	  			userIdList.add(currAns.getUserId());
-	  		}
-	  	}
-	  	return userIdList;
+    public LongHashSet atLeastAge(int years) {
+    	long startNs = System.nanoTime();
+    	AnswerSnapshot snapshot = answerIndex.current();
+    	return timed("atLeastAge", "birthdate", startNs, snapshot.toUserIds(ageBitmap(snapshot, years, null)));
     }
   
-    public Set<Long> underHeight(int inches) {
-	  	Set<Long> userIdList = new HashSet<Long>();
-	  	List<Answer> ansList = this.getMostRecentAnswerByQuestionId(heightQuestionId);
-	  	
-	  	for (int i = 0; i < ansList.size(); i++) {
-	  		String currAns = ansList.get(i).getAnswer();
-	  		if (currAns.isEmpty() 			||				//This block skips incorrectly formatted test db entries
-	  			!currAns.contains("ft") 	||				
-	  			!currAns.contains("in")		||
-	  			currAns.contains(".")
-	  			){
-	  			continue;
-	  		}
-	  		
-	  		if (convertToInches(currAns) < inches) {
-	  			userIdList.add(ansList.get(i).getUserId());
-	  		}
-	  	}
-	  	return userIdList;	
+    public LongHashSet ageBetween(int minYears, int maxYears) {
+    	long startNs = System.nanoTime();
+    	AnswerSnapshot snapshot = answerIndex.current();
+    	return timed("ageBetween", "birthdate", startNs, snapshot.toUserIds(ageBitmap(snapshot, minYears, maxYears)));
     }
   
-    public Set<Long> atLeastHeight(int inches) {
-    	Set<Long> userIdList = new HashSet<Long>();
-	  	List<Answer> ansList = this.getMostRecentAnswerByQuestionId(heightQuestionId);
-	  	
-	  	int currHeight, idxFoot, idxIn, currFt, currIn;
-	  	
-	  	for (int i = 0; i < ansList.size(); i++) {
-	  		String currAns = ansList.get(i).getAnswer();
-	  		if (currAns.isEmpty() 			||				//This block skips incorrectly formatted test db entries
-	  			!currAns.contains("ft") 	||
-	  			!currAns.contains("in")		||
-	  			currAns.contains(".")
-	  			){
-	  			continue;
-	  		}
-	  		
-	  		if (convertToInches(currAns) >= inches) {
-	  			userIdList.add(ansList.get(i).getUserId());
-	  		}
-	  	}
-	  	
-	  	return userIdList;
+    public LongHashSet underHeight(int inches) {
+    	long startNs = System.nanoTime();
+    	AnswerSnapshot snapshot = answerIndex.current();
+    	return timed("underHeight", "height", startNs, snapshot.toUserIds(heightBitmap(snapshot, null, (double) inches)));
     }
   
-    public Set<Long> underBMI(double bmi) {
-    	Set<Long> userIdList = new HashSet<Long>();
-	  	List<Answer> heightList = this.getMostRecentAnswerByQuestionId(heightQuestionId);
-	  	List<Answer> weightList = this.getMostRecentAnswerByQuestionId(weightQuestionId);
-	  	
-	  	HashMap<Long, Double> weightMap = new HashMap<Long, Double>();		//Helper hashMap of user:weight mappings
-	  	
-	  	Answer currAns;
-	  	double weight, height, currBMI;
-	  	
-	  	//For each weight answer to questionId = 3, we add a pair to the user:weight helper hashMap
-	  	for (int i = 0; i < weightList.size(); i++) {
-	  		currAns = weightList.get(i);
-	  		weight = Double.parseDouble(currAns.getAnswer());
-	  		weightMap.put(currAns.getUserId(), weight);
-	  	}
-	  	
-	  	//For each height answer to questionId = 2, we use that value with that user's weight to calculate BMI
-	  	for (int i = 0; i < heightList.size(); i++) {
-	  		currAns = heightList.get(i);
-	  		height = Double.valueOf(
-	  					convertToInches(currAns.getAnswer())
-	  					);
-	  		weight = weightMap.get(currAns.getUserId());
-	  		currBMI = (703*weight) / (height*height);
-	  		
-	  		if (currBMI < bmi) {
-	  			userIdList.add(currAns.getUserId());
-	  		}	
-	  	}
-	 
-	  	return userIdList;
+    public LongHashSet atLeastHeight(int inches) {
+    	long startNs = System.nanoTime();
+    	AnswerSnapshot snapshot = answerIndex.current();
+    	return timed("atLeastHeight", "height", startNs, snapshot.toUserIds(heightBitmap(snapshot, (double) inches, null)));
     }
   
-    public Set<Long> atLeastBMI(double bmi) {
-    	Set<Long> userIdList = new HashSet<Long>();
-    	List<Answer> heightList = this.getMostRecentAnswerByQuestionId(heightQuestionId);
-	  	List<Answer> weightList = this.getMostRecentAnswerByQuestionId(weightQuestionId);
-	  	
-	  	HashMap<Long, Double> weightMap = new HashMap<Long, Double>();		//Helper hashMap of user:weight mappings
-	  	
-	  	Answer currAns;
-	  	double weight, height, currBMI;
-	  	
-	  	//For each weight answer to questionId = 3, we add a pair to the user:weight helper hashMap
-	  	for (int i = 0; i < weightList.size(); i++) {
-	  		currAns = weightList.get(i);
-	  		weight = Double.parseDouble(currAns.getAnswer());
-	  		weightMap.put(currAns.getUserId(), weight);
-	  	}
-	  	
-	  	//For each height answer to questionId = 2, we use that value with that user's weight to calculate BMI
-	  	for (int i = 0; i < heightList.size(); i++) {
-	  		currAns = heightList.get(i);
-	  		height = Double.valueOf(
-	  					convertToInches(currAns.getAnswer())
-	  					);
-	  		weight = weightMap.get(currAns.getUserId());
-	  		currBMI = (703*weight) / (height*height);
-	  		
-	  		if (currBMI >= bmi) {
-	  			userIdList.add(currAns.getUserId());
-	  		}	
-	  	}
- 
-	  	return userIdList;
+    public LongHashSet heightBetween(int minInches, int maxInches) {
+    	long startNs = System.nanoTime();
+    	AnswerSnapshot snapshot = answerIndex.current();
+    	return timed("heightBetween", "height", startNs, snapshot.toUserIds(heightBitmap(snapshot, (double) minInches, (double) maxInches)));
     }
   
-	public Set<Long> userSelect(Long qId, String answer, String minAnswerDate) {		
-
-		Set<Long> userIdList = new HashSet<Long>();
-	  	List<Answer> ansList = this.getMostRecentAnswerByQuestionId(qId);
-	  	
-	  	LocalDateTime minDate = getDateFromString(minAnswerDate);
-
-	  	for (int i = 0; i < ansList.size(); i++) {
-	  		if (answer.equals(ansList.get(i).getAnswer()) &&
-	  			(ansList.get(i).getAnswerDate().compareTo(minDate) >= 0 || ansList.get(i).getAnswerDate().equals(minDate))){
-	  			
-	  			userIdList.add(ansList.get(i).getUserId());
-	  		}
-	  	}
-	  	
-	  	return userIdList;
+    public LongHashSet underBMI(double bmi) {
+    	long startNs = System.nanoTime();
+    	AnswerSnapshot snapshot = answerIndex.current();
+    	return timed("underBMI", "bmi", startNs, snapshot.toUserIds(bmiBitmap(snapshot, null, bmi)));
+    }
+  
+    public LongHashSet atLeastBMI(double bmi) {
+    	long startNs = System.nanoTime();
+    	AnswerSnapshot snapshot = answerIndex.current();
+    	return timed("atLeastBMI", "bmi", startNs, snapshot.toUserIds(bmiBitmap(snapshot, bmi, null)));
+    }
+  
+    public LongHashSet bmiBetween(double minBmi, double maxBmi) {
+    	long startNs = System.nanoTime();
+    	AnswerSnapshot snapshot = answerIndex.current();
+    	return timed("bmiBetween", "bmi", startNs, snapshot.toUserIds(bmiBitmap(snapshot, minBmi, maxBmi)));
+    }
+  
+	public LongHashSet userSelect(Long qId, String answer, String minAnswerDate) {		
+		long startNs = System.nanoTime();
+		AnswerSnapshot snapshot = answerIndex.current();
+		
+		return timed("userSelect", TypedColumns.questionClass(qId), startNs, 
+					 snapshot.toUserIds(answerBitmap(snapshot, qId, Collections.singletonList(answer), getDateFromString(minAnswerDate))));
     }
   
-	public Set<Long> userSelectMany(String questionId_answers, String minAnswerDate) {
-		Set<Long> userIdList = new HashSet<Long>();
+	public LongHashSet userSelectMany(String questionId_answers, String minAnswerDate) {
+		long startNs = System.nanoTime();
+		AnswerSnapshot snapshot = answerIndex.current();
 
 	  	List<String> strList = new ArrayList<String>(Arrays.asList(questionId_answers.split("~")));
 	  	Long qId = Long.parseLong(strList.get(0));
 	  	strList.remove(0);
 	  	
-	  	LocalDateTime minDate = getDateFromString(minAnswerDate);
-
-	  	List<Answer> ansList = this.getMostRecentAnswerByQuestionId(qId);
-	  	
-	  	for (int i = 0; i < ansList.size(); i++) {
-	  		if (strList.contains(ansList.get(i).getAnswer()) &&
-	  			(ansList.get(i).getAnswerDate().compareTo(minDate) >= 0 || ansList.get(i).getAnswerDate().equals(minDate))
-	  				){
-	  			userIdList.add(ansList.get(i).getUserId());
-	  		}
-	  	}
-	  	
-	  	return userIdList;
+	  	return timed("userSelectMany", TypedColumns.questionClass(qId), startNs, 
+	  				 snapshot.toUserIds(answerBitmap(snapshot, qId, strList, getDateFromString(minAnswerDate))));
+	}
+  
+	public LongHashSet ansAtLeast(Long qId, Double rangeStart, String minAnswerDate) {
+		long startNs = System.nanoTime();
+		AnswerSnapshot snapshot = answerIndex.current();
+		BitSet bits = valueBitmap(snapshot, qId, rangeStart, null, getDateFromString(minAnswerDate));
+		
+		return timed("ansAtLeast", TypedColumns.questionClass(qId), startNs, bits == null ? null : snapshot.toUserIds(bits));
 	}
   
-	public Set<Long> ansAtLeast(Long qId, Double rangeStart, String minAnswerDate) {
-		Set<Long> userIdList = new HashSet<Long>();
+  	public LongHashSet ansUnder(Long qId, Double rangeEnd, String minAnswerDate) {
+		long startNs = System.nanoTime();
+		AnswerSnapshot snapshot = answerIndex.current();
+		BitSet bits = valueBitmap(snapshot, qId, null, rangeEnd, getDateFromString(minAnswerDate));
+		
+		return timed("ansUnder", TypedColumns.questionClass(qId), startNs, bits == null ? null : snapshot.toUserIds(bits));
+  	} 
   	
-	  	List<Answer> ansList = this.getMostRecentAnswerByQuestionId(qId);
-	  	
-	  	LocalDateTime minDate = getDateFromString(minAnswerDate);
+  	public LongHashSet ansBetween(Long qId, Double rangeStart, Double rangeEnd, String minAnswerDate) {
+		long startNs = System.nanoTime();
+		AnswerSnapshot snapshot = answerIndex.current();
+		BitSet bits = valueBitmap(snapshot, qId, rangeStart, rangeEnd, getDateFromString(minAnswerDate));
+		
+		return timed("ansBetween", TypedColumns.questionClass(qId), startNs, bits == null ? null : snapshot.toUserIds(bits));
+  	}
+  	
+  	public LongHashSet selectUsers(CohortExpression expression) {
+		long startNs = System.nanoTime();
+		AnswerSnapshot snapshot = answerIndex.current();
+		return timed("selectUsers", "cohort", startNs, snapshot.toUserIds(evaluate(snapshot, expression)));
+  	}
 
-	  	Double currAns = 0.0;
-	  	for (int i = 0; i < ansList.size(); i++) {
-	  		
-	  		try {
-	      		currAns = Double.parseDouble(ansList.get(i).getAnswer());
-	  		}
-	  		catch(Exception e) {
-	  			System.err.println("Answer data for input questionId is not numeric!");
-	  			return null;
+  /*
+   * 	timed() records a query that started at startNs and returns its result, see the constructor.
+   */
+  private <T> T timed(String operation, String questionClass, long startNs, T result) {
+	  Timer.builder("answer.logic.query")
+	  	   .description("Time to compute a result from the latest answer index")
+	  	   .tags("operation", operation, "questionClass", questionClass)
+	  	   .register(registry)
+	  	   .record(System.nanoTime() - startNs, TimeUnit.NANOSECONDS);
+	  if (result instanceof LongHashSet) {
+		  DistributionSummary.builder("answer.logic.result.users")
+		  	   .description("Users selected by a query on the latest answer index")
+		  	   .tags("operation", operation, "questionClass", questionClass)
+		  	   .register(registry)
+		  	   .record(((LongHashSet) result).size());
+	  }
+	  return result;
+  }
+
+  /*
+   * 	evaluate() resolves a CohortExpression to a bitmap of user ordinals. Each leaf condition is evaluated to its own
+   * 	bitmap by the same helper its single-condition endpoint uses, and and/or/not are applied to the bitmaps directly.
+   */
+  private BitSet evaluate(AnswerSnapshot snapshot, CohortExpression expr) {
+	  if (expr == null || expr.getOp() == null) {
+		  throw new IllegalArgumentException("Every cohort expression must have an op");
+	  }
+	  
+	  switch (expr.getOp()) {
+	  	case "and":
+	  	case "or": {
+	  		List<CohortExpression> args = expr.getArgs();
+	  		if (args == null || args.isEmpty()) {
+	  			throw new IllegalArgumentException("'" + expr.getOp() + "' needs at least one expression in args");
 	  		}
+	  		boolean isAnd = expr.getOp().equals("and");
+	  		BitSet bits = evaluate(snapshot, args.get(0));
 	  		
-	  		if (currAns >= rangeStart &&
-	  			(ansList.get(i).getAnswerDate().compareTo(minDate) >= 0 || ansList.get(i).getAnswerDate().equals(minDate))){
-	  			userIdList.add(ansList.get(i).getUserId());
+	  		//An empty AND can never become non-empty again, so the remaining arguments are skipped
+	  		for (int i = 1; i < args.size() && !(isAnd && bits.isEmpty()); i++) {
+	  			if (isAnd) {
+	  				bits.and(evaluate(snapshot, args.get(i)));
+	  			}
+	  			else {
+	  				bits.or(evaluate(snapshot, args.get(i)));
+	  			}
 	  		}
+	  		return bits;
 	  	}
-	  	
-	  	return userIdList;
-	}
-  
-  	public Set<Long> ansUnder(Long qId, Double rangeEnd, String minAnswerDate) {
-  		Set<Long> userIdList = new HashSet<Long>();
-  	
-	  	List<Answer> ansList = this.getMostRecentAnswerByQuestionId(qId);
-	  	
-	  	LocalDateTime minDate = getDateFromString(minAnswerDate);
-
-	  	Double currAns = 0.0;
-	  	for (int i = 0; i < ansList.size(); i++) {
-	  		try {
-	      		currAns = Double.parseDouble(ansList.get(i).getAnswer());
+	  	case "not": {
+	  		if (expr.getArgs() == null || expr.getArgs().size() != 1) {
+	  			throw new IllegalArgumentException("'not' needs exactly one expression in args");
 	  		}
-	  		catch(Exception e) {
-	  			System.err.println("Answer data for input questionId is not numeric!");
-	  			return null;
+	  		BitSet bits = snapshot.allUsers();
+	  		bits.andNot(evaluate(snapshot, expr.getArgs().get(0)));
+	  		return bits;
+	  	}
+	  	case "age":
+	  		return ageBitmap(snapshot, 
+	  						 expr.getMin() == null ? null : expr.getMin().intValue(), 
+	  						 expr.getMax() == null ? null : expr.getMax().intValue());
+	  	case "height":
+	  		return heightBitmap(snapshot, expr.getMin(), expr.getMax());
+	  	case "bmi":
+	  		return bmiBitmap(snapshot, expr.getMin(), expr.getMax());
+	  	case "answer":
+	  		if (expr.getQuestionId() == null || expr.getAnswers() == null) {
+	  			throw new IllegalArgumentException("'answer' needs a questionId and answers");
 	  		}
-	  		
-	  		if (currAns < rangeEnd && 
-	  			(ansList.get(i).getAnswerDate().compareTo(minDate) >= 0 || ansList.get(i).getAnswerDate().equals(minDate))){
-	  			userIdList.add(ansList.get(i).getUserId());
+	  		return answerBitmap(snapshot, expr.getQuestionId(), expr.getAnswers(), 
+	  							getDateFromString(expr.getMinAnswerDate()));
+	  	case "value": {
+	  		if (expr.getQuestionId() == null) {
+	  			throw new IllegalArgumentException("'value' needs a questionId");
+	  		}
+	  		BitSet bits = valueBitmap(snapshot, expr.getQuestionId(), expr.getMin(), expr.getMax(), 
+	  								  getDateFromString(expr.getMinAnswerDate()));
+	  		if (bits == null) {
+	  			throw new IllegalArgumentException("Answer data for questionId " + expr.getQuestionId() + " is not numeric");
 	  		}
+	  		return bits;
 	  	}
-  	
-	  	return userIdList;
-  	} 
+	  	default:
+	  		throw new IllegalArgumentException("Unknown cohort expression op '" + expr.getOp() + "'");
+	  }
+  }
+
+  /*
+   * 	The bitmap helpers below each evaluate one condition over the most recent answers in a snapshot, setting the
+   * 	ordinal of every matching user. A null bound is left open, a min is inclusive and a max is exclusive.
+   */
+  
+  private BitSet ageBitmap(AnswerSnapshot snapshot, Integer minYears, Integer maxYears) {
+	  //An age of at least minYears means born on or before today minus minYears, and an age under maxYears means
+	  //born strictly after today minus maxYears. Birth dates are whole epoch days, so both become half-open bounds.
+	  double from = maxYears == null ? Double.NEGATIVE_INFINITY : LocalDate.now().minusYears(maxYears).toEpochDay() + 1;
+	  double to = minYears == null ? Double.POSITIVE_INFINITY : LocalDate.now().minusYears(minYears).toEpochDay() + 1;
+	  
+	  return rangeBitmap(snapshot.getTypedColumns().getBirthEpochDays(), from, to);
+  }
+  
+  private BitSet heightBitmap(AnswerSnapshot snapshot, Double minInches, Double maxInches) {
+	  return rangeBitmap(snapshot.getTypedColumns().getHeightInches(), lowerBound(minInches), upperBound(maxInches));
+  }
+  
+  //Users without a weight answer or with an incorrectly formatted height have a NaN BMI and never match
+  private BitSet bmiBitmap(AnswerSnapshot snapshot, Double minBmi, Double maxBmi) {
+	  return rangeBitmap(snapshot.getTypedColumns().getBmis(), lowerBound(minBmi), upperBound(maxBmi));
+  }
+  
+  //One posting lookup per requested answer, filtered on the posting's answer dates
+  private BitSet answerBitmap(AnswerSnapshot snapshot, Long qId, Collection<String> answers, LocalDateTime minDate) {
+	  InvertedAnswerIndex index = snapshot.getAnswerIndex(qId);
+	  if (index == null) {
+		  return new BitSet();
+	  }
+	  return index.select(answers, minDate.toEpochSecond(ZoneOffset.UTC));
+  }
+  
+  //Returns null if any answer to the question is not numeric
+  private BitSet valueBitmap(AnswerSnapshot snapshot, Long qId, Double min, Double max, LocalDateTime minDate) {
+	  TypedColumns.NumericColumn column = snapshot.getTypedColumns().getNumericColumn(qId);
+	  if (column == null) {
+		  if (snapshot.getByQuestionId(qId).isEmpty()) {
+			  return new BitSet();
+		  }
+		  System.err.println("Answer data for input questionId is not numeric!");
+		  return null;
+	  }
+	  
+	  return column.sorted().range(lowerBound(min), upperBound(max), minDate.toEpochSecond(ZoneOffset.UTC));
+  }
+  
+  //Sets the ordinal of every user whose value in a typed column lies in [from, to), using the column's sorted index
+  private static BitSet rangeBitmap(TypedColumns.NumericColumn column, double from, double to) {
+	  return column.sorted().range(from, to, Long.MIN_VALUE);
+  }
+  
+  private static double lowerBound(Double min) {
+	  return min == null ? Double.NEGATIVE_INFINITY : min;
+  }
+  
+  private static double upperBound(Double max) {
+	  return max == null ? Double.POSITIVE_INFINITY : max;
+  }
 
   /*
    * 	getUserHashMap() is a helper method that returns a hashmap of questionId:answer pairs for an
    * 	input list of Answer objects. The input list objects must contain the same userId. 
    */
 
-  private HashMap<Long, String> getUserHashMap(List<Answer> userAnsList){
-  	HashMap<Long, String> hmap = new HashMap<Long, String>();						
-  	HashMap<Long, LocalDateTime> dateMap = new HashMap<Long, LocalDateTime>(); //Indicates most recent answer	
+  private LongObjectHashMap<String> getUserHashMap(List<Answer> userAnsList){
+  	LongObjectHashMap<String> hmap = new LongObjectHashMap<String>();						
+  	LongObjectHashMap<LocalDateTime> dateMap = new LongObjectHashMap<LocalDateTime>(); //Indicates most recent answer	
   
   	//For each Q&A, we check if the question has already been answered, and add the most recent answer
   	for (int i = 0; i < userAnsList.size(); i++) {
@@ -379,29 +498,14 @@ public class AnswerLogicImpl implements AnswerLogicService {
   	return hmap;
   }
 
-  /*
-   * convertToInches is a helper method that converts strings from "[n]ft [m]in" format, for answers to questionId=2, 
-   * to int value in inches.
-   */
-  private int convertToInches(String answer) {
-  	int currHeight, idxFoot, idxIn, currFt, currIn;
-  	
-		idxFoot = answer.indexOf("ft");
-		idxIn = answer.indexOf("in");
-		int breakLen = 3;
-		
-		currFt = Integer.parseInt(answer.substring(0, idxFoot));
-		currIn = Integer.parseInt(answer.substring(idxFoot+breakLen, idxIn));
-		
-		currHeight = currFt*12 + currIn;
-  	
-  	return currHeight;
-  }
-  
   /*
    * getDateFromString is a helper method that converts strings from "YY-MM-DD" format to a LocalDateTime object.
+   * A null dateString is treated as the default minAnswerDate of 2000-01-01.
    */
   private LocalDateTime getDateFromString(String dateString) {
+	  if (dateString == null) {
+		  dateString = "2000-01-01";
+	  }
 	  
 	  List<String> strList = new ArrayList<String>(Arrays.asList(dateString.split("-")));
 	  int minYear = Integer.parseInt(strList.get(0));
@@ -411,47 +515,5 @@ public class AnswerLogicImpl implements AnswerLogicService {
 	  
 	  return localDateTime;
   }
-	
-	
-	//Helper methods to call the AnswerSvc for data from the ANSWER table
-	private List<Answer> getAllMostRecentAnswer(){
-		headers.setContentType(MediaType.APPLICATION_JSON);
-		headers.setBasicAuth(AnswerUrlUName, AnswerUrlPass);
-        
-    	ResponseEntity<List<Answer>> responseEntity = restTemplate.exchange(
-        		AnswerUrl + "?recent=true",
-                HttpMethod.GET,
-                new HttpEntity<>(headers),
-                new ParameterizedTypeReference<List<Answer>>(){});
-
-    	return responseEntity.getBody();
-	}
-	
-	private List<Answer> getMostRecentAnswerByUserId(Long userId){
-		headers.setContentType(MediaType.APPLICATION_JSON);
-		headers.setBasicAuth(AnswerUrlUName, AnswerUrlPass);
-        
-    	ResponseEntity<List<Answer>> responseEntity = restTemplate.exchange(
-        		AnswerUrl + "/users/" + userId.toString() + "?recent=true",
-                HttpMethod.GET,
-                new HttpEntity<>(headers),
-                new ParameterizedTypeReference<List<Answer>>(){});
 
-    	return responseEntity.getBody();
-		
-	}
-	
-	private List<Answer> getMostRecentAnswerByQuestionId(Long questionId){
-		headers.setContentType(MediaType.APPLICATION_JSON);
-		headers.setBasicAuth(AnswerUrlUName, AnswerUrlPass);
-        
-    	ResponseEntity<List<Answer>> responseEntity = restTemplate.exchange(
-        		AnswerUrl + "/questions/" + questionId.toString() + "?recent=true",
-                HttpMethod.GET,
-                new HttpEntity<>(headers),
-                new ParameterizedTypeReference<List<Answer>>(){});
-
-    	return responseEntity.getBody();
-	}
-	
 }
@@ -7,30 +7,44 @@
  * 		Retrieve all answers to a user-question combination
  */
 
+import java.io.IOException;
+import java.io.OutputStream;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Optional;
-import java.util.Set;
 
 public interface AnswerLogicService {
 
-	HashMap<Long, HashMap> getAllUserHashmap();
-	HashMap<Long, String> getHashmapByUserId(Long userId);
+	LongObjectHashMap<LongObjectHashMap<String>> getAllUserHashmap();
+	void writeAnswerMatrix(OutputStream out) throws IOException;
+	LongObjectHashMap<String> getHashmapByUserId(Long userId);
+	LongObjectHashMap<LongObjectHashMap<String>> getHashmapByUserIds(List<Long> userIds, List<Long> questionIds);
 	HashMap<String, List> getHashmapByQId(Long qId);
 	
-	Set<Long> youngerThan(int years);
-	Set<Long> atLeastAge(int years);
+	LongHashSet youngerThan(int years);
+	LongHashSet atLeastAge(int years);
+	LongHashSet ageBetween(int minYears, int maxYears);
 	
-	Set<Long> underHeight(int inches);
-	Set<Long> atLeastHeight(int inches);
+	LongHashSet underHeight(int inches);
+	LongHashSet atLeastHeight(int inches);
+	LongHashSet heightBetween(int minInches, int maxInches);
 	
-	Set<Long> underBMI(double bmi);
-	Set<Long> atLeastBMI(double bmi);
+	LongHashSet underBMI(double bmi);
+	LongHashSet atLeastBMI(double bmi);
+	LongHashSet bmiBetween(double minBmi, double maxBmi);
 	
-	Set<Long> userSelect(Long qId, String answer, String minAnswerDate);
-	Set<Long> userSelectMany(String Q_answer, String minAnswerDate);
+	LongHashSet userSelect(Long qId, String answer, String minAnswerDate);
+	LongHashSet userSelectMany(String Q_answer, String minAnswerDate);
 	
-	Set<Long> ansAtLeast(Long qId, Double rangeStart, String minAnswerDate);
-	Set<Long> ansUnder(Long qId, Double rangeEnd, String minAnswerDate);
+	LongHashSet ansAtLeast(Long qId, Double rangeStart, String minAnswerDate);
+	LongHashSet ansUnder(Long qId, Double rangeEnd, String minAnswerDate);
+	LongHashSet ansBetween(Long qId, Double rangeStart, Double rangeEnd, String minAnswerDate);
+	
+	LongHashSet selectUsers(CohortExpression expression);
+	
+	/* Returns an entity tag that changes whenever the answers served by the other methods may have changed, and that
+	 * differs between representations of the same answers, such as the JSON and the gzipped matrix of
+	 * /answer-logic/map. Read it before calling them, so that it is never newer than what they return. */
+	String getVersionTag(String representation);
 	
 }
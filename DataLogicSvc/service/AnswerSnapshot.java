@@ -0,0 +1,221 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+/*
+ * AnswerSnapshot is one immutable generation of the latest answer index: the most recent answer of every user to
+ * every question, keyed by questionId and then userId.
+ *
+ * Every user in the snapshot is also given a dense ordinal, their position in the ascending array of userIds. The
+ * cohort queries in AnswerLogicImpl evaluate to BitSets over these ordinals, so that several conditions can be
+ * combined with word-wide AND/OR/NOT instead of hash set lookups. Ordinals are only meaningful within the snapshot
+ * that assigned them.
+ *
+ * Answers that are compared as numbers or dates are also parsed once per snapshot into TypedColumns, and every
+ * question gets an InvertedAnswerIndex for exact answer conditions.
+ *
+ * withChanges() derives the next snapshot from a list of changes instead of from a full load. Questions without
+ * changes share their userId:Answer maps with this snapshot, and as long as the changes neither add nor remove a
+ * user the ordinals stay the same, so their columns and answer indexes are shared too.
+ */
+public class AnswerSnapshot {
+
+	private final LongObjectHashMap<LongObjectHashMap<Answer>> byQuestion;
+	private final long[] userIds;		//Ordinal to userId, ascending
+	private final TypedColumns typedColumns;
+	private final LongObjectHashMap<InvertedAnswerIndex> answerIndexes = new LongObjectHashMap<InvertedAnswerIndex>();
+
+	AnswerSnapshot(LongObjectHashMap<LongObjectHashMap<Answer>> byQuestion) {
+		this(byQuestion, null, null);
+	}
+
+	/*
+	 * If previous is given, its ordinals are kept, as are its columns and answer indexes of the questions not in
+	 * changedQuestions.
+	 */
+	private AnswerSnapshot(LongObjectHashMap<LongObjectHashMap<Answer>> byQuestion, AnswerSnapshot previous,
+						   LongHashSet changedQuestions) {
+		this.byQuestion = byQuestion;
+
+		if (previous != null) {
+			this.userIds = previous.userIds;
+		}
+		else {
+			LongHashSet allUserIds = new LongHashSet();
+			byQuestion.forEach((qId, userMap) -> userMap.forEach((userId, userAns) -> allUserIds.add(userId)));
+			this.userIds = allUserIds.toSortedArray();
+		}
+		
+		//Parsed once here so that requests against this snapshot never parse answer strings
+		this.typedColumns = new TypedColumns(this, previous == null ? null : previous.typedColumns, changedQuestions);
+		byQuestion.forEach((qId, userMap) -> {
+			InvertedAnswerIndex index = previous == null || changedQuestions.contains(qId) ? null : previous.answerIndexes.get(qId);
+			answerIndexes.put(qId, index != null ? index : new InvertedAnswerIndex(this, userMap.values()));
+		});
+	}
+
+	/*
+	 * Returns the snapshot these changes, applied in order, turn this one into. This snapshot is not modified.
+	 */
+	public AnswerSnapshot withChanges(List<AnswerChange> changes) {
+		//The last change to each user and question wins
+		LongObjectHashMap<LongObjectHashMap<AnswerChange>> lastChanges = new LongObjectHashMap<LongObjectHashMap<AnswerChange>>();
+		for (AnswerChange change : changes) {
+			LongObjectHashMap<AnswerChange> userChanges = lastChanges.get(change.getQuestionId());
+			if (userChanges == null) {
+				userChanges = new LongObjectHashMap<AnswerChange>();
+				lastChanges.put(change.getQuestionId(), userChanges);
+			}
+			userChanges.put(change.getUserId(), change);
+		}
+
+		LongObjectHashMap<LongObjectHashMap<Answer>> next = new LongObjectHashMap<LongObjectHashMap<Answer>>(byQuestion.size() + lastChanges.size());
+		byQuestion.forEach((qId, userMap) -> {
+			if (!lastChanges.containsKey(qId)) {
+				next.put(qId, userMap);
+			}
+		});
+		LongHashSet changedQuestions = new LongHashSet();
+		boolean[] usersChanged = new boolean[1];
+		lastChanges.forEach((qId, userChanges) -> {
+			changedQuestions.add(qId);
+			LongObjectHashMap<Answer> previous = byQuestion.get(qId);
+			LongObjectHashMap<Answer> userMap = new LongObjectHashMap<Answer>((previous == null ? 0 : previous.size()) + userChanges.size());
+			if (previous != null) {
+				previous.forEach((userId, userAns) -> {
+					if (!userChanges.containsKey(userId)) {
+						userMap.put(userId, userAns);
+					}
+				});
+			}
+			userChanges.forEach((userId, change) -> {
+				if (!change.isDeleted()) {
+					userMap.put(userId, change.toAnswer());
+					usersChanged[0] |= ordinalOf(userId) < 0;
+				}
+				else if (previous != null && previous.containsKey(userId)) {
+					usersChanged[0] = true;		//Checked below whether the user still has other answers
+				}
+			});
+			if (!userMap.isEmpty()) {
+				next.put(qId, userMap);
+			}
+		});
+
+		if (usersChanged[0] && !sameUsers(next)) {
+			return new AnswerSnapshot(next);
+		}
+		return new AnswerSnapshot(next, this, changedQuestions);
+	}
+
+	//True if next holds answers of exactly the users of this snapshot
+	private boolean sameUsers(LongObjectHashMap<LongObjectHashMap<Answer>> next) {
+		BitSet seen = new BitSet(userIds.length);
+		boolean[] added = new boolean[1];
+		next.forEach((qId, userMap) -> userMap.forEach((userId, userAns) -> {
+			int ordinal = ordinalOf(userId);
+			if (ordinal < 0) {
+				added[0] = true;
+			}
+			else {
+				seen.set(ordinal);
+			}
+		}));
+		return !added[0] && seen.cardinality() == userIds.length;
+	}
+
+	/*
+	 * Returns the latest answers of all users to a question, or an empty collection if the question is unanswered.
+	 */
+	public Collection<Answer> getByQuestionId(long qId) {
+		LongObjectHashMap<Answer> userMap = byQuestion.get(qId);
+		if (userMap == null) {
+			return Collections.emptyList();
+		}
+		return userMap.values();
+	}
+
+	/*
+	 * Returns the userId:Answer map of a question, or null if the question is unanswered. The map must not be
+	 * modified.
+	 */
+	public LongObjectHashMap<Answer> getAnswersByUser(long qId) {
+		return byQuestion.get(qId);
+	}
+
+	/*
+	 * Returns the latest answers of a user to all questions. The number of questions is small compared to the number
+	 * of users, so a probe per question is cheaper than maintaining a second userId-keyed copy of the index.
+	 */
+	public List<Answer> getByUserId(long userId) {
+		List<Answer> userAnsList = new ArrayList<Answer>();
+		for (LongObjectHashMap<Answer> userMap : byQuestion.values()) {
+			Answer userAns = userMap.get(userId);
+			if (userAns != null) {
+				userAnsList.add(userAns);
+			}
+		}
+		return userAnsList;
+	}
+
+	/*
+	 * Visits each question in the snapshot with its userId:Answer map. The maps must not be modified.
+	 */
+	public void forEachQuestion(LongObjectHashMap.EntryConsumer<LongObjectHashMap<Answer>> action) {
+		byQuestion.forEach(action);
+	}
+
+	public long[] getQuestionIds() {
+		return byQuestion.keys();
+	}
+
+	/*
+	 * Returns the answer:users index of a question, or null if the question is unanswered.
+	 */
+	public InvertedAnswerIndex getAnswerIndex(long qId) {
+		return answerIndexes.get(qId);
+	}
+
+	public TypedColumns getTypedColumns() {
+		return typedColumns;
+	}
+
+	public int userCount() {
+		return userIds.length;
+	}
+
+	/*
+	 * Returns the ordinal of a userId, or -1 if the user has no answers in this snapshot.
+	 */
+	public int ordinalOf(long userId) {
+		int ordinal = Arrays.binarySearch(userIds, userId);
+		return ordinal >= 0 ? ordinal : -1;
+	}
+
+	public long userIdAt(int ordinal) {
+		return userIds[ordinal];
+	}
+
+	/*
+	 * Returns a bitmap with every user in the snapshot set, the universe that NOT is taken against.
+	 */
+	public BitSet allUsers() {
+		BitSet bits = new BitSet(userIds.length);
+		bits.set(0, userIds.length);
+		return bits;
+	}
+
+	/*
+	 * Converts a bitmap of ordinals back to the userIds it represents.
+	 */
+	public LongHashSet toUserIds(BitSet bits) {
+		LongHashSet userIdSet = new LongHashSet(bits.cardinality());
+		for (int ordinal = bits.nextSetBit(0); ordinal >= 0; ordinal = bits.nextSetBit(ordinal + 1)) {
+			userIdSet.add(userIds[ordinal]);
+		}
+		return userIdSet;
+	}
+}
@@ -0,0 +1,237 @@
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+/*
+ * AnswerSnapshotFile saves an AnswerSnapshot to disk together with the change feed watermark it is up to date
+ * with, so that a restarted DataLogicSvc can start from it and replay the changes since, instead of loading every
+ * answer from AnswerSvc again.
+ *
+ * Only the answers are saved. The ordinals, bitmaps, typed columns and inverted indexes are derived from them
+ * again on reading, which takes far less time than fetching the answers and keeps the file independent of how
+ * those are laid out in memory.
+ *
+ * The file is laid out per question, column by column, with answers replaced by codes into a dictionary of the
+ * distinct answers, as repeated answers are the norm. All numbers are big-endian:
+ *
+ * 		int		MAGIC ("ANSS")
+ * 		short	VERSION
+ * 		long	watermark
+ * 		long	time of the last full load of the answers, in epoch milliseconds
+ * 		long	time written, in epoch milliseconds
+ * 		int		dictionary size, then per entry: int UTF-8 length, bytes
+ * 		int		question count, then per question:
+ * 					long questionId, int n,
+ * 					n longs userId, n longs answerDate epoch seconds (UTC, Long.MIN_VALUE for null),
+ * 					n ints answerDate nanos, n ints answer code (-1 for null)
+ * 		long	CRC32 of everything before it
+ *
+ * A file is written to a temporary file next to it and then moved over it, so a reader never sees a partly
+ * written one. It is read through a MappedByteBuffer, so that it is paged in straight from the page cache rather
+ * than copied through a stream; as a single mapping, it is limited to 2GB. A file that is missing its checksum,
+ * has a bad one or is of another version is rejected with an IOException.
+ */
+public class AnswerSnapshotFile {
+
+	static final int MAGIC = 0x414E5353;		//"ANSS"
+	static final short VERSION = 1;
+
+	private final Path path;
+
+	public AnswerSnapshotFile(Path path) {
+		this.path = path;
+	}
+
+	public Path getPath() {
+		return path;
+	}
+
+	public void write(AnswerSnapshot snapshot, long watermark, long fullLoadedAtMs) throws IOException {
+		HashMap<String, Integer> codes = new HashMap<String, Integer>();
+		List<String> dictionary = new ArrayList<String>();
+		snapshot.forEachQuestion((qId, userMap) -> userMap.forEach((userId, answer) -> {
+			if (answer.getAnswer() != null && !codes.containsKey(answer.getAnswer())) {
+				codes.put(answer.getAnswer(), dictionary.size());
+				dictionary.add(answer.getAnswer());
+			}
+		}));
+
+		Path temp = path.resolveSibling(path.getFileName() + ".tmp");
+		try (FileOutputStream file = new FileOutputStream(temp.toFile())) {
+			CRC32 crc = new CRC32();
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new CheckedOutputStream(file, crc), 64 * 1024));
+			out.writeInt(MAGIC);
+			out.writeShort(VERSION);
+			out.writeLong(watermark);
+			out.writeLong(fullLoadedAtMs);
+			out.writeLong(System.currentTimeMillis());
+
+			out.writeInt(dictionary.size());
+			for (String answer : dictionary) {
+				byte[] bytes = answer.getBytes(StandardCharsets.UTF_8);
+				out.writeInt(bytes.length);
+				out.write(bytes);
+			}
+
+			long[] questionIds = snapshot.getQuestionIds();
+			out.writeInt(questionIds.length);
+			for (long qId : questionIds) {
+				writeQuestion(out, qId, snapshot.getByQuestionId(qId), codes);
+			}
+			out.flush();
+
+			new DataOutputStream(file).writeLong(crc.getValue());
+			file.getChannel().force(true);
+		}
+		catch (IOException | RuntimeException e) {
+			Files.deleteIfExists(temp);
+			throw e;
+		}
+		Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	private static void writeQuestion(DataOutputStream out, long qId, Collection<Answer> answers,
+									  HashMap<String, Integer> codes) throws IOException {
+		List<Answer> rows = new ArrayList<Answer>(answers);
+		out.writeLong(qId);
+		out.writeInt(rows.size());
+		for (Answer answer : rows) {
+			out.writeLong(answer.getUserId());
+		}
+		for (Answer answer : rows) {
+			out.writeLong(answer.getAnswerDate() == null ? Long.MIN_VALUE : answer.getAnswerDate().toEpochSecond(ZoneOffset.UTC));
+		}
+		for (Answer answer : rows) {
+			out.writeInt(answer.getAnswerDate() == null ? 0 : answer.getAnswerDate().getNano());
+		}
+		for (Answer answer : rows) {
+			out.writeInt(answer.getAnswer() == null ? -1 : codes.get(answer.getAnswer()));
+		}
+	}
+
+	/*
+	 * Reads the saved snapshot, or returns null if there is no file.
+	 */
+	public Saved read() throws IOException {
+		if (!Files.exists(path)) {
+			return null;
+		}
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+			long size = channel.size();
+			if (size > Integer.MAX_VALUE) {
+				throw new IOException(path + " is too large to map");
+			}
+			if (size < 8) {
+				throw new IOException(path + " is truncated");
+			}
+			MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+
+			CRC32 crc = new CRC32();
+			ByteBuffer checked = buffer.duplicate();
+			checked.limit((int) size - 8);
+			crc.update(checked);
+			if (buffer.getLong((int) size - 8) != crc.getValue()) {
+				throw new IOException(path + " does not match its checksum");
+			}
+			return read(buffer);
+		}
+		catch (RuntimeException e) {
+			//Only a file written by another version can get past the checksum and still not parse
+			throw new IOException(path + " cannot be read", e);
+		}
+	}
+
+	private Saved read(ByteBuffer in) throws IOException {
+		if (in.getInt() != MAGIC) {
+			throw new IOException(path + " is not an answer snapshot");
+		}
+		short version = in.getShort();
+		if (version != VERSION) {
+			throw new IOException(path + " has unsupported version " + version);
+		}
+		long watermark = in.getLong();
+		long fullLoadedAtMs = in.getLong();
+		long writtenAtMs = in.getLong();
+
+		String[] dictionary = new String[in.getInt()];
+		for (int i = 0; i < dictionary.length; i++) {
+			byte[] bytes = new byte[in.getInt()];
+			in.get(bytes);
+			dictionary[i] = new String(bytes, StandardCharsets.UTF_8);
+		}
+
+		int questions = in.getInt();
+		LongObjectHashMap<LongObjectHashMap<Answer>> byQuestion = new LongObjectHashMap<LongObjectHashMap<Answer>>(questions);
+		for (int q = 0; q < questions; q++) {
+			long qId = in.getLong();
+			int n = in.getInt();
+			int userIdsAt = in.position();
+			int secondsAt = userIdsAt + 8 * n;
+			int nanosAt = secondsAt + 8 * n;
+			int codesAt = nanosAt + 4 * n;
+
+			LongObjectHashMap<Answer> userMap = new LongObjectHashMap<Answer>(n);
+			for (int i = 0; i < n; i++) {
+				long userId = in.getLong(userIdsAt + 8 * i);
+				long seconds = in.getLong(secondsAt + 8 * i);
+				int code = in.getInt(codesAt + 4 * i);
+				LocalDateTime answerDate = seconds == Long.MIN_VALUE ? null
+										   : LocalDateTime.ofEpochSecond(seconds, in.getInt(nanosAt + 4 * i), ZoneOffset.UTC);
+				userMap.put(userId, new Answer(userId, qId, code < 0 ? null : dictionary[code], answerDate));
+			}
+			byQuestion.put(qId, userMap);
+			in.position(codesAt + 4 * n);
+		}
+		return new Saved(new AnswerSnapshot(byQuestion), watermark, fullLoadedAtMs, writtenAtMs);
+	}
+
+	/*
+	 * A snapshot as read back, with the watermark it was up to date with.
+	 */
+	public static final class Saved {
+		private final AnswerSnapshot snapshot;
+		private final long watermark;
+		private final long fullLoadedAtMs;
+		private final long writtenAtMs;
+
+		Saved(AnswerSnapshot snapshot, long watermark, long fullLoadedAtMs, long writtenAtMs) {
+			this.snapshot = snapshot;
+			this.watermark = watermark;
+			this.fullLoadedAtMs = fullLoadedAtMs;
+			this.writtenAtMs = writtenAtMs;
+		}
+
+		public AnswerSnapshot getSnapshot() {
+			return snapshot;
+		}
+
+		public long getWatermark() {
+			return watermark;
+		}
+
+		public long getFullLoadedAtMs() {
+			return fullLoadedAtMs;
+		}
+
+		public long getWrittenAtMs() {
+			return writtenAtMs;
+		}
+	}
+}
@@ -0,0 +1,563 @@
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.MediaType;
+import org.springframework.stereotype.Component;
+
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.MappingIterator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+import java.io.BufferedReader;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.UncheckedIOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+/*
+ * AnswerSvcClient is DataLogicSvc's client for AnswerSvc (DataSvc), built on the JDK HttpClient.
+ *
+ * Requests are sent asynchronously and every method returns a CompletableFuture, so independent requests are in
+ * flight at the same time without a thread parked per request. All requests share one HttpClient, whose pool keeps
+ * connections to AnswerSvc alive between requests (see AnswerLogicApplication for the keep-alive setting).
+ *
+ * Response bodies are decoded as they arrive on a separate pool of daemon threads, so a slow body never holds up
+ * the HttpClient's own threads.
+ *
+ * Every request is bounded by answer_request_timeout_ms until its response headers arrive, and connecting by
+ * answer_connect_timeout_ms. A request that fails to connect, times out or gets a 502/503/504 is retried up to
+ * answer_retry_attempts times in all, with exponential backoff from answer_retry_backoff_ms and random jitter. Only
+ * the sending of a request is retried, never a body that has started to reach the consumer. A call that still
+ * fails counts towards a CircuitBreaker, which after answer_circuit_failure_threshold failed calls in a row refuses
+ * calls for answer_circuit_open_ms instead of letting each one wait out its own timeouts and retries.
+ *
+ * The userId range is requested with If-None-Match carrying the ETag of the previous range, so that a reload of
+ * unchanged answers costs one empty 304 response (see SlicedAnswerLoader).
+ *
+ * Changes to the answers can also be followed as AnswerSvc pushes them, over a long-lived /answers/changes/stream
+ * request read on one of the decoding threads (see AnswerChangeSubscription).
+ *
+ * Each request for answers, the userId range or changes is timed in three phases, tagged with the request:
+ * 		answer.client.request			from sending the request until its response headers arrive, retries included,
+ * 										which covers AnswerSvc's work up to its first byte
+ * 		answer.client.transfer			time spent waiting for body bytes to arrive
+ * 		answer.client.decode			the rest of the time spent reading the body: decoding it and, for answers,
+ * 										handing them to the consumer
+ * along with the body size in answer.client.response.bytes.
+ *
+ * Every request carries a traceparent header, a child of the TraceContext current on the calling thread, or a new
+ * trace if there is none, so that AnswerSvc's side of it can be found by trace id.
+ */
+@Component
+public class AnswerSvcClient {
+
+	private static final MediaType NDJSON = MediaType.parseMediaType("application/x-ndjson");
+	private static final MediaType COLUMNAR = MediaType.parseMediaType(AnswerColumnarDecoder.MEDIA_TYPE);
+	private static final String ACCEPT_ANSWERS = COLUMNAR + ", " + NDJSON + ", " + MediaType.APPLICATION_JSON_VALUE;
+	private static final String COLUMNS = "userId,questionId,answerDate,answer";
+
+	private final String answerUrl;
+	private final String authorization;
+	private final HttpClient httpClient;
+	private final ExecutorService decodeExecutor;
+	private final ScheduledExecutorService watchdogExecutor;
+	private final ObjectReader answerReader;
+	private final ObjectReader jsonReader;
+	private final ObjectReader changeReader;
+
+	private final Duration requestTimeout;
+	private final int retryAttempts;
+	private final long retryBackoffMs;
+	private final CircuitBreaker circuitBreaker;
+	private final Counter retries;
+
+	private final ExchangeMetrics userIdRangeMetrics;
+	private final ExchangeMetrics watermarkMetrics;
+	private final ExchangeMetrics changesMetrics;
+	private final ExchangeMetrics answersMetrics;
+
+	public AnswerSvcClient(ObjectMapper objectMapper, ObjectProvider<MeterRegistry> meterRegistry,
+						   @Value("${answer_url}") String answerUrl,
+						   @Value("${answer_url_uname}") String answerUrlUName,
+						   @Value("${answer_url_pass}") String answerUrlPass,
+						   @Value("${answer_connect_timeout_ms:5000}") long connectTimeoutMs,
+						   @Value("${answer_request_timeout_ms:30000}") long requestTimeoutMs,
+						   @Value("${answer_retry_attempts:3}") int retryAttempts,
+						   @Value("${answer_retry_backoff_ms:200}") long retryBackoffMs,
+						   @Value("${answer_circuit_failure_threshold:5}") int circuitFailureThreshold,
+						   @Value("${answer_circuit_open_ms:30000}") long circuitOpenMs) {
+		if (retryAttempts < 1) {
+			throw new IllegalArgumentException("answer_retry_attempts must be at least 1");
+		}
+		this.answerUrl = answerUrl;
+		this.authorization = "Basic " + Base64.getEncoder()
+				.encodeToString((answerUrlUName + ":" + answerUrlPass).getBytes(StandardCharsets.UTF_8));
+		this.decodeExecutor = Executors.newCachedThreadPool(daemonThreads("answersvc-decode-"));
+		this.watchdogExecutor = Executors.newSingleThreadScheduledExecutor(daemonThreads("answersvc-watchdog-"));
+		this.httpClient = HttpClient.newBuilder()
+				.version(HttpClient.Version.HTTP_1_1)
+				.connectTimeout(Duration.ofMillis(connectTimeoutMs))
+				.executor(Executors.newCachedThreadPool(daemonThreads("answersvc-http-")))
+				.build();
+		this.answerReader = objectMapper.readerFor(Answer.class);
+		this.jsonReader = objectMapper.reader();
+		this.changeReader = objectMapper.readerFor(AnswerChange.class)
+				.without(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES);
+
+		this.requestTimeout = Duration.ofMillis(requestTimeoutMs);
+		this.retryAttempts = retryAttempts;
+		this.retryBackoffMs = retryBackoffMs;
+		this.circuitBreaker = new CircuitBreaker(circuitFailureThreshold, circuitOpenMs);
+
+		MeterRegistry registry = meterRegistry.getIfAvailable(SimpleMeterRegistry::new);
+		this.retries = Counter.builder("answer.client.retries")
+				.description("Requests to AnswerSvc sent again after a failed attempt")
+				.register(registry);
+		Gauge.builder("answer.client.circuit.open", circuitBreaker, breaker -> breaker.getState() == CircuitBreaker.State.CLOSED ? 0 : 1)
+			 .description("1 while calls to AnswerSvc are being refused or trialled after repeated failures")
+			 .register(registry);
+		this.userIdRangeMetrics = new ExchangeMetrics(registry, "userIdRange");
+		this.watermarkMetrics = new ExchangeMetrics(registry, "watermark");
+		this.changesMetrics = new ExchangeMetrics(registry, "changes");
+		this.answersMetrics = new ExchangeMetrics(registry, "answers");
+	}
+
+	/*
+	 * Completes with the userId range of the most recent answers. If ifNoneMatch is the ETag of an earlier range and
+	 * no answer has changed since, AnswerSvc answers 304 and the result is marked not modified instead.
+	 */
+	public CompletableFuture<UserIdRange> fetchUserIdRange(String ifNoneMatch) {
+		HttpRequest.Builder request = requestBuilder(answerUrl + "/userIdRange?recent=true", MediaType.APPLICATION_JSON_VALUE);
+		if (ifNoneMatch != null) {
+			request.header("If-None-Match", ifNoneMatch);
+		}
+		return send(request.build(), userIdRangeMetrics)
+				.thenApplyAsync(response -> {
+					try (InputStream body = userIdRangeMetrics.meter(response.body())) {
+						String etag = response.headers().firstValue("ETag").orElse(null);
+						if (response.statusCode() == 304) {
+							return new UserIdRange(null, etag, true);
+						}
+						if (response.statusCode() == 404 || response.statusCode() == 204) {
+							return new UserIdRange(null, etag, false);
+						}
+						checkStatus(response);
+						JsonNode range = jsonReader.readTree(body);
+						return new UserIdRange(new long[] { range.get("fromUserId").asLong(), range.get("toUserId").asLong() },
+											   etag, false);
+					}
+					catch (IOException e) {
+						throw new UncheckedIOException(e);
+					}
+				}, decodeExecutor);
+	}
+
+	/*
+	 * The userId range reported by AnswerSvc, with the ETag of the answers it was read from.
+	 */
+	public static final class UserIdRange {
+		private final long[] range;
+		private final String etag;
+		private final boolean notModified;
+
+		UserIdRange(long[] range, String etag, boolean notModified) {
+			this.range = range;
+			this.etag = etag;
+			this.notModified = notModified;
+		}
+
+		/*
+		 * Returns {smallest userId, largest userId + 1}, or null if AnswerSvc has no answers, predates
+		 * /answers/userIdRange or answered not modified.
+		 */
+		public long[] getRange() {
+			return range == null ? null : range.clone();
+		}
+
+		//Null if AnswerSvc does not version its answers
+		public String getEtag() {
+			return etag;
+		}
+
+		public boolean isNotModified() {
+			return notModified;
+		}
+	}
+
+	/*
+	 * Completes with the watermark to follow /answers/changes from, or with null if AnswerSvc has no change feed. It
+	 * must be fetched before the answers it is to follow changes to.
+	 */
+	public CompletableFuture<Long> fetchChangeWatermark() {
+		return send(request(answerUrl + "/changes", MediaType.APPLICATION_JSON_VALUE), watermarkMetrics)
+				.thenApplyAsync(response -> {
+					try (InputStream body = watermarkMetrics.meter(response.body())) {
+						if (response.statusCode() == 404) {
+							return null;
+						}
+						checkStatus(response);
+						return jsonReader.readTree(body).get("watermark").asLong();
+					}
+					catch (IOException e) {
+						throw new UncheckedIOException(e);
+					}
+				}, decodeExecutor);
+	}
+
+	/*
+	 * Completes with the changes to the most recent answers after watermark. See ChangeBatch.
+	 */
+	public CompletableFuture<ChangeBatch> fetchChanges(long watermark) {
+		return send(request(answerUrl + "/changes?sinceId=" + watermark, MediaType.APPLICATION_JSON_VALUE), changesMetrics)
+				.thenApplyAsync(response -> {
+					try (InputStream body = changesMetrics.meter(response.body())) {
+						checkStatus(response);
+						return readChangeBatch(jsonReader.readTree(body));
+					}
+					catch (IOException e) {
+						throw new UncheckedIOException(e);
+					}
+				}, decodeExecutor);
+	}
+
+	/*
+	 * Subscribes to /answers/changes/stream after watermark and hands each batch pushed by AnswerSvc to the handler
+	 * as it arrives, for as long as the handler returns true. The future completes once the stream ends, either
+	 * because AnswerSvc ended it or because the handler returned false. The connection is dropped, failing the
+	 * future, if nothing arrives for idleTimeoutMs; AnswerSvc sends a batch at least every answer_stream_heartbeat_ms.
+	 */
+	public CompletableFuture<Void> streamChanges(long watermark, long idleTimeoutMs, Predicate<ChangeBatch> handler) {
+		return send(request(answerUrl + "/changes/stream?sinceId=" + watermark, MediaType.TEXT_EVENT_STREAM_VALUE))
+				.thenAcceptAsync(response -> {
+					InputStream body = response.body();
+					AtomicLong lastReadMs = new AtomicLong(System.currentTimeMillis());
+					ScheduledFuture<?> watchdog = watchdogExecutor.scheduleWithFixedDelay(() -> {
+						if (System.currentTimeMillis() - lastReadMs.get() > idleTimeoutMs) {
+							closeQuietly(body);		//Fails the blocked read below
+						}
+					}, idleTimeoutMs, Math.max(idleTimeoutMs / 4, 1), TimeUnit.MILLISECONDS);
+					try (BufferedReader lines = new BufferedReader(new InputStreamReader(body, StandardCharsets.UTF_8))) {
+						checkStatus(response);
+						readEvents(lines, lastReadMs, handler);
+					}
+					catch (IOException e) {
+						throw new UncheckedIOException(e);
+					}
+					finally {
+						watchdog.cancel(false);
+					}
+				}, decodeExecutor);
+	}
+
+	//Parses the text/event-stream format, dispatching the data of each "changes" event
+	private void readEvents(BufferedReader lines, AtomicLong lastReadMs, Predicate<ChangeBatch> handler) throws IOException {
+		String event = "message";
+		StringBuilder data = new StringBuilder();
+		String line;
+		while ((line = lines.readLine()) != null) {
+			lastReadMs.set(System.currentTimeMillis());
+			if (line.isEmpty()) {
+				if (data.length() > 0 && event.equals("changes") 
+						&& !handler.test(readChangeBatch(jsonReader.readTree(data.toString())))) {
+					return;
+				}
+				event = "message";
+				data.setLength(0);
+				continue;
+			}
+			if (line.startsWith(":")) {
+				continue;		//Comment
+			}
+			int colon = line.indexOf(':');
+			String field = colon < 0 ? line : line.substring(0, colon);
+			String value = colon < 0 ? "" : line.substring(line.startsWith(": ", colon) ? colon + 2 : colon + 1);
+			if (field.equals("event")) {
+				event = value;
+			}
+			else if (field.equals("data")) {
+				if (data.length() > 0) {
+					data.append('\n');
+				}
+				data.append(value);
+			}
+		}
+	}
+
+	private ChangeBatch readChangeBatch(JsonNode batch) throws IOException {
+		List<AnswerChange> changes = new ArrayList<AnswerChange>();
+		for (JsonNode change : batch.get("changes")) {
+			changes.add(changeReader.readValue(change));
+		}
+		return new ChangeBatch(batch.get("watermark").asLong(), batch.get("more").asBoolean(), changes);
+	}
+
+	/*
+	 * One batch of /answers/changes: the changes in order, the watermark to ask for the next batch with, and whether
+	 * more changes were already waiting.
+	 */
+	public static final class ChangeBatch {
+		private final long watermark;
+		private final boolean more;
+		private final List<AnswerChange> changes;
+
+		ChangeBatch(long watermark, boolean more, List<AnswerChange> changes) {
+			this.watermark = watermark;
+			this.more = more;
+			this.changes = changes;
+		}
+
+		public long getWatermark() {
+			return watermark;
+		}
+
+		public boolean isMore() {
+			return more;
+		}
+
+		public List<AnswerChange> getChanges() {
+			return changes;
+		}
+	}
+
+	/*
+	 * Hands each most recent answer of users in [fromUserId, toUserId), or of all users if both are null, to the
+	 * consumer as it is decoded. The future completes once the whole body has been read.
+	 */
+	public CompletableFuture<Void> fetchMostRecentAnswers(Long fromUserId, Long toUserId, Consumer<Answer> consumer) {
+		String url = answerUrl + "?recent=true&columns=" + COLUMNS;
+		if (fromUserId != null) {
+			url += "&fromUserId=" + fromUserId + "&toUserId=" + toUserId;
+		}
+
+		return send(request(url, ACCEPT_ANSWERS), answersMetrics)
+				.thenAcceptAsync(response -> {
+					try (InputStream body = answersMetrics.meter(response.body())) {
+						checkStatus(response);
+						String contentType = response.headers().firstValue("Content-Type").orElse(MediaType.APPLICATION_JSON_VALUE);
+						if (COLUMNAR.includes(MediaType.parseMediaType(contentType))) {
+							AnswerColumnarDecoder.read(body, consumer);
+						}
+						else {
+							readAnswers(body, consumer);
+						}
+					}
+					catch (IOException e) {
+						throw new UncheckedIOException(e);
+					}
+				}, decodeExecutor);
+	}
+
+	private HttpRequest request(String url, String accept) {
+		return requestBuilder(url, accept).build();
+	}
+
+	private HttpRequest.Builder requestBuilder(String url, String accept) {
+		TraceContext trace = TraceContext.current();
+		return HttpRequest.newBuilder(URI.create(url))
+				.timeout(requestTimeout)
+				.header("Accept", accept)
+				.header("Authorization", authorization)
+				.header(TraceContext.HEADER, (trace == null ? TraceContext.root() : trace.child()).toHeader())
+				.GET();
+	}
+
+	/*
+	 * The phase meters of one kind of request, see above.
+	 */
+	private static final class ExchangeMetrics {
+		private final Timer request;
+		private final Timer transfer;
+		private final Timer decode;
+		private final DistributionSummary bytes;
+
+		ExchangeMetrics(MeterRegistry registry, String request) {
+			this.request = Timer.builder("answer.client.request")
+					.description("Time from sending a request to AnswerSvc until its response headers arrive")
+					.tag("request", request)
+					.register(registry);
+			this.transfer = Timer.builder("answer.client.transfer")
+					.description("Time spent waiting for the body of an AnswerSvc response to arrive")
+					.tag("request", request)
+					.register(registry);
+			this.decode = Timer.builder("answer.client.decode")
+					.description("Time spent reading the body of an AnswerSvc response other than waiting for it")
+					.tag("request", request)
+					.register(registry);
+			this.bytes = DistributionSummary.builder("answer.client.response.bytes")
+					.description("Body bytes of an AnswerSvc response")
+					.baseUnit("bytes")
+					.tag("request", request)
+					.register(registry);
+		}
+
+		//Times the body from now until it is closed, splitting the time between reads and everything else
+		InputStream meter(InputStream body) {
+			long startNs = System.nanoTime();
+			return new FilterInputStream(body) {
+				private long readNanos;
+				private long count;
+				private boolean closed;
+
+				@Override
+				public int read() throws IOException {
+					long readStartNs = System.nanoTime();
+					int b = super.read();
+					readNanos += System.nanoTime() - readStartNs;
+					if (b >= 0) {
+						count++;
+					}
+					return b;
+				}
+
+				@Override
+				public int read(byte[] b, int off, int len) throws IOException {
+					long readStartNs = System.nanoTime();
+					int n = super.read(b, off, len);
+					readNanos += System.nanoTime() - readStartNs;
+					if (n > 0) {
+						count += n;
+					}
+					return n;
+				}
+
+				@Override
+				public void close() throws IOException {
+					if (!closed) {
+						closed = true;
+						transfer.record(readNanos, TimeUnit.NANOSECONDS);
+						decode.record(System.nanoTime() - startNs - readNanos, TimeUnit.NANOSECONDS);
+						bytes.record(count);
+					}
+					super.close();
+				}
+			};
+		}
+	}
+
+	/*
+	 * Sends a request through the circuit breaker, retrying it as described above. Completes with the response of
+	 * the last attempt, whose status the caller still has to check.
+	 */
+	private CompletableFuture<HttpResponse<InputStream>> send(HttpRequest request, ExchangeMetrics metrics) {
+		long startNs = System.nanoTime();
+		return send(request).whenComplete((response, error) -> {
+			if (response != null) {
+				metrics.request.record(System.nanoTime() - startNs, TimeUnit.NANOSECONDS);
+			}
+		});
+	}
+
+	//Untimed, for the long-lived change stream
+	private CompletableFuture<HttpResponse<InputStream>> send(HttpRequest request) {
+		if (!circuitBreaker.tryAcquire()) {
+			CompletableFuture<HttpResponse<InputStream>> refused = new CompletableFuture<HttpResponse<InputStream>>();
+			refused.completeExceptionally(new CircuitBreaker.OpenException("AnswerSvc calls suspended after repeated failures"));
+			return refused;
+		}
+		return attempt(request, 1);
+	}
+
+	private CompletableFuture<HttpResponse<InputStream>> attempt(HttpRequest request, int attempt) {
+		return httpClient.sendAsync(request, HttpResponse.BodyHandlers.ofInputStream())
+				.handle((response, error) -> {
+					if (error == null && !isRetryable(response.statusCode())) {
+						circuitBreaker.recordSuccess();		//Any other status means AnswerSvc is up
+						return CompletableFuture.completedFuture(response);
+					}
+					if (attempt >= retryAttempts) {
+						circuitBreaker.recordFailure();
+						if (error == null) {
+							return CompletableFuture.completedFuture(response);
+						}
+						CompletableFuture<HttpResponse<InputStream>> failed = new CompletableFuture<HttpResponse<InputStream>>();
+						failed.completeExceptionally(error instanceof CompletionException ? error.getCause() : error);
+						return failed;
+					}
+					if (response != null) {
+						closeQuietly(response.body());
+					}
+					retries.increment();
+					return CompletableFuture.runAsync(() -> {}, CompletableFuture.delayedExecutor(backoffMs(attempt), TimeUnit.MILLISECONDS))
+							.thenCompose(ignored -> attempt(request, attempt + 1));
+				})
+				.thenCompose(next -> next);
+	}
+
+	//Doubles per attempt, with jitter of up to half the delay so that concurrent slices do not retry in lockstep
+	private long backoffMs(int attempt) {
+		long delay = retryBackoffMs << Math.min(attempt - 1, 16);
+		return delay - (long) (ThreadLocalRandom.current().nextDouble() * delay / 2);
+	}
+
+	private static boolean isRetryable(int status) {
+		return status == 502 || status == 503 || status == 504;
+	}
+
+	private static void closeQuietly(InputStream body) {
+		try {
+			body.close();
+		}
+		catch (IOException e) {
+			//The connection is discarded either way
+		}
+	}
+
+	//Reads a JSON array or newline-delimited JSON, which AnswerSvc ends with an {"error": ...} record if it fails
+	private void readAnswers(InputStream body, Consumer<Answer> consumer) throws IOException {
+		try (MappingIterator<JsonNode> rows = jsonReader.forType(JsonNode.class).readValues(body)) {
+			while (rows.hasNextValue()) {
+				JsonNode row = rows.nextValue();
+				if (row.has("error")) {
+					throw new IOException("AnswerSvc failed while streaming answers: " + row.get("error").asText());
+				}
+				consumer.accept(answerReader.readValue(row));
+			}
+		}
+	}
+
+	private static void checkStatus(HttpResponse<?> response) throws IOException {
+		if (response.statusCode() / 100 != 2) {
+			throw new IOException("AnswerSvc returned " + response.statusCode() + " for " + response.uri());
+		}
+	}
+
+	private static ThreadFactory daemonThreads(String prefix) {
+		AtomicInteger count = new AtomicInteger();
+		return runnable -> {
+			Thread thread = new Thread(runnable, prefix + count.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		};
+	}
+}
@@ -0,0 +1,131 @@
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.function.BiConsumer;
+
+/*
+ * InvertedAnswerIndex maps each distinct answer to one question onto the users who gave it, so that exact answer
+ * conditions look up their answers instead of walking every user's answer to the question.
+ *
+ * Each answer's posting stores the ordinals of its users in an int[] rather than a BitSet, since a BitSet is as long
+ * as the highest ordinal it holds and a free-text question has as many postings as it has users. Alongside the
+ * ordinals the posting keeps the epoch second of each user's answer, the date column minAnswerDate is checked
+ * against, and the earliest and latest of those seconds so that most date filters accept or reject a posting whole.
+ *
+ * Built once per AnswerSnapshot and never modified.
+ */
+public class InvertedAnswerIndex {
+
+	private static final long UNDATED = Long.MIN_VALUE;
+
+	/*
+	 * The users giving one answer. ordinals, answerSeconds and answers are parallel arrays.
+	 */
+	static class Posting {
+
+		final int[] ordinals;
+		final long[] answerSeconds;			//Epoch second (UTC) of each user's answer, UNDATED if it has no date
+		final List<Answer> answers;
+		final long earliestSecond;
+		final long latestSecond;
+
+		Posting(int[] ordinals, long[] answerSeconds, List<Answer> answers) {
+			this.ordinals = ordinals;
+			this.answerSeconds = answerSeconds;
+			this.answers = Collections.unmodifiableList(answers);
+
+			long earliest = Long.MAX_VALUE;
+			long latest = Long.MIN_VALUE;
+			for (long second : answerSeconds) {
+				earliest = Math.min(earliest, second);
+				latest = Math.max(latest, second);
+			}
+			this.earliestSecond = earliest;
+			this.latestSecond = latest;
+		}
+
+		//Sets the ordinal of every user in the posting whose answer is no older than minSecond
+		void select(long minSecond, BitSet bits) {
+			if (latestSecond < minSecond) {
+				return;
+			}
+			if (earliestSecond >= minSecond) {
+				for (int ordinal : ordinals) {
+					bits.set(ordinal);
+				}
+				return;
+			}
+			for (int i = 0; i < ordinals.length; i++) {
+				if (answerSeconds[i] >= minSecond) {
+					bits.set(ordinals[i]);
+				}
+			}
+		}
+	}
+
+	private final HashMap<String, Posting> postings;
+
+	InvertedAnswerIndex(AnswerSnapshot snapshot, Collection<Answer> questionAnswers) {
+		//Answers are grouped first so that every posting's arrays are allocated at their final size
+		HashMap<String, List<Answer>> grouped = new HashMap<String, List<Answer>>();
+		for (Answer currAns : questionAnswers) {
+			List<Answer> group = grouped.get(currAns.getAnswer());
+			if (group == null) {
+				group = new ArrayList<Answer>(1);
+				grouped.put(currAns.getAnswer(), group);
+			}
+			group.add(currAns);
+		}
+
+		this.postings = new HashMap<String, Posting>(grouped.size() * 4 / 3 + 1);
+		grouped.forEach((answer, group) -> {
+			int[] ordinals = new int[group.size()];
+			long[] answerSeconds = new long[group.size()];
+			for (int i = 0; i < ordinals.length; i++) {
+				Answer currAns = group.get(i);
+				ordinals[i] = snapshot.ordinalOf(currAns.getUserId());
+				answerSeconds[i] = currAns.getAnswerDate() == null ? UNDATED
+								   : currAns.getAnswerDate().toEpochSecond(ZoneOffset.UTC);
+			}
+			((ArrayList<Answer>) group).trimToSize();
+			postings.put(answer, new Posting(ordinals, answerSeconds, group));
+		});
+	}
+
+	/*
+	 * Returns the ordinals of users whose answer is one of answers, ignoring answers older than minSecond or
+	 * without a date.
+	 */
+	public BitSet select(Collection<String> answers, long minSecond) {
+		BitSet bits = new BitSet();
+		for (String answer : answers) {
+			Posting posting = postings.get(answer);
+			if (posting != null) {
+				posting.select(minSecond, bits);
+			}
+		}
+		return bits;
+	}
+
+	/*
+	 * Passes each distinct answer with the ordinals of the users who gave it. The arrays are shared with the index
+	 * and must not be modified.
+	 */
+	public void forEachPosting(BiConsumer<String, int[]> action) {
+		postings.forEach((answer, posting) -> action.accept(answer, posting.ordinals));
+	}
+
+	/*
+	 * Returns a new answer:list of Answers map for the question. The lists are shared with the index and must not
+	 * be modified.
+	 */
+	public HashMap<String, List> groupByAnswer() {
+		HashMap<String, List> hmap = new HashMap<String, List>(postings.size() * 4 / 3 + 1);
+		postings.forEach((answer, posting) -> hmap.put(answer, posting.answers));
+		return hmap;
+	}
+}
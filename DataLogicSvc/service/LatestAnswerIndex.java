@@ -0,0 +1,359 @@
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Supplier;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+
+/*
+ * LatestAnswerIndex keeps the most recent answer of every user to every question resident in memory, so that
+ * AnswerLogicImpl can serve its queries without a round trip to AnswerSvc per request.
+ *
+ * The index is held as an immutable AnswerSnapshot. It is loaded from /answers?recent=true and reloaded once it is
+ * older than maxStalenessMs. The loader returns the answers already grouped by questionId and userId (see
+ * SlicedAnswerLoader), so a reload never holds a full List<Answer> copy of the table. A reload builds a new snapshot
+ * off to the side and swaps it in whole, so readers keep using the previous snapshot while it runs and never see a
+ * half-built one.
+ *
+ * Once loaded, the index follows AnswerSvc's change feed: a reload fetches only the answers changed since the
+ * previous one and derives the next snapshot from the current one (see AnswerSnapshot.withChanges()). The watermark
+ * of the feed is taken before every full load, so no change is missed in between. Every fullReloadMs, or whenever
+ * the feed fails or AnswerSvc has none, the whole index is loaded again instead. Changes pushed by AnswerSvc can
+ * also be applied as they arrive with applyChanges(), which keeps the index fresh without any reload.
+ *
+ * The index can be saved to an AnswerSnapshotFile with save() and, after a restart, started from it with restore()
+ * instead of a full load: only the changes made since it was saved are then read.
+ *
+ * The loader returns null when AnswerSvc reports that no answer has changed since the previous load, in which case
+ * the current snapshot is kept and counts as freshly loaded.
+ *
+ * Once the first snapshot is loaded, request threads never wait on AnswerSvc: a request that finds the index stale
+ * starts a reload in the background and is answered from the current snapshot. Served answers are therefore at most
+ * maxStalenessMs plus one reload old.
+ *
+ * Building each snapshot, which parses the typed columns and builds the answer indexes, is timed by
+ * answer.index.build, tagged with kind full or changes. Reads are counted by answer.index.reads with a result of
+ * fresh, stale (answered from a snapshot past the staleness bound) or loading (waited for the first load), so the
+ * share of fresh reads is the index's hit ratio.
+ */
+public class LatestAnswerIndex {
+
+	/*
+	 * AnswerSvc's /answers/changes feed.
+	 */
+	public interface ChangeFeed {
+
+		/* Returns the watermark to follow changes from, or null if AnswerSvc has no change feed. */
+		Long watermark();
+
+		AnswerSvcClient.ChangeBatch changesSince(long watermark);
+	}
+
+	private final Supplier<LongObjectHashMap<LongObjectHashMap<Answer>>> loader;
+	private final ChangeFeed changeFeed;
+	private final long maxStalenessMs;
+	private final long fullReloadMs;
+
+	private volatile Long watermark;		//Null while changes cannot be followed
+	private volatile long fullLoadedAtMs;
+	private long savedVersion = -1;
+
+	private volatile AnswerSnapshot snapshot;
+	private volatile long loadedAtMs;
+	private volatile long version;
+
+	private final Timer fullBuilds;
+	private final Timer changeBuilds;
+	private final Counter freshReads;
+	private final Counter staleReads;
+	private final Counter loadingReads;
+
+	private final AtomicBoolean backgroundRefresh = new AtomicBoolean();
+	private final ExecutorService refresher = Executors.newSingleThreadExecutor(runnable -> {
+		Thread thread = new Thread(runnable, "answer-index-refresh");
+		thread.setDaemon(true);
+		return thread;
+	});
+
+	public LatestAnswerIndex(Supplier<LongObjectHashMap<LongObjectHashMap<Answer>>> loader, ChangeFeed changeFeed,
+							 long maxStalenessMs, long fullReloadMs, MeterRegistry meterRegistry) {
+		this.loader = loader;
+		this.changeFeed = changeFeed;
+		this.maxStalenessMs = maxStalenessMs;
+		this.fullReloadMs = fullReloadMs;
+
+		this.fullBuilds = builds(meterRegistry, "full");
+		this.changeBuilds = builds(meterRegistry, "changes");
+		this.freshReads = reads(meterRegistry, "fresh");
+		this.staleReads = reads(meterRegistry, "stale");
+		this.loadingReads = reads(meterRegistry, "loading");
+	}
+
+	private static Timer builds(MeterRegistry registry, String kind) {
+		return Timer.builder("answer.index.build")
+				.description("Time to build a snapshot of the latest answer index from loaded answers or changes")
+				.tag("kind", kind)
+				.register(registry);
+	}
+
+	private static Counter reads(MeterRegistry registry, String result) {
+		return Counter.builder("answer.index.reads")
+				.description("Requests for the current snapshot of the latest answer index")
+				.tag("result", result)
+				.register(registry);
+	}
+
+	/*
+	 * Returns the current snapshot, starting a background reload if it is older than the staleness bound. Only the
+	 * very first call waits for a load. Callers should use the one snapshot for a whole request, so that user
+	 * ordinals and answers stay consistent with each other.
+	 */
+	public AnswerSnapshot current() {
+		AnswerSnapshot loaded = snapshot;
+		if (loaded == null) {
+			loadingReads.increment();
+			loadIfEmpty();
+			return snapshot;
+		}
+		if (isStale()) {
+			staleReads.increment();
+			refreshInBackground();
+		}
+		else {
+			freshReads.increment();
+		}
+		return loaded;
+	}
+
+	//Waits for a load in progress, e.g. a restore(), and only loads the index itself if that left it empty
+	private synchronized void loadIfEmpty() {
+		if (snapshot == null) {
+			refresh();
+		}
+	}
+
+	/*
+	 * Reloads the index if it is older than the staleness bound. Intended to be called on a schedule so request
+	 * threads normally find a fresh index and do not pay for the reload themselves.
+	 */
+	public void refreshIfStale() {
+		if (isStale() || isFullReloadDue()) {
+			refresh();
+		}
+	}
+
+	/*
+	 * Brings the index up to date with AnswerSvc and swaps in the new snapshot. Only one reload runs at a time;
+	 * callers arriving while one is in progress wait for it and then reuse its result.
+	 */
+	public synchronized void refresh() {
+		long startMs = System.currentTimeMillis();
+		if (snapshot != null && startMs - loadedAtMs < Math.min(maxStalenessMs, 1000L) && !isFullReloadDue()) {
+			return;		//Another caller just finished a reload
+		}
+
+		if (snapshot != null && watermark != null && startMs - fullLoadedAtMs < fullReloadMs) {
+			try {
+				applyChanges();
+				loadedAtMs = startMs;
+				return;
+			}
+			catch (RuntimeException e) {
+				System.err.println("Following answer changes failed, reloading all answers: " + e);
+			}
+		}
+
+		Long start = null;
+		if (changeFeed != null) {
+			try {
+				start = changeFeed.watermark();
+			}
+			catch (RuntimeException e) {
+				System.err.println("Answer change feed unavailable, reloading all answers each time: " + e);
+			}
+		}
+		watermark = null;
+		LongObjectHashMap<LongObjectHashMap<Answer>> answers = loader.get();
+		if (answers != null || snapshot == null) {
+			swap(fullBuilds.record(() -> new AnswerSnapshot(answers == null ? new LongObjectHashMap<LongObjectHashMap<Answer>>() : answers)));
+		}
+		watermark = start;
+		fullLoadedAtMs = startMs;
+		loadedAtMs = startMs;
+	}
+
+	//Reads every change waiting in the feed and derives the next snapshot from them
+	private void applyChanges() {
+		List<AnswerChange> changes = new ArrayList<AnswerChange>();
+		long next = readChanges(watermark, changes);
+		if (!changes.isEmpty()) {
+			swap(changeBuilds.record(() -> snapshot.withChanges(changes)));
+		}
+		watermark = next;
+	}
+
+	//Adds every change waiting in the feed since from to changes, and returns the watermark they bring it to
+	private long readChanges(long from, List<AnswerChange> changes) {
+		long next = from;
+		AnswerSvcClient.ChangeBatch batch;
+		do {
+			batch = changeFeed.changesSince(next);
+			changes.addAll(batch.getChanges());
+			if (batch.getWatermark() == next) {
+				break;		//Held at a gap, the rest is read once it is filled or skipped
+			}
+			next = batch.getWatermark();
+		} while (batch.isMore());
+		return next;
+	}
+
+	/*
+	 * Applies a batch of changes pushed by AnswerSvc, if it carries on from the changes already applied, i.e. if
+	 * from is the current watermark. Returns false otherwise, e.g. once a full load has moved the watermark, in which
+	 * case the pusher has to resume from getWatermark(). An applied batch counts as a reload, even if empty, as it
+	 * shows that nothing else has changed.
+	 */
+	public synchronized boolean applyChanges(long from, AnswerSvcClient.ChangeBatch batch) {
+		if (snapshot == null || watermark == null || watermark != from) {
+			return false;
+		}
+		if (!batch.getChanges().isEmpty()) {
+			swap(changeBuilds.record(() -> snapshot.withChanges(batch.getChanges())));
+		}
+		watermark = batch.getWatermark();
+		loadedAtMs = System.currentTimeMillis();
+		return true;
+	}
+
+	/*
+	 * Starts the index from the snapshot saved to file, unless it was written more than maxAgeMs ago. The file is
+	 * read while holding the index, so requests arriving meanwhile wait for the restored snapshot rather than
+	 * starting a full load of their own. Returns false if nothing was restored.
+	 */
+	public synchronized boolean restore(AnswerSnapshotFile file, long maxAgeMs) throws IOException {
+		if (snapshot != null || changeFeed == null) {
+			return false;
+		}
+		AnswerSnapshotFile.Saved saved = file.read();
+		if (saved == null) {
+			return false;
+		}
+		if (System.currentTimeMillis() - saved.getWrittenAtMs() > maxAgeMs) {
+			System.err.println("Saved answer index " + file.getPath() + " is too old to catch up, loading all answers");
+			return false;
+		}
+		return restore(saved.getSnapshot(), saved.getWatermark(), saved.getFullLoadedAtMs());
+	}
+
+	/*
+	 * Starts the index from a snapshot saved earlier, which was up to date with the change feed at savedWatermark.
+	 * The changes since are applied to it before it is swapped in, so no request is answered from the saved
+	 * snapshot while they are read. It is not used if the index is already loaded or does not follow a change feed.
+	 * If the changes cannot be read, the saved snapshot is served as it is until a reload succeeds. A full load is
+	 * still due fullReloadMs after the one the saved snapshot came from.
+	 */
+	public synchronized boolean restore(AnswerSnapshot saved, long savedWatermark, long savedFullLoadedAtMs) {
+		if (snapshot != null || changeFeed == null) {
+			return false;
+		}
+		AnswerSnapshot restored = saved;
+		long restoredWatermark = savedWatermark;
+		boolean caughtUp = false;
+		try {
+			List<AnswerChange> changes = new ArrayList<AnswerChange>();
+			restoredWatermark = readChanges(savedWatermark, changes);
+			if (!changes.isEmpty()) {
+				restored = changeBuilds.record(() -> saved.withChanges(changes));
+			}
+			caughtUp = true;
+		}
+		catch (RuntimeException e) {
+			restored = saved;
+			restoredWatermark = savedWatermark;
+			System.err.println("Cannot read the answer changes since the saved index, serving it as saved: " + e);
+		}
+		swap(restored);
+		watermark = restoredWatermark;
+		fullLoadedAtMs = savedFullLoadedAtMs;
+		if (caughtUp) {
+			loadedAtMs = System.currentTimeMillis();
+		}
+		return true;
+	}
+
+	/*
+	 * Writes the current snapshot and its watermark to file, unless the index does not follow the change feed or
+	 * has not changed since it was last saved. The snapshot is immutable, so it is written without holding up
+	 * reloads.
+	 */
+	public void save(AnswerSnapshotFile file) throws IOException {
+		AnswerSnapshot saving;
+		long savingWatermark;
+		long savingFullLoadedAtMs;
+		long savingVersion;
+		synchronized (this) {
+			if (snapshot == null || watermark == null || version == savedVersion) {
+				return;
+			}
+			saving = snapshot;
+			savingWatermark = watermark;
+			savingFullLoadedAtMs = fullLoadedAtMs;
+			savingVersion = version;
+		}
+		file.write(saving, savingWatermark, savingFullLoadedAtMs);
+		synchronized (this) {
+			savedVersion = savingVersion;
+		}
+	}
+
+	/*
+	 * The change feed watermark the index is up to date with, or null if it does not follow the feed.
+	 */
+	public Long getWatermark() {
+		return watermark;
+	}
+
+	private void swap(AnswerSnapshot next) {
+		snapshot = next;
+		version++;		//After the swap, so that a version is never newer than the snapshot it is read with
+	}
+
+	/*
+	 * Counts the snapshots loaded so far. It is bumped after each new snapshot is swapped in, so a version read
+	 * before current() is never newer than the snapshot current() returns.
+	 */
+	public long getVersion() {
+		return version;
+	}
+
+	//At most one background reload is queued at a time, however many requests find the index stale
+	private void refreshInBackground() {
+		if (!backgroundRefresh.compareAndSet(false, true)) {
+			return;
+		}
+		refresher.execute(() -> {
+			try {
+				refresh();
+			}
+			catch (RuntimeException e) {
+				System.err.println("Answer index reload failed, serving the previous snapshot: " + e);
+			}
+			finally {
+				backgroundRefresh.set(false);
+			}
+		});
+	}
+
+	private boolean isFullReloadDue() {
+		return watermark != null && System.currentTimeMillis() - fullLoadedAtMs >= fullReloadMs;
+	}
+
+	private boolean isStale() {
+		return snapshot == null || System.currentTimeMillis() - loadedAtMs > maxStalenessMs;
+	}
+}
@@ -0,0 +1,277 @@
+import java.time.LocalDateTime;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+
+/*
+ * SlicedAnswerLoader pulls the most recent answers of the whole population from AnswerSvc as concurrent userId-range
+ * slices and groups them into the questionId -> userId -> Answer map an AnswerSnapshot is built from.
+ *
+ * The userId range reported by AnswerSvc is cut into slices of sliceUsers userIds, which are handed out in halves on
+ * a fork/join pool. Each slice is fetched and grouped into its own map by the worker that holds it, and the maps are
+ * merged pairwise as the halves join. Slices hold disjoint users, so merging never compares answers.
+ *
+ * Slices are cut by userId span, not by the number of users in them, so a sparse or very wide range would make many
+ * slices with few or no users. A load therefore makes at most SLICES_PER_FETCH * concurrency slices, widened past
+ * sliceUsers to cover the reported range if they have to be.
+ *
+ * Slices are carried with an inclusive last userId, as the exclusive bound one past Long.MAX_VALUE cannot be held in
+ * a long: AnswerSvc reports the range as {from, largest userId + 1}, which wraps if the largest is Long.MAX_VALUE.
+ * The exclusive toUserId a slice is fetched with is clamped to Long.MAX_VALUE, which, as for any userId range on
+ * AnswerSvc, leaves out a userId of Long.MAX_VALUE itself.
+ *
+ * At most concurrency slices are fetched at once, which is what bounds the load put on AnswerSvc. The bound is a
+ * semaphore taken around each fetch rather than the size of the pool: a worker waiting on its fetch lets the pool
+ * start compensating threads, which steal other slices.
+ *
+ * If AnswerSvc cannot report a userId range the answers are pulled in a single request as before.
+ *
+ * The range is requested with the ETag of the range the previous load started from. If AnswerSvc answers that
+ * nothing has changed since, no slice is fetched and get() returns null, telling the caller to keep the answers it
+ * already holds.
+ *
+ * A load is one trace: the TraceContext current on the calling thread, or a new one, is opened on each worker while
+ * it fetches its slice, so that every request of the load carries the same trace id.
+ */
+public class SlicedAnswerLoader implements Supplier<LongObjectHashMap<LongObjectHashMap<Answer>>> {
+
+	//Slices per concurrent fetch, enough to even out slices of uneven size without many near-empty requests
+	static final int SLICES_PER_FETCH = 4;
+
+	/*
+	 * Fetches the answers of users in [fromUserId, toUserId), or of all users if both are null. The future completes
+	 * once every answer has been handed to the consumer.
+	 */
+	public interface SliceFetcher {
+		CompletableFuture<Void> fetch(Long fromUserId, Long toUserId, Consumer<Answer> consumer);
+	}
+
+	private final Function<String, AnswerSvcClient.UserIdRange> userIdRange;
+	private final SliceFetcher fetcher;
+	private final int concurrency;
+	private final long sliceUsers;
+	private final ForkJoinPool pool;
+	private final Semaphore fetchPermits;
+
+	private final AtomicInteger activeSlices = new AtomicInteger();
+	private final Timer loadTimer;
+	private final Timer sliceTimer;
+	private final DistributionSummary sliceRows;
+	private final Counter unchangedLoads;
+
+	//ETag of the range the last completed load started from
+	private volatile String loadedEtag;
+
+	/*
+	 * userIdRange is called with the ETag of the previous range, null on the first load.
+	 */
+	public SlicedAnswerLoader(Function<String, AnswerSvcClient.UserIdRange> userIdRange, SliceFetcher fetcher, int concurrency, long sliceUsers,
+							  MeterRegistry meterRegistry) {
+		if (concurrency < 1 || sliceUsers < 1) {
+			throw new IllegalArgumentException("answer fetch concurrency and slice size must be positive");
+		}
+		this.userIdRange = userIdRange;
+		this.fetcher = fetcher;
+		this.concurrency = concurrency;
+		this.sliceUsers = sliceUsers;
+		this.pool = new ForkJoinPool(concurrency);
+		this.fetchPermits = new Semaphore(concurrency);
+
+		Gauge.builder("answer.index.fetch.concurrency", this, loader -> loader.concurrency)
+			 .description("Maximum number of userId-range slices fetched from AnswerSvc at once")
+			 .register(meterRegistry);
+		Gauge.builder("answer.index.fetch.slice.users", this, loader -> loader.sliceUsers)
+			 .description("Number of userIds a slice spans at least; slices are widened if the range needs more than "
+			 			  + SLICES_PER_FETCH + " per concurrent fetch")
+			 .register(meterRegistry);
+		Gauge.builder("answer.index.fetch.slices.active", activeSlices, AtomicInteger::get)
+			 .description("Slices currently being fetched")
+			 .register(meterRegistry);
+		this.loadTimer = Timer.builder("answer.index.load")
+			 .description("Time to pull and group the whole latest answer index")
+			 .register(meterRegistry);
+		this.sliceTimer = Timer.builder("answer.index.fetch.slice")
+			 .description("Time to fetch and group one slice")
+			 .register(meterRegistry);
+		this.sliceRows = DistributionSummary.builder("answer.index.fetch.slice.rows")
+			 .description("Rows received per slice")
+			 .register(meterRegistry);
+		this.unchangedLoads = Counter.builder("answer.index.load.unchanged")
+			 .description("Loads skipped because AnswerSvc reported no change since the previous one")
+			 .register(meterRegistry);
+	}
+
+	/*
+	 * Returns the latest answers grouped by questionId and userId, or null if they have not changed since the last
+	 * call that returned them.
+	 */
+	@Override
+	public LongObjectHashMap<LongObjectHashMap<Answer>> get() {
+		long startNs = System.nanoTime();
+		TraceContext trace = TraceContext.current() != null ? TraceContext.current() : TraceContext.root();
+		try (TraceContext.Scope scope = trace.open()) {
+			AnswerSvcClient.UserIdRange range = userIdRange.apply(loadedEtag);
+			if (range.isNotModified()) {
+				unchangedLoads.increment();
+				return null;
+			}
+			long[] bounds = range.getRange();
+			SliceTask all;
+			if (bounds == null) {
+				all = new SliceTask(null, null, 0, 1, trace);
+			}
+			else {
+				long lastUserId = bounds[1] - 1;
+				long width = sliceWidth(bounds[0], lastUserId);
+				all = new SliceTask(bounds[0], lastUserId, width, sliceCount(bounds[0], lastUserId, width), trace);
+			}
+			LongObjectHashMap<LongObjectHashMap<Answer>> loaded = pool.invoke(all);
+			loadedEtag = range.getEtag();
+			return loaded;
+		}
+		finally {
+			loadTimer.record(System.nanoTime() - startNs, TimeUnit.NANOSECONDS);
+		}
+	}
+
+	/*
+	 * Returns the number of userIds each slice of [fromUserId, lastUserId] spans: sliceUsers, or as many as it takes
+	 * to cover the range in SLICES_PER_FETCH * concurrency slices. Spans are unsigned so that a range spanning most
+	 * of the long values does not overflow.
+	 */
+	long sliceWidth(long fromUserId, long lastUserId) {
+		long width = Long.divideUnsigned(lastUserId - fromUserId, (long) SLICES_PER_FETCH * concurrency) + 1;
+		return Long.compareUnsigned(width, sliceUsers) > 0 ? width : sliceUsers;
+	}
+
+	static long sliceCount(long fromUserId, long lastUserId, long width) {
+		return Long.divideUnsigned(lastUserId - fromUserId, width) + 1;
+	}
+
+	//The exclusive bound a slice ending at lastUserId is fetched with
+	private static long toUserId(long lastUserId) {
+		return lastUserId == Long.MAX_VALUE ? Long.MAX_VALUE : lastUserId + 1;
+	}
+
+	/*
+	 * Fetches the slices of width userIds from fromUserId on, the last of which ends at lastUserId, by fetching the
+	 * lower half of them in a forked task and the upper half itself.
+	 */
+	private class SliceTask extends RecursiveTask<LongObjectHashMap<LongObjectHashMap<Answer>>> {
+
+		private final Long fromUserId;
+		private final Long lastUserId;		//Inclusive
+		private final long width;
+		private final long slices;
+		private final TraceContext trace;
+
+		SliceTask(Long fromUserId, Long lastUserId, long width, long slices, TraceContext trace) {
+			this.fromUserId = fromUserId;
+			this.lastUserId = lastUserId;
+			this.width = width;
+			this.slices = slices;
+			this.trace = trace;
+		}
+
+		@Override
+		protected LongObjectHashMap<LongObjectHashMap<Answer>> compute() {
+			if (slices > 1) {
+				long lowerSlices = slices >>> 1;
+				long mid = fromUserId + lowerSlices * width;
+				SliceTask lower = new SliceTask(fromUserId, mid - 1, width, lowerSlices, trace);
+				lower.fork();
+				LongObjectHashMap<LongObjectHashMap<Answer>> upper = 
+						new SliceTask(mid, lastUserId, width, slices - lowerSlices, trace).compute();
+				return merge(lower.join(), upper);
+			}
+			return fetchSlice();
+		}
+
+		private LongObjectHashMap<LongObjectHashMap<Answer>> fetchSlice() {
+			LongObjectHashMap<LongObjectHashMap<Answer>> byQuestion = new LongObjectHashMap<LongObjectHashMap<Answer>>();
+			if (fromUserId != null && fromUserId == Long.MAX_VALUE) {
+				return byQuestion;		//Clamped to an empty range, which AnswerSvc would reject
+			}
+			long[] rows = new long[1];
+			fetchPermits.acquireUninterruptibly();
+			long startNs = System.nanoTime();
+			activeSlices.incrementAndGet();
+			try (TraceContext.Scope scope = trace.open()) {
+				fetcher.fetch(fromUserId, lastUserId == null ? null : toUserId(lastUserId), currAns -> {
+					fold(byQuestion, currAns);
+					rows[0]++;
+				}).join();
+			}
+			finally {
+				activeSlices.decrementAndGet();
+				fetchPermits.release();
+				sliceTimer.record(System.nanoTime() - startNs, TimeUnit.NANOSECONDS);
+				sliceRows.record(rows[0]);
+			}
+			return byQuestion;
+		}
+	}
+
+	//Keeps the most recent answer per user and question
+	private static void fold(LongObjectHashMap<LongObjectHashMap<Answer>> byQuestion, Answer currAns) {
+		LongObjectHashMap<Answer> userMap = byQuestion.get(currAns.getQuestionId());
+		if (userMap == null) {
+			userMap = new LongObjectHashMap<Answer>();
+			byQuestion.put(currAns.getQuestionId(), userMap);
+		}
+		Answer prevAns = userMap.get(currAns.getUserId());
+		if (prevAns == null || isNewer(currAns, prevAns)) {
+			userMap.put(currAns.getUserId(), currAns);
+		}
+	}
+
+	//Slices hold disjoint users, so the smaller map's answers are copied into the larger one without comparison
+	private static LongObjectHashMap<LongObjectHashMap<Answer>> merge(LongObjectHashMap<LongObjectHashMap<Answer>> a,
+																	  LongObjectHashMap<LongObjectHashMap<Answer>> b) {
+		LongObjectHashMap<LongObjectHashMap<Answer>> into = a;
+		LongObjectHashMap<LongObjectHashMap<Answer>> from = b;
+		if (answerCount(b) > answerCount(a)) {
+			into = b;
+			from = a;
+		}
+		LongObjectHashMap<LongObjectHashMap<Answer>> target = into;
+		from.forEach((qId, userMap) -> {
+			LongObjectHashMap<Answer> targetUsers = target.get(qId);
+			if (targetUsers == null) {
+				target.put(qId, userMap);
+			}
+			else {
+				userMap.forEach(targetUsers::put);
+			}
+		});
+		return target;
+	}
+
+	private static long answerCount(LongObjectHashMap<LongObjectHashMap<Answer>> byQuestion) {
+		long[] count = new long[1];
+		byQuestion.forEach((qId, userMap) -> count[0] += userMap.size());
+		return count[0];
+	}
+
+	//An answer without a date never replaces one with a date, matching getUserHashMap() in AnswerLogicImpl
+	private static boolean isNewer(Answer candidate, Answer current) {
+		LocalDateTime candidateDate = candidate.getAnswerDate();
+		LocalDateTime currentDate = current.getAnswerDate();
+		if (candidateDate == null) {
+			return false;
+		}
+		return currentDate == null || candidateDate.compareTo(currentDate) > 0;
+	}
+}
@@ -0,0 +1,97 @@
+import java.util.BitSet;
+
+/*
+ * SortedColumnIndex is a secondary index over one typed column: the values of the column in ascending order,
+ * alongside the user ordinal and, if the column keeps them, the answer date each value belongs to.
+ *
+ * A range condition [from, to) is answered with two binary searches and a walk over the slice between them, so its
+ * cost depends on the number of matching users rather than on the size of the population.
+ */
+public class SortedColumnIndex {
+
+	private final double[] sortedValues;
+	private final int[] ordinals;
+	private final long[] answerSeconds;		//Null if the column keeps no answer dates
+
+	/*
+	 * ordinals, values and answerSeconds are the parallel arrays of a TypedColumns.NumericColumn, answerSeconds
+	 * null if it keeps no answer dates.
+	 */
+	SortedColumnIndex(int[] ordinals, double[] values, long[] answerSeconds) {
+		int present = values.length;
+		int[] byValue = new int[present];
+		for (int i = 0; i < present; i++) {
+			byValue[i] = i;
+		}
+		sortByValue(byValue, new int[present], 0, present, values);
+
+		this.sortedValues = new double[present];
+		this.ordinals = new int[present];
+		this.answerSeconds = answerSeconds == null ? null : new long[present];
+		for (int i = 0; i < present; i++) {
+			sortedValues[i] = values[byValue[i]];
+			this.ordinals[i] = ordinals[byValue[i]];
+			if (answerSeconds != null) {
+				this.answerSeconds[i] = answerSeconds[byValue[i]];
+			}
+		}
+	}
+
+	/*
+	 * Returns the ordinals of users whose value lies in [from, to). If the column keeps answer dates, users whose
+	 * answer is older than minSecond are left out.
+	 */
+	public BitSet range(double from, double to, long minSecond) {
+		int start = lowerBound(from);
+		int end = Math.max(start, lowerBound(to));
+		BitSet bits = new BitSet();
+
+		for (int i = start; i < end; i++) {
+			if (answerSeconds == null || answerSeconds[i] >= minSecond) {
+				bits.set(ordinals[i]);
+			}
+		}
+		return bits;
+	}
+
+	//Returns the first position whose value is at least value, or the number of values if there is none
+	private int lowerBound(double value) {
+		int lo = 0;
+		int hi = sortedValues.length;
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if (sortedValues[mid] < value) {
+				lo = mid + 1;
+			}
+			else {
+				hi = mid;
+			}
+		}
+		return lo;
+	}
+
+	//Stable merge sort of positions by their value in column, so equal values keep their order in the column
+	private static void sortByValue(int[] ords, int[] buffer, int from, int to, double[] column) {
+		if (to - from < 2) {
+			return;
+		}
+		int mid = (from + to) >>> 1;
+		sortByValue(ords, buffer, from, mid, column);
+		sortByValue(ords, buffer, mid, to, column);
+		if (column[ords[mid - 1]] <= column[ords[mid]]) {
+			return;		//Halves are already in order
+		}
+
+		System.arraycopy(ords, from, buffer, from, to - from);
+		int left = from;
+		int right = mid;
+		for (int i = from; i < to; i++) {
+			if (right >= to || (left < mid && column[buffer[left]] <= column[buffer[right]])) {
+				ords[i] = buffer[left++];
+			}
+			else {
+				ords[i] = buffer[right++];
+			}
+		}
+	}
+}
@@ -0,0 +1,247 @@
+import java.time.LocalDate;
+import java.time.ZoneOffset;
+import java.util.Arrays;
+
+/*
+ * TypedColumns holds the answers of an AnswerSnapshot already parsed into primitive arrays indexed by user ordinal,
+ * so that the range conditions in AnswerLogicImpl compare doubles instead of re-parsing every answer string on
+ * every request.
+ *
+ * Columns are built once per snapshot for the well-known questions (age as the epoch day of the birth date, height
+ * in inches, weight, and BMI derived from the two) and for every question whose answers are all numeric. A column
+ * only holds the users with a usable value, so a question answered by few users takes memory in proportion to its
+ * answers rather than to the population; a user without one never matches a range. Numeric questions also carry
+ * the epoch second of each answer for minAnswerDate filtering.
+ *
+ * Each column builds a SortedColumnIndex the first time it is queried, so columns that are never filtered on are
+ * never sorted.
+ *
+ * A snapshot derived from changes that kept the ordinals hands in the previous snapshot's columns, and only the
+ * columns of changed questions are parsed again.
+ */
+public class TypedColumns {
+
+	static final long AGE_QUESTION_ID = 1L;
+	static final long HEIGHT_QUESTION_ID = 2L;
+	static final long WEIGHT_QUESTION_ID = 3L;
+
+	/*
+	 * Returns the class a question is tagged with in metrics: birthdate, height, weight or other, so that a tag does
+	 * not take one value per questionId.
+	 */
+	static String questionClass(long qId) {
+		if (qId == AGE_QUESTION_ID) {
+			return "birthdate";
+		}
+		if (qId == HEIGHT_QUESTION_ID) {
+			return "height";
+		}
+		return qId == WEIGHT_QUESTION_ID ? "weight" : "other";
+	}
+
+	/*
+	 * One column of parsed answers, as parallel arrays over the users that have a value.
+	 */
+	public static class NumericColumn {
+
+		private final int[] ordinals;
+		private final double[] values;				//Never NaN
+		private final long[] answerSeconds;		//Epoch second (UTC) of the answer, Long.MIN_VALUE if undated, null if not kept
+
+		private volatile SortedColumnIndex sortedIndex;
+
+		NumericColumn(int[] ordinals, double[] values, long[] answerSeconds) {
+			this.ordinals = ordinals;
+			this.values = values;
+			this.answerSeconds = answerSeconds;
+		}
+
+		//Keeps the values of a column indexed by user ordinal that are not NaN
+		static NumericColumn ofDense(double[] column) {
+			int present = 0;
+			for (double value : column) {
+				if (!Double.isNaN(value)) {
+					present++;
+				}
+			}
+			int[] ordinals = new int[present];
+			double[] values = new double[present];
+			int i = 0;
+			for (int ordinal = 0; ordinal < column.length; ordinal++) {
+				if (!Double.isNaN(column[ordinal])) {
+					ordinals[i] = ordinal;
+					values[i++] = column[ordinal];
+				}
+			}
+			return new NumericColumn(ordinals, values, null);
+		}
+
+		public SortedColumnIndex sorted() {
+			SortedColumnIndex index = sortedIndex;
+			if (index == null) {
+				synchronized (this) {
+					index = sortedIndex;
+					if (index == null) {
+						index = new SortedColumnIndex(ordinals, values, answerSeconds);
+						sortedIndex = index;
+					}
+				}
+			}
+			return index;
+		}
+	}
+
+	private final NumericColumn birthEpochDays;
+	private final NumericColumn heightInches;
+	private final NumericColumn bmis;
+	private final LongObjectHashMap<NumericColumn> numericColumns = new LongObjectHashMap<NumericColumn>();
+
+	TypedColumns(AnswerSnapshot snapshot) {
+		this(snapshot, null, null);
+	}
+
+	/*
+	 * previous, if given, must have been built for the same ordinals; its columns of questions not in
+	 * changedQuestions are reused.
+	 */
+	TypedColumns(AnswerSnapshot snapshot, TypedColumns previous, LongHashSet changedQuestions) {
+		for (long qId : snapshot.getQuestionIds()) {
+			NumericColumn column = previous != null && !changedQuestions.contains(qId) ? previous.numericColumns.get(qId)
+								   : parseNumeric(snapshot, qId);
+			if (column != null) {
+				numericColumns.put(qId, column);
+			}
+		}
+
+		if (previous != null && !changedQuestions.contains(AGE_QUESTION_ID) && !changedQuestions.contains(HEIGHT_QUESTION_ID)
+							 && !changedQuestions.contains(WEIGHT_QUESTION_ID)) {
+			this.birthEpochDays = previous.birthEpochDays;
+			this.heightInches = previous.heightInches;
+			this.bmis = previous.bmis;
+			return;
+		}
+
+		int userCount = snapshot.userCount();
+
+		double[] birthEpochDays = emptyColumn(userCount);
+		for (Answer currAns : snapshot.getByQuestionId(AGE_QUESTION_ID)) {
+			try {
+				birthEpochDays[snapshot.ordinalOf(currAns.getUserId())] = LocalDate.parse(currAns.getAnswer()).toEpochDay();
+			}
+			catch (Exception e) {
+				//Unparseable birth dates are left as NaN
+			}
+		}
+
+		double[] heightInches = emptyColumn(userCount);
+		for (Answer currAns : snapshot.getByQuestionId(HEIGHT_QUESTION_ID)) {
+			if (isHeightFormat(currAns.getAnswer())) {
+				try {
+					heightInches[snapshot.ordinalOf(currAns.getUserId())] = convertToInches(currAns.getAnswer());
+				}
+				catch (NumberFormatException e) {
+					//Left as NaN
+				}
+			}
+		}
+
+		double[] weights = emptyColumn(userCount);
+		for (Answer currAns : snapshot.getByQuestionId(WEIGHT_QUESTION_ID)) {
+			try {
+				weights[snapshot.ordinalOf(currAns.getUserId())] = Double.parseDouble(currAns.getAnswer());
+			}
+			catch (Exception e) {
+				//Left as NaN
+			}
+		}
+
+		//BMI formula is 703 * weight / height / height, NaN unless the user has both
+		double[] bmis = new double[userCount];
+		for (int ordinal = 0; ordinal < userCount; ordinal++) {
+			bmis[ordinal] = (703*weights[ordinal]) / (heightInches[ordinal]*heightInches[ordinal]);
+		}
+
+		this.birthEpochDays = NumericColumn.ofDense(birthEpochDays);
+		this.heightInches = NumericColumn.ofDense(heightInches);
+		this.bmis = NumericColumn.ofDense(bmis);
+	}
+
+	public NumericColumn getBirthEpochDays() {
+		return birthEpochDays;
+	}
+
+	public NumericColumn getHeightInches() {
+		return heightInches;
+	}
+
+	public NumericColumn getBmis() {
+		return bmis;
+	}
+
+	/*
+	 * Returns the numeric column for a question, or null if the question has an answer that is not numeric or has
+	 * no answers at all.
+	 */
+	public NumericColumn getNumericColumn(long qId) {
+		return numericColumns.get(qId);
+	}
+
+	/*
+	 * isHeightFormat skips incorrectly formatted test db entries for questionId=2, which convertToInches cannot parse.
+	 */
+	static boolean isHeightFormat(String answer) {
+		return answer != null && !answer.isEmpty() && answer.contains("ft") && answer.contains("in") && !answer.contains(".");
+	}
+
+	/*
+	 * convertToInches converts strings from "[n]ft [m]in" format, for answers to questionId=2, to int value in inches.
+	 */
+	static int convertToInches(String answer) {
+		int idxFoot = answer.indexOf("ft");
+		int idxIn = answer.indexOf("in");
+		int breakLen = 3;
+
+		int currFt = Integer.parseInt(answer.substring(0, idxFoot));
+		int currIn = Integer.parseInt(answer.substring(idxFoot+breakLen, idxIn));
+
+		return currFt*12 + currIn;
+	}
+
+	//Parses into arrays the size of the question, leaving out NaN answers, which match no range
+	private static NumericColumn parseNumeric(AnswerSnapshot snapshot, long qId) {
+		int answered = snapshot.getByQuestionId(qId).size();
+		int[] ordinals = new int[answered];
+		double[] values = new double[answered];
+		long[] seconds = new long[answered];
+
+		int i = 0;
+		for (Answer currAns : snapshot.getByQuestionId(qId)) {
+			double value;
+			try {
+				value = Double.parseDouble(currAns.getAnswer());
+			}
+			catch (Exception e) {
+				return null;
+			}
+			if (Double.isNaN(value)) {
+				continue;
+			}
+			ordinals[i] = snapshot.ordinalOf(currAns.getUserId());
+			values[i] = value;
+			seconds[i] = currAns.getAnswerDate() == null ? Long.MIN_VALUE
+						 : currAns.getAnswerDate().toEpochSecond(ZoneOffset.UTC);
+			i++;
+		}
+
+		if (i < answered) {
+			return new NumericColumn(Arrays.copyOf(ordinals, i), Arrays.copyOf(values, i), Arrays.copyOf(seconds, i));
+		}
+		return new NumericColumn(ordinals, values, seconds);
+	}
+
+	private static double[] emptyColumn(int userCount) {
+		double[] column = new double[userCount];
+		Arrays.fill(column, Double.NaN);
+		return column;
+	}
+}
@@ -0,0 +1,86 @@
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+
+/*
+ * AnswerColumnarDecoder reads the application/x-answer-columnar format written by AnswerSvc's AnswerColumnarEncoder
+ * and hands each row to a consumer as an Answer. See AnswerColumnarEncoder for the layout; the constants here must
+ * match it.
+ *
+ * Rows are decoded one block at a time, so memory is bounded by the block size plus the answer dictionary. Columns
+ * left out of the projection decode as 0 for ids and null for answer and answerDate.
+ */
+public class AnswerColumnarDecoder {
+
+	public static final String MEDIA_TYPE = "application/x-answer-columnar";
+
+	static final int MAGIC = 0x414E5343;		//"ANSC"
+	static final short VERSION = 1;
+
+	static final int USER_ID = 1;
+	static final int QUESTION_ID = 2;
+	static final int ANSWER_DATE = 4;
+	static final int ANSWER = 8;
+
+	public static void read(InputStream body, Consumer<Answer> consumer) throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(body, 64 * 1024));
+
+		if (in.readInt() != MAGIC) {
+			throw new IOException("Response is not in " + MEDIA_TYPE + " format");
+		}
+		short version = in.readShort();
+		if (version != VERSION) {
+			throw new IOException("Unsupported " + MEDIA_TYPE + " version " + version);
+		}
+		int columns = in.readByte();
+
+		List<String> dictionary = new ArrayList<String>();
+		long[] userIds = new long[0];
+		long[] questionIds = new long[0];
+		long[] answerDates = new long[0];
+		int[] answerCodes = new int[0];
+
+		for (int rows = in.readInt(); rows > 0; rows = in.readInt()) {
+			int newEntries = in.readInt();
+			for (int i = 0; i < newEntries; i++) {
+				byte[] bytes = new byte[in.readInt()];
+				in.readFully(bytes);
+				dictionary.add(new String(bytes, StandardCharsets.UTF_8));
+			}
+
+			if (userIds.length < rows) {
+				userIds = new long[rows];
+				questionIds = new long[rows];
+				answerDates = new long[rows];
+				answerCodes = new int[rows];
+			}
+			readLongs(in, columns, USER_ID, userIds, rows, 0L);
+			readLongs(in, columns, QUESTION_ID, questionIds, rows, 0L);
+			readLongs(in, columns, ANSWER_DATE, answerDates, rows, Long.MIN_VALUE);
+			for (int i = 0; i < rows; i++) {
+				answerCodes[i] = (columns & ANSWER) != 0 ? in.readInt() : -1;
+			}
+
+			for (int i = 0; i < rows; i++) {
+				LocalDateTime answerDate = answerDates[i] == Long.MIN_VALUE ? null 
+										   : LocalDateTime.ofEpochSecond(answerDates[i], 0, ZoneOffset.UTC);
+				String answer = answerCodes[i] < 0 ? null : dictionary.get(answerCodes[i]);
+				consumer.accept(new Answer(userIds[i], questionIds[i], answer, answerDate));
+			}
+		}
+	}
+
+	private static void readLongs(DataInputStream in, int columns, int column, long[] values, int rows, long absent) 
+			throws IOException {
+		for (int i = 0; i < rows; i++) {
+			values[i] = (columns & column) != 0 ? in.readLong() : absent;
+		}
+	}
+}
@@ -0,0 +1,110 @@
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+
+/*
+ * AnswerMatrixEncoder writes the whole-population user x question matrix of most recent answers, the data of
+ * /answer-logic/map, in the compact binary format served as application/x-answer-matrix.
+ *
+ * The matrix has one row per user, in ascending userId order, and one column per question. Each column carries its
+ * own dictionary of the distinct answers to the question, so its cells are small codes rather than strings, and a
+ * bitmap of the users who answered it, so users without an answer take one bit. All numbers are big-endian:
+ *
+ * 		int		MAGIC ("ANSM")
+ * 		short	VERSION
+ * 		int		user count n
+ * 		long[n]	userId, ascending
+ * 		int		question count, then per question:
+ * 					long	questionId
+ * 					int		dictionary size, then per entry: int UTF-8 length, bytes
+ * 					byte	code width w: 1, 2 or 4, the fewest bytes that hold every code
+ * 					byte[(n + 7) / 8]	answered bitmap, bit i (byte i / 8, least significant bit first) set if
+ * 										user i has an answer
+ * 					n codes of w bytes, unsigned indexes into the dictionary, 0 for users without an answer
+ *
+ * Columns are written one at a time straight from the snapshot's per-question answer index, so besides the output
+ * buffer only one column's codes are held at once.
+ */
+public class AnswerMatrixEncoder {
+
+	public static final String MEDIA_TYPE = "application/x-answer-matrix";
+
+	public static final int MAGIC = 0x414E534D;		//"ANSM"
+	public static final short VERSION = 1;
+
+	public static void write(AnswerSnapshot snapshot, OutputStream body) throws IOException {
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(body, 64 * 1024));
+		int users = snapshot.userCount();
+
+		out.writeInt(MAGIC);
+		out.writeShort(VERSION);
+		out.writeInt(users);
+		for (int ordinal = 0; ordinal < users; ordinal++) {
+			out.writeLong(snapshot.userIdAt(ordinal));
+		}
+
+		long[] questionIds = snapshot.getQuestionIds();
+		Arrays.sort(questionIds);
+		out.writeInt(questionIds.length);
+		int[] codes = new int[users];
+		for (long qId : questionIds) {
+			writeColumn(out, qId, snapshot.getAnswerIndex(qId), codes);
+		}
+		out.flush();
+	}
+
+	private static void writeColumn(DataOutputStream out, long qId, InvertedAnswerIndex index, int[] codes) throws IOException {
+		//Sorted so that the same answers always encode the same way
+		HashMap<String, int[]> postings = new HashMap<String, int[]>();
+		index.forEachPosting((answer, ordinals) -> {
+			if (answer != null) {
+				postings.put(answer, ordinals);
+			}
+		});
+		List<String> dictionary = new ArrayList<String>(postings.keySet());
+		Collections.sort(dictionary);
+
+		Arrays.fill(codes, 0);
+		BitSet answered = new BitSet(codes.length);
+		for (int code = 0; code < dictionary.size(); code++) {
+			for (int ordinal : postings.get(dictionary.get(code))) {
+				codes[ordinal] = code;
+				answered.set(ordinal);
+			}
+		}
+
+		out.writeLong(qId);
+		out.writeInt(dictionary.size());
+		for (String answer : dictionary) {
+			byte[] bytes = answer.getBytes(StandardCharsets.UTF_8);
+			out.writeInt(bytes.length);
+			out.write(bytes);
+		}
+
+		int width = dictionary.size() <= 1 << 8 ? 1 : dictionary.size() <= 1 << 16 ? 2 : 4;
+		out.writeByte(width);
+
+		byte[] bitmap = answered.toByteArray();
+		out.write(bitmap);
+		for (int i = bitmap.length; i < (codes.length + 7) / 8; i++) {
+			out.writeByte(0);
+		}
+
+		//Packed into one array and written at once, as per-code writes to the stream take several times as long
+		byte[] packed = new byte[codes.length * width];
+		for (int i = 0, at = 0; i < codes.length; i++) {
+			for (int shift = 8 * (width - 1); shift >= 0; shift -= 8) {
+				packed[at++] = (byte) (codes[i] >>> shift);
+			}
+		}
+		out.write(packed);
+	}
+}
@@ -0,0 +1,79 @@
+/*
+ * CircuitBreaker stops calls to a failing dependency for a while instead of letting every caller wait out its own
+ * timeouts and retries.
+ *
+ * The breaker starts closed and opens after failureThreshold consecutive failed calls. While open, tryAcquire()
+ * refuses calls until openMs has passed; it then lets a single trial call through (half-open). The trial's success
+ * closes the breaker again and its failure re-opens it for another openMs.
+ */
+public class CircuitBreaker {
+
+	public enum State { CLOSED, OPEN, HALF_OPEN }
+
+	/*
+	 * Thrown in place of a call the breaker refused.
+	 */
+	public static class OpenException extends RuntimeException {
+		public OpenException(String message) {
+			super(message);
+		}
+	}
+
+	private final int failureThreshold;
+	private final long openMs;
+
+	private State state = State.CLOSED;
+	private int consecutiveFailures;
+	private long openedAtMs;
+	private boolean trialInFlight;
+
+	public CircuitBreaker(int failureThreshold, long openMs) {
+		if (failureThreshold < 1 || openMs < 0) {
+			throw new IllegalArgumentException("failureThreshold must be positive and openMs not negative");
+		}
+		this.failureThreshold = failureThreshold;
+		this.openMs = openMs;
+	}
+
+	/*
+	 * Returns true if a call may go ahead. Every call let through must be followed by recordSuccess() or
+	 * recordFailure().
+	 */
+	public synchronized boolean tryAcquire() {
+		if (state == State.OPEN && System.currentTimeMillis() - openedAtMs >= openMs) {
+			state = State.HALF_OPEN;
+			trialInFlight = false;
+		}
+		switch (state) {
+		case CLOSED:
+			return true;
+		case HALF_OPEN:
+			if (trialInFlight) {
+				return false;
+			}
+			trialInFlight = true;
+			return true;
+		default:
+			return false;
+		}
+	}
+
+	public synchronized void recordSuccess() {
+		state = State.CLOSED;
+		consecutiveFailures = 0;
+		trialInFlight = false;
+	}
+
+	public synchronized void recordFailure() {
+		consecutiveFailures++;
+		if (state == State.HALF_OPEN || consecutiveFailures >= failureThreshold) {
+			state = State.OPEN;
+			openedAtMs = System.currentTimeMillis();
+			trialInFlight = false;
+		}
+	}
+
+	public synchronized State getState() {
+		return state;
+	}
+}
@@ -0,0 +1,91 @@
+import java.io.IOException;
+
+import org.springframework.stereotype.Component;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.SerializerProvider;
+import com.fasterxml.jackson.databind.module.SimpleModule;
+import com.fasterxml.jackson.databind.ser.std.StdSerializer;
+
+/*
+ * LongCollectionsModule teaches Jackson to write LongHashSet as a JSON array of numbers and LongObjectHashMap as a
+ * JSON object keyed by the long keys, without boxing any key along the way. Spring Boot registers every Module
+ * bean with its ObjectMapper, so controllers can return these collections directly.
+ */
+@Component
+public class LongCollectionsModule extends SimpleModule {
+
+	public LongCollectionsModule() {
+		super("LongCollectionsModule");
+		addSerializer(new LongHashSetSerializer());
+		addSerializer(new LongObjectHashMapSerializer());
+	}
+
+	static class LongHashSetSerializer extends StdSerializer<LongHashSet> {
+
+		LongHashSetSerializer() {
+			super(LongHashSet.class);
+		}
+
+		@Override
+		public void serialize(LongHashSet set, JsonGenerator gen, SerializerProvider provider) throws IOException {
+			gen.writeStartArray();
+			try {
+				set.forEach(value -> {
+					try {
+						gen.writeNumber(value);
+					}
+					catch (IOException e) {
+						throw new JsonWriteException(e);
+					}
+				});
+			}
+			catch (JsonWriteException e) {
+				throw e.getCause();
+			}
+			gen.writeEndArray();
+		}
+	}
+
+	@SuppressWarnings("rawtypes")
+	static class LongObjectHashMapSerializer extends StdSerializer<LongObjectHashMap> {
+
+		LongObjectHashMapSerializer() {
+			super(LongObjectHashMap.class);
+		}
+
+		@Override
+		@SuppressWarnings("unchecked")
+		public void serialize(LongObjectHashMap map, JsonGenerator gen, SerializerProvider provider) throws IOException {
+			gen.writeStartObject();
+			try {
+				map.forEach((key, value) -> {
+					try {
+						gen.writeFieldId(key);
+						provider.defaultSerializeValue(value, gen);
+					}
+					catch (IOException e) {
+						throw new JsonWriteException(e);
+					}
+				});
+			}
+			catch (JsonWriteException e) {
+				throw e.getCause();
+			}
+			gen.writeEndObject();
+		}
+	}
+
+	//Carries an IOException out of the primitive forEach callbacks, which cannot throw checked exceptions
+	static class JsonWriteException extends RuntimeException {
+
+		JsonWriteException(IOException cause) {
+			super(cause);
+		}
+
+		@Override
+		public synchronized IOException getCause() {
+			return (IOException) super.getCause();
+		}
+	}
+}
@@ -0,0 +1,139 @@
+import java.util.Arrays;
+import java.util.function.LongConsumer;
+
+/*
+ * LongHashSet is a set of primitive long values, used for the userId sets returned by AnswerLogicService.
+ *
+ * Values are stored unboxed in a single open addressing table with linear probing, so a set of n userIds costs
+ * 11 to 21 bytes per id instead of a HashMap.Node plus a boxed Long per id in a HashSet<Long>. The value 0 marks
+ * an empty slot in the table and is tracked with a separate flag.
+ */
+public class LongHashSet {
+
+	private static final int DEFAULT_CAPACITY = 8;
+	private static final float LOAD_FACTOR = 0.75f;
+
+	private long[] table;
+	private int mask;
+	private int size;
+	private boolean containsZero;
+
+	public LongHashSet() {
+		this(DEFAULT_CAPACITY);
+	}
+
+	public LongHashSet(int expectedSize) {
+		int capacity = tableSizeFor(expectedSize);
+		table = new long[capacity];
+		mask = capacity - 1;
+	}
+
+	/*
+	 * Adds a value to the set, returning true if it was not already present.
+	 */
+	public boolean add(long value) {
+		if (value == 0) {
+			if (containsZero) {
+				return false;
+			}
+			containsZero = true;
+			size++;
+			return true;
+		}
+
+		int idx = hash(value) & mask;
+		while (table[idx] != 0) {
+			if (table[idx] == value) {
+				return false;
+			}
+			idx = (idx + 1) & mask;
+		}
+		table[idx] = value;
+		size++;
+
+		if (size > (mask + 1) * LOAD_FACTOR) {
+			rehash(table.length * 2);
+		}
+		return true;
+	}
+
+	public boolean contains(long value) {
+		if (value == 0) {
+			return containsZero;
+		}
+
+		int idx = hash(value) & mask;
+		while (table[idx] != 0) {
+			if (table[idx] == value) {
+				return true;
+			}
+			idx = (idx + 1) & mask;
+		}
+		return false;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	public void forEach(LongConsumer action) {
+		if (containsZero) {
+			action.accept(0L);
+		}
+		for (long value : table) {
+			if (value != 0) {
+				action.accept(value);
+			}
+		}
+	}
+
+	/*
+	 * Returns the values of the set in ascending order.
+	 */
+	public long[] toSortedArray() {
+		long[] values = new long[size];
+		int i = 0;
+		if (containsZero) {
+			values[i++] = 0L;
+		}
+		for (long value : table) {
+			if (value != 0) {
+				values[i++] = value;
+			}
+		}
+		Arrays.sort(values);
+		return values;
+	}
+
+	private void rehash(int newCapacity) {
+		long[] oldTable = table;
+		table = new long[newCapacity];
+		mask = newCapacity - 1;
+
+		for (long value : oldTable) {
+			if (value != 0) {
+				int idx = hash(value) & mask;
+				while (table[idx] != 0) {
+					idx = (idx + 1) & mask;
+				}
+				table[idx] = value;
+			}
+		}
+	}
+
+	//Fibonacci hashing spreads sequential userIds across the whole table
+	static int hash(long value) {
+		long h = value * 0x9E3779B97F4A7C15L;
+		return (int) (h ^ (h >>> 32));
+	}
+
+	static int tableSizeFor(int expectedSize) {
+		long needed = (long) Math.ceil(Math.max(expectedSize, 1) / LOAD_FACTOR) + 1;
+		int capacity = Integer.highestOneBit((int) Math.min(needed, 1 << 30));
+		return Math.max(capacity < needed ? capacity << 1 : capacity, DEFAULT_CAPACITY);
+	}
+}
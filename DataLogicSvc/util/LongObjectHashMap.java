@@ -0,0 +1,200 @@
+import java.util.AbstractCollection;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/*
+ * LongObjectHashMap is a map from primitive long keys to objects, used for the userId and questionId keyed maps
+ * in DataLogicSvc.
+ *
+ * Keys are stored unboxed in an open addressing table with linear probing alongside a parallel value array, so
+ * an entry costs two array slots instead of a HashMap.Node plus a boxed Long. The key 0 is kept outside the
+ * table, as in LongHashSet. Null values are not supported.
+ */
+public class LongObjectHashMap<V> {
+
+	/*
+	 * Callback for forEach(), receiving each key without boxing it.
+	 */
+	public interface EntryConsumer<V> {
+		void accept(long key, V value);
+	}
+
+	private static final int DEFAULT_CAPACITY = 8;
+	private static final float LOAD_FACTOR = 0.75f;
+
+	private long[] keys;
+	private Object[] values;
+	private int mask;
+	private int size;
+	private V zeroValue;
+
+	public LongObjectHashMap() {
+		this(DEFAULT_CAPACITY);
+	}
+
+	public LongObjectHashMap(int expectedSize) {
+		int capacity = LongHashSet.tableSizeFor(expectedSize);
+		keys = new long[capacity];
+		values = new Object[capacity];
+		mask = capacity - 1;
+	}
+
+	@SuppressWarnings("unchecked")
+	public V get(long key) {
+		if (key == 0) {
+			return zeroValue;
+		}
+
+		int idx = LongHashSet.hash(key) & mask;
+		while (values[idx] != null) {
+			if (keys[idx] == key) {
+				return (V) values[idx];
+			}
+			idx = (idx + 1) & mask;
+		}
+		return null;
+	}
+
+	public boolean containsKey(long key) {
+		return get(key) != null;
+	}
+
+	/*
+	 * Maps key to value, returning the value previously mapped to key or null if there was none.
+	 */
+	@SuppressWarnings("unchecked")
+	public V put(long key, V value) {
+		if (value == null) {
+			throw new IllegalArgumentException("LongObjectHashMap does not support null values");
+		}
+		if (key == 0) {
+			V prev = zeroValue;
+			zeroValue = value;
+			if (prev == null) {
+				size++;
+			}
+			return prev;
+		}
+
+		int idx = LongHashSet.hash(key) & mask;
+		while (values[idx] != null) {
+			if (keys[idx] == key) {
+				V prev = (V) values[idx];
+				values[idx] = value;
+				return prev;
+			}
+			idx = (idx + 1) & mask;
+		}
+		keys[idx] = key;
+		values[idx] = value;
+		size++;
+
+		if (size > (mask + 1) * LOAD_FACTOR) {
+			rehash(keys.length * 2);
+		}
+		return null;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	@SuppressWarnings("unchecked")
+	public void forEach(EntryConsumer<? super V> action) {
+		if (zeroValue != null) {
+			action.accept(0L, zeroValue);
+		}
+		for (int i = 0; i < values.length; i++) {
+			if (values[i] != null) {
+				action.accept(keys[i], (V) values[i]);
+			}
+		}
+	}
+
+	/*
+	 * Returns the keys of the map, in table order.
+	 */
+	public long[] keys() {
+		long[] keyArr = new long[size];
+		int k = 0;
+		if (zeroValue != null) {
+			keyArr[k++] = 0L;
+		}
+		for (int i = 0; i < values.length; i++) {
+			if (values[i] != null) {
+				keyArr[k++] = keys[i];
+			}
+		}
+		return keyArr;
+	}
+
+	/*
+	 * Returns a read-only view of the values of the map. The view is backed by the map and is not copied.
+	 */
+	public Collection<V> values() {
+		return new AbstractCollection<V>() {
+			@Override
+			public Iterator<V> iterator() {
+				return new ValueIterator();
+			}
+
+			@Override
+			public int size() {
+				return size;
+			}
+		};
+	}
+
+	private void rehash(int newCapacity) {
+		long[] oldKeys = keys;
+		Object[] oldValues = values;
+		keys = new long[newCapacity];
+		values = new Object[newCapacity];
+		mask = newCapacity - 1;
+
+		for (int i = 0; i < oldValues.length; i++) {
+			if (oldValues[i] != null) {
+				int idx = LongHashSet.hash(oldKeys[i]) & mask;
+				while (values[idx] != null) {
+					idx = (idx + 1) & mask;
+				}
+				keys[idx] = oldKeys[i];
+				values[idx] = oldValues[i];
+			}
+		}
+	}
+
+	private class ValueIterator implements Iterator<V> {
+
+		private int next = zeroValue != null ? -1 : advance(0);
+
+		@Override
+		public boolean hasNext() {
+			return next < values.length;
+		}
+
+		@Override
+		@SuppressWarnings("unchecked")
+		public V next() {
+			if (!hasNext()) {
+				throw new NoSuchElementException();
+			}
+			V value = next == -1 ? zeroValue : (V) values[next];
+			next = advance(next + 1);
+			return value;
+		}
+
+		private int advance(int from) {
+			int idx = from;
+			while (idx < values.length && values[idx] == null) {
+				idx++;
+			}
+			return idx;
+		}
+	}
+}
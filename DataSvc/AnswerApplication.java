@@ -1,11 +1,39 @@
+import java.util.Properties;
+
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
+import org.springframework.scheduling.annotation.EnableScheduling;
 
 @SpringBootApplication
+@EnableScheduling
 public class AnswerApplication {
 
     public static void main(String[] args) {
-        SpringApplication.run(AnswerApplication.class, args);
+        SpringApplication application = new SpringApplication(AnswerApplication.class);
+        application.setDefaultProperties(defaultProperties());
+        application.run(args);
+    }
+    
+    /*
+     * Exposes every meter for scraping at /actuator/prometheus, tagged with the application, with histogram buckets
+     * for http.server.requests and the answer.* timers and summaries, so that percentiles can be aggregated across
+     * instances. Log lines carry the trace and span ids of the request (see TraceContext). Any of these can be
+     * overridden like other properties.
+     * 
+     * Streamed responses (StreamingResponseBody) run as async requests, which Spring MVC would otherwise cut off
+     * after the container's 30s default, truncating the body of any large result. They have no time limit, as a
+     * stream whose client has gone fails on its next write. The change stream sets its own limit, see
+     * AnswerChangeStream.
+     */
+    private static Properties defaultProperties() {
+    	Properties defaults = new Properties();
+    	defaults.setProperty("spring.mvc.async.request-timeout", "-1");
+    	defaults.setProperty("management.endpoints.web.exposure.include", "health,info,metrics,prometheus");
+    	defaults.setProperty("management.metrics.tags.application", "AnswerSvc");
+    	defaults.setProperty("management.metrics.distribution.percentiles-histogram.http.server.requests", "true");
+    	defaults.setProperty("management.metrics.distribution.percentiles-histogram.answer", "true");
+    	defaults.setProperty("logging.pattern.level", "%5p [%X{traceId:-},%X{spanId:-}]");
+    	return defaults;
     }
 
 }
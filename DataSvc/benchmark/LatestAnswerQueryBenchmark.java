@@ -0,0 +1,182 @@
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.time.LocalDateTime;
+import java.util.Random;
+
+/*
+ * LatestAnswerQueryBenchmark compares the row_number() window queries AnswerRepo used for ?recent=true against reads
+ * of the LATEST_ANSWER projection, on a synthetic ANSWER table in an embedded database.
+ *
+ * The synthetic table has users * questions * versions rows (600K by default: 20K users answering 10 questions 3
+ * times each), so the projection holds users * questions rows. For each shape of query the benchmark reports the
+ * mean time to read the whole result:
+ * 		all			every most recent answer
+ * 		by user		the most recent answers of one user, averaged over sampled users
+ * 		by question	the most recent answers to one question, averaged over all questions
+ *
+ * The tables are created under BENCH_ names so that the benchmark can also be pointed at a scratch Postgres
+ * database. The window queries are those of AnswerRepo with the row alias renamed, as ROW is reserved in H2.
+ *
+ * Run with the H2 (or Postgres) driver on the classpath, e.g.
+ * 		java -cp .:h2.jar LatestAnswerQueryBenchmark [jdbcUrl] [users] [questions] [versions]
+ */
+public class LatestAnswerQueryBenchmark {
+
+	private static final String COLUMNS = "id, \"userId\", \"questionId\", answer, answerdate, kit_id, test_id, questionnaire_id";
+
+	private static final String WINDOW_ALL = "SELECT " + COLUMNS + " FROM (with temp as (" +
+				"SELECT row_number() over (partition by \"userId\", \"questionId\" order by answerdate desc) as rn, * " +
+				"FROM \"BENCH_ANSWER\") SELECT * from temp WHERE rn = 1) as foo";
+	private static final String WINDOW_BY_USER_ID = "SELECT " + COLUMNS + " FROM (with temp as (" +
+				"SELECT row_number() over (partition by \"userId\", \"questionId\" order by answerdate desc) as rn, * " +
+				"FROM \"BENCH_ANSWER\") SELECT * from temp WHERE rn = 1 AND \"userId\" = ?) as foo";
+	private static final String WINDOW_BY_QUESTION_ID = "SELECT " + COLUMNS + " FROM (with temp as (" +
+				"SELECT row_number() over (partition by \"userId\", \"questionId\" order by answerdate desc) as rn, * " +
+				"FROM \"BENCH_ANSWER\") SELECT * from temp WHERE rn = 1 AND \"questionId\" = ?) as foo";
+
+	private static final String LATEST_ALL = "SELECT " + COLUMNS + " FROM \"BENCH_LATEST_ANSWER\"";
+	private static final String LATEST_BY_USER_ID = LATEST_ALL + " WHERE \"userId\" = ?";
+	private static final String LATEST_BY_QUESTION_ID = LATEST_ALL + " WHERE \"questionId\" = ?";
+
+	private static final int WARMUP = 2;
+	private static final int ITERATIONS = 5;
+	private static final int SAMPLED_USERS = 200;
+
+	public static void main(String[] args) throws SQLException {
+		String url = args.length > 0 ? args[0] : "jdbc:h2:mem:bench;MODE=PostgreSQL";
+		int users = args.length > 1 ? Integer.parseInt(args[1]) : 20_000;
+		int questions = args.length > 2 ? Integer.parseInt(args[2]) : 10;
+		int versions = args.length > 3 ? Integer.parseInt(args[3]) : 3;
+
+		try (Connection conn = DriverManager.getConnection(url)) {
+			createTables(conn);
+			populate(conn, users, questions, versions);
+
+			System.out.printf("Synthetic ANSWER rows: %,d (%,d users x %d questions x %d versions)%n",
+					(long) users * questions * versions, users, questions, versions);
+
+			Random random = new Random(7);
+			long[] sampledUsers = new long[SAMPLED_USERS];
+			for (int i = 0; i < SAMPLED_USERS; i++) {
+				sampledUsers[i] = random.nextInt(users);
+			}
+			long[] allQuestions = new long[questions];
+			for (int q = 0; q < questions; q++) {
+				allQuestions[q] = q + 1;
+			}
+
+			report("all", time(conn, WINDOW_ALL, null), time(conn, LATEST_ALL, null));
+			report("by user", time(conn, WINDOW_BY_USER_ID, sampledUsers), time(conn, LATEST_BY_USER_ID, sampledUsers));
+			report("by question", time(conn, WINDOW_BY_QUESTION_ID, allQuestions), time(conn, LATEST_BY_QUESTION_ID, allQuestions));
+
+			try (Statement stmt = conn.createStatement()) {
+				stmt.execute("DROP TABLE \"BENCH_LATEST_ANSWER\"");
+				stmt.execute("DROP TABLE \"BENCH_ANSWER\"");
+			}
+		}
+	}
+
+	private static void createTables(Connection conn) throws SQLException {
+		try (Statement stmt = conn.createStatement()) {
+			stmt.execute("DROP TABLE IF EXISTS \"BENCH_LATEST_ANSWER\"");
+			stmt.execute("DROP TABLE IF EXISTS \"BENCH_ANSWER\"");
+			stmt.execute("CREATE TABLE \"BENCH_ANSWER\" (id bigint PRIMARY KEY, \"userId\" bigint NOT NULL, " +
+						 "\"questionId\" bigint NOT NULL, answer varchar(255), answerdate timestamp, kit_id varchar(255), " +
+						 "test_id bigint, questionnaire_id bigint)");
+			stmt.execute("CREATE TABLE \"BENCH_LATEST_ANSWER\" (\"userId\" bigint NOT NULL, \"questionId\" bigint NOT NULL, " +
+						 "id bigint NOT NULL, answer varchar(255), answerdate timestamp, kit_id varchar(255), test_id bigint, " +
+						 "questionnaire_id bigint, PRIMARY KEY (\"userId\", \"questionId\"))");
+			stmt.execute("CREATE INDEX \"BENCH_LATEST_ANSWER_questionId_idx\" ON \"BENCH_LATEST_ANSWER\" (\"questionId\", \"userId\")");
+		}
+	}
+
+	//The projection is backfilled once from the window query, as latest_answer.sql does, rather than by triggers,
+	//which are Postgres-specific and only affect write cost
+	private static void populate(Connection conn, int users, int questions, int versions) throws SQLException {
+		conn.setAutoCommit(false);
+		LocalDateTime start = LocalDateTime.of(2018, 1, 1, 0, 0);
+		long id = 0;
+
+		try (PreparedStatement insert = conn.prepareStatement("INSERT INTO \"BENCH_ANSWER\" (" + COLUMNS + ") VALUES (?, ?, ?, ?, ?, ?, ?, ?)")) {
+			for (int v = 0; v < versions; v++) {
+				for (int user = 0; user < users; user++) {
+					for (int q = 1; q <= questions; q++) {
+						bind(insert, ++id, user, q, "answer " + (id % 50), start.plusDays(v * 30L + q));
+						insert.addBatch();
+					}
+					if (user % 1000 == 999) {
+						insert.executeBatch();
+					}
+				}
+				insert.executeBatch();
+			}
+		}
+
+		try (PreparedStatement insert = conn.prepareStatement("INSERT INTO \"BENCH_LATEST_ANSWER\" (" + COLUMNS + ") " + WINDOW_ALL)) {
+			insert.executeUpdate();
+		}
+		conn.commit();
+		conn.setAutoCommit(true);
+	}
+
+	private static void bind(PreparedStatement insert, long id, long userId, long questionId, String answer,
+							 LocalDateTime answerDate) throws SQLException {
+		insert.setLong(1, id);
+		insert.setLong(2, userId);
+		insert.setLong(3, questionId);
+		insert.setString(4, answer);
+		insert.setTimestamp(5, Timestamp.valueOf(answerDate));
+		insert.setString(6, "kit" + userId);
+		insert.setLong(7, 1L);
+		insert.setLong(8, 1L);
+	}
+
+	//Returns the mean milliseconds to run the query and read every row, once per key if keys are given
+	private static double time(Connection conn, String sql, long[] keys) throws SQLException {
+		long rows = 0;
+		long elapsed = 0;
+		for (int i = 0; i < WARMUP + ITERATIONS; i++) {
+			long begin = System.nanoTime();
+			try (PreparedStatement stmt = conn.prepareStatement(sql)) {
+				if (keys == null) {
+					rows += readAll(stmt);
+				}
+				else {
+					for (long key : keys) {
+						stmt.setLong(1, key);
+						rows += readAll(stmt);
+					}
+				}
+			}
+			if (i >= WARMUP) {
+				elapsed += System.nanoTime() - begin;
+			}
+		}
+		if (rows == 0) {
+			throw new IllegalStateException("No rows read by " + sql);
+		}
+		return elapsed / 1e6 / ITERATIONS / (keys == null ? 1 : keys.length);
+	}
+
+	private static long readAll(PreparedStatement stmt) throws SQLException {
+		long rows = 0;
+		try (ResultSet rs = stmt.executeQuery()) {
+			while (rs.next()) {
+				rs.getLong(2);
+				rs.getString(4);
+				rows++;
+			}
+		}
+		return rows;
+	}
+
+	private static void report(String label, double windowMs, double latestMs) {
+		System.out.printf("%-12s window %,10.3f ms   LATEST_ANSWER %,10.3f ms   (%.1fx)%n",
+				label, windowMs, latestMs, windowMs / latestMs);
+	}
+}
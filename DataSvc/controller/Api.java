@@ -4,13 +4,42 @@
  * By passing in a value of true for the parameter "recent", requests to this endpoint will include, for
  * each user/question combination, only the one most recent answer. For example, if a user answered Question 1 
  * four times, and Question 2 three times, only one recent response for each question will be retrieved if 
- * "?recent=true" is in the GET request url.
+ * "?recent=true" is in the GET request url. Recent answers are read from the LATEST_ANSWER table, which
+ * sql/latest_answer.sql creates and keeps up to date as answers are written.
  * 
  * NOTE: As of 7/26/19 the pom.xml file is set only for local database access.
  * 
  * @param /answers 											returns all rows of ANSWER table
  * @param /answers/users/{userId} 							returns all rows corresponding to userId
+ * @param /answers/users (POST)								returns the most recent answers of many users as questionId:answer maps
  * @param /answers/questions/{qId}?recent={true/false}		returns all rows for questionId except those for obsoleted answers
+ * @param /answers/userIdRange?recent={true/false}			returns the smallest and one past the largest userId with an answer
+ * @param /answers/changes?sinceId={watermark}				returns the changes to the most recent answers after a watermark
+ * @param /answers/changes/stream?sinceId={watermark}		streams the changes after a watermark as server-sent events
+ * 
+ * Each endpoint also streams its rows as newline-delimited JSON, one Answer object per line, when requested with
+ * "Accept: application/x-ndjson". Rows are written as they are read from a database cursor, so memory use stays
+ * bounded and the first rows arrive before the query has finished, however large the result.
+ * 
+ * With "Accept: application/x-answer-columnar" the same rows are streamed in the binary columnar format described
+ * in AnswerColumnarEncoder, optionally restricted to a subset of columns with ?columns=userId,questionId,... This is
+ * the format DataLogicSvc uses, as it is far cheaper to encode and decode than JSON.
+ * 
+ * Every endpoint can also be paged with ?after={cursor}&limit={n}, and /answers and /answers/questions/{qId} can be
+ * restricted to a userId range with ?fromUserId={from}&toUserId={to}. Paged rows are ordered by userId, questionId
+ * and id, and a full page carries the cursor of the next one in the X-Next-Cursor header. See AnswerPage.
+ * 
+ * Unpaged responses are kept serialized in AnswerResponseCache, which drops them when their answers change, so
+ * repeated requests for the same result are answered without a query. All responses, JSON included, are written
+ * as the rows are read rather than from a list held in memory.
+ * 
+ * Responses carry an ETag and Last-Modified for the version of the table, user or question they hold (see
+ * AnswerChangeTracker). A request sending a matching If-None-Match or If-Modified-Since gets an empty 304 Not
+ * Modified instead of the rows.
+ * 
+ * The database and serialization time, rows and bytes of each response are recorded by AnswerQueryMetrics, and all
+ * metrics can be scraped from /actuator/prometheus. A traceparent header sent by the caller is continued (see
+ * TraceContext).
  * 
  * @author David Fu
  */
@@ -24,19 +53,66 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.NoSuchElementException;
 import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.util.function.Consumer;
 
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.data.util.Pair;
 import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.context.request.RequestContextHolder;
+import org.springframework.web.context.request.ServletRequestAttributes;
+import org.springframework.web.context.request.ServletWebRequest;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
 
 @RestController
 public class Api {
 
+    private static final String NDJSON = "application/x-ndjson";
+    private static final String COLUMNAR = AnswerColumnarEncoder.MEDIA_TYPE;
+    private static final String JSON = "application/json";
+
     @Autowired
     private AnswerService answerSvc;
     
+    @Autowired
+    private ObjectMapper objectMapper;
+    
+    @Autowired
+    private AnswerResponseCache responseCache;
+    
+    @Autowired
+    private AnswerChangeTracker changeTracker;
+    
+    @Autowired
+    private AnswerChangeStream changeStream;
+    
+    @Autowired
+    private AnswerQueryMetrics queryMetrics;
+    
+    //How long a streamed response may leave its query waiting for the client before the query is ended
+    @Value("${answer_cursor_stall_ms:300000}")
+    private long cursorStallMs;
+    
+    //Runs the queries of streamed responses, see AnswerCursor
+    private final ExecutorService cursorThreads = Executors.newCachedThreadPool(runnable -> {
+    	Thread thread = new Thread(runnable, "answer-cursor");
+    	thread.setDaemon(true);
+    	return thread;
+    });
+    
 	/**
 	 * Returns a list of all answers of all users for the ANSWER table.
 	 * 
@@ -44,14 +120,20 @@ public class Api {
 	 * in the ANSWER table - in other words, one user's answer to one question.
 	 * 
 	 * @param recent - if true, for each question:user combination, only one most recent answer is returned
+	 * @param after      - keyset cursor userId,questionId,id; only rows after it are returned (optional)
+	 * @param limit      - maximum number of rows to return, at most AnswerPage.MAX_LIMIT (optional)
+	 * @param fromUserId - only rows with userId at least fromUserId are returned (optional)
+	 * @param toUserId   - only rows with userId less than toUserId are returned (optional)
 	 * @return JSON List<Answer> of all users and all questions
 	 */
     @GetMapping(path = "/answers", produces = "application/json")
-    public List<Answer> getAll(@RequestParam(value = "recent", defaultValue = "false") boolean recent) {
-    	if (recent) {
-    		return answerSvc.getAllMostRecent();
-    	}
-    	return answerSvc.getAll();
+    public ResponseEntity<StreamingResponseBody> getAll(@RequestParam(value = "recent", defaultValue = "false") boolean recent,
+    		 @RequestParam(value = "after", required = false) String after,
+    		 @RequestParam(value = "limit", required = false) Integer limit,
+    		 @RequestParam(value = "fromUserId", required = false) Long fromUserId,
+    		 @RequestParam(value = "toUserId", required = false) Long toUserId) {
+    	AnswerPage page = AnswerPage.of(after, limit, fromUserId, toUserId);
+    	return cachedStreamOf(allKey(recent, JSON), page, this::writeJson, consumer -> answerSvc.streamAll(recent, page, consumer));
     }
 
 	/**
@@ -62,15 +144,47 @@ public class Api {
 	 * 
 	 * @param recent - if true, for each question:user combination, only one most recent answer is returned
 	 * @param userId - the userId field from the ANSWER table
+	 * @param after      - keyset cursor userId,questionId,id; only rows after it are returned (optional)
+	 * @param limit      - maximum number of rows to return, at most AnswerPage.MAX_LIMIT (optional)
 	 * @return JSON List<Answer> of all answers of user with userId
 	 */
     @GetMapping(path = "/answers/users/{userId}", produces = "application/json")
-    public List<Answer> getRecentAnswerByUserId(@PathVariable("userId") Long userId, 
-    													@RequestParam(value = "recent", defaultValue = "false") boolean recent) {
-    	if (recent) {
-    		return answerSvc.getRecentAnswerByUserId(userId);
-    	}
-    	return answerSvc.getAnswerByUserId(userId);
+    public ResponseEntity<StreamingResponseBody> getRecentAnswerByUserId(@PathVariable("userId") Long userId, 
+    													@RequestParam(value = "recent", defaultValue = "false") boolean recent,
+    		 @RequestParam(value = "after", required = false) String after,
+    		 @RequestParam(value = "limit", required = false) Integer limit) {
+    	AnswerPage page = AnswerPage.of(after, limit, null, null);
+    	return cachedStreamOf(userKey(userId, recent, JSON), page, this::writeJson, 
+    						  consumer -> answerSvc.streamAnswerByUserId(userId, recent, page, consumer));
+    }
+
+	/**
+	 * Returns the most recent answers of many users at once, as a map per user of questionId to answer, so that a
+	 * client needing the answers of many users makes one request rather than one per user.
+	 * 
+	 * The request body lists the userIds, at most UserAnswersRequest.MAX_USERS of them, and optionally the
+	 * questionIds to restrict the answers to, for example:
+	 * 
+	 * {"userIds": [1, 2, 3], "questionIds": [18, 20]}
+	 * 
+	 * All users are read with one query and written out as they are read. Users without any matching answer are
+	 * left out.
+	 * 
+	 * @param request - the userIds and optional questionIds
+	 * @return JSON object mapping userId to an object of questionId:answer for that user
+	 */
+    @PostMapping(path = "/answers/users", consumes = "application/json", produces = "application/json")
+    public ResponseEntity<StreamingResponseBody> getRecentAnswersByUserIds(@RequestBody UserAnswersRequest request) {
+    	request.validate();
+    	AnswerQueryMetrics.Sample sample = queryMetrics.start("users", null, JSON);
+    	AnswerCursor cursor = openCursor(sample.time(
+    			consumer -> answerSvc.streamRecentAnswersByUserIds(request.getUserIds(), request.getQuestionIds(), consumer)));
+    	return ResponseEntity.ok(out -> {
+    		try (AnswerCursor rows = cursor) {
+    			writeUserMaps(sample.count(out), rows);
+    		}
+    		sample.stop();
+    	});
     }
 
 	/**
@@ -81,18 +195,452 @@ public class Api {
 	 * 
 	 * @param recent - if true, for each question:user combination, only one most recent answer is returned
 	 * @param qId    - an entry from the questionId field from the ANSWER table
+	 * @param after      - keyset cursor userId,questionId,id; only rows after it are returned (optional)
+	 * @param limit      - maximum number of rows to return, at most AnswerPage.MAX_LIMIT (optional)
+	 * @param fromUserId - only rows with userId at least fromUserId are returned (optional)
+	 * @param toUserId   - only rows with userId less than toUserId are returned (optional)
 	 * @return JSON List<Answer> of all answers for question qId
 	 */
     @GetMapping(path = "/answers/questions/{qId}", produces = "application/json")
-    public List<Answer> getRecentAnswerByQId(@PathVariable("qId") Long qId, 
-    												 @RequestParam(value = "recent", defaultValue = "false") boolean recent) {
-    	if (recent) {
-        	return answerSvc.getRecentAnswerByQId(qId);
+    public ResponseEntity<StreamingResponseBody> getRecentAnswerByQId(@PathVariable("qId") Long qId, 
+    												 @RequestParam(value = "recent", defaultValue = "false") boolean recent,
+    		 @RequestParam(value = "after", required = false) String after,
+    		 @RequestParam(value = "limit", required = false) Integer limit,
+    		 @RequestParam(value = "fromUserId", required = false) Long fromUserId,
+    		 @RequestParam(value = "toUserId", required = false) Long toUserId) {
+    	AnswerPage page = AnswerPage.of(after, limit, fromUserId, toUserId);
+    	return cachedStreamOf(questionKey(qId, recent, JSON), page, this::writeJson, 
+    						  consumer -> answerSvc.streamAnswerByQId(qId, recent, page, consumer));
+    }
+
+	/**
+	 * Streams all answers of all users for the ANSWER table as newline-delimited JSON.
+	 * 
+	 * @param recent - if true, for each question:user combination, only one most recent answer is returned
+	 * @param after      - keyset cursor userId,questionId,id; only rows after it are returned (optional)
+	 * @param limit      - maximum number of rows to return, at most AnswerPage.MAX_LIMIT (optional)
+	 * @param fromUserId - only rows with userId at least fromUserId are returned (optional)
+	 * @param toUserId   - only rows with userId less than toUserId are returned (optional)
+	 * @return NDJSON stream of Answer objects of all users and all questions
+	 */
+    @GetMapping(path = "/answers", produces = NDJSON)
+    public ResponseEntity<StreamingResponseBody> streamAll(@RequestParam(value = "recent", defaultValue = "false") boolean recent,
+    		 @RequestParam(value = "after", required = false) String after,
+    		 @RequestParam(value = "limit", required = false) Integer limit,
+    		 @RequestParam(value = "fromUserId", required = false) Long fromUserId,
+    		 @RequestParam(value = "toUserId", required = false) Long toUserId) {
+    	AnswerPage page = AnswerPage.of(after, limit, fromUserId, toUserId);
+    	return cachedStreamOf(allKey(recent, NDJSON), page, this::writeNdjson, consumer -> answerSvc.streamAll(recent, page, consumer));
+    }
+
+	/**
+	 * Streams all answers for a given user for the ANSWER table as newline-delimited JSON.
+	 * 
+	 * @param recent - if true, for each question:user combination, only one most recent answer is returned
+	 * @param userId - the userId field from the ANSWER table
+	 * @param after      - keyset cursor userId,questionId,id; only rows after it are returned (optional)
+	 * @param limit      - maximum number of rows to return, at most AnswerPage.MAX_LIMIT (optional)
+	 * @return NDJSON stream of Answer objects of user with userId
+	 */
+    @GetMapping(path = "/answers/users/{userId}", produces = NDJSON)
+    public ResponseEntity<StreamingResponseBody> streamAnswerByUserId(@PathVariable("userId") Long userId, 
+    												  @RequestParam(value = "recent", defaultValue = "false") boolean recent,
+    		 @RequestParam(value = "after", required = false) String after,
+    		 @RequestParam(value = "limit", required = false) Integer limit) {
+    	AnswerPage page = AnswerPage.of(after, limit, null, null);
+    	return cachedStreamOf(userKey(userId, recent, NDJSON), page, this::writeNdjson, 
+    						  consumer -> answerSvc.streamAnswerByUserId(userId, recent, page, consumer));
+    }
+
+	/**
+	 * Streams all answers for a given question for the ANSWER table as newline-delimited JSON.
+	 * 
+	 * @param recent - if true, for each question:user combination, only one most recent answer is returned
+	 * @param qId    - an entry from the questionId field from the ANSWER table
+	 * @param after      - keyset cursor userId,questionId,id; only rows after it are returned (optional)
+	 * @param limit      - maximum number of rows to return, at most AnswerPage.MAX_LIMIT (optional)
+	 * @param fromUserId - only rows with userId at least fromUserId are returned (optional)
+	 * @param toUserId   - only rows with userId less than toUserId are returned (optional)
+	 * @return NDJSON stream of Answer objects for question qId
+	 */
+    @GetMapping(path = "/answers/questions/{qId}", produces = NDJSON)
+    public ResponseEntity<StreamingResponseBody> streamAnswerByQId(@PathVariable("qId") Long qId, 
+    											   @RequestParam(value = "recent", defaultValue = "false") boolean recent,
+    		 @RequestParam(value = "after", required = false) String after,
+    		 @RequestParam(value = "limit", required = false) Integer limit,
+    		 @RequestParam(value = "fromUserId", required = false) Long fromUserId,
+    		 @RequestParam(value = "toUserId", required = false) Long toUserId) {
+    	AnswerPage page = AnswerPage.of(after, limit, fromUserId, toUserId);
+    	return cachedStreamOf(questionKey(qId, recent, NDJSON), page, this::writeNdjson, 
+    						  consumer -> answerSvc.streamAnswerByQId(qId, recent, page, consumer));
+    }
+    
+	/**
+	 * Streams all answers of all users for the ANSWER table in the binary columnar format.
+	 * 
+	 * @param recent  - if true, for each question:user combination, only one most recent answer is returned
+	 * @param columns - comma-separated columns to include, of userId, questionId, answerDate and answer (default all)
+	 * @param after      - keyset cursor userId,questionId,id; only rows after it are returned (optional)
+	 * @param limit      - maximum number of rows to return, at most AnswerPage.MAX_LIMIT (optional)
+	 * @param fromUserId - only rows with userId at least fromUserId are returned (optional)
+	 * @param toUserId   - only rows with userId less than toUserId are returned (optional)
+	 * @return columnar stream of all users and all questions
+	 */
+    @GetMapping(path = "/answers", produces = COLUMNAR)
+    public ResponseEntity<StreamingResponseBody> streamAllColumnar(@RequestParam(value = "recent", defaultValue = "false") boolean recent,
+    											   @RequestParam(value = "columns", required = false) String columns,
+    		 @RequestParam(value = "after", required = false) String after,
+    		 @RequestParam(value = "limit", required = false) Integer limit,
+    		 @RequestParam(value = "fromUserId", required = false) Long fromUserId,
+    		 @RequestParam(value = "toUserId", required = false) Long toUserId) {
+    	int columnMask = AnswerColumnarEncoder.parseColumns(columns);
+    	AnswerPage page = AnswerPage.of(after, limit, fromUserId, toUserId);
+    	return cachedStreamOf(allKey(recent, COLUMNAR + columnMask), page, (out, producer) -> writeColumnar(out, columnMask, producer), 
+    						  consumer -> answerSvc.streamAll(recent, page, consumer));
+    }
+
+	/**
+	 * Streams all answers for a given user for the ANSWER table in the binary columnar format.
+	 * 
+	 * @param recent  - if true, for each question:user combination, only one most recent answer is returned
+	 * @param userId  - the userId field from the ANSWER table
+	 * @param columns - comma-separated columns to include, of userId, questionId, answerDate and answer (default all)
+	 * @param after      - keyset cursor userId,questionId,id; only rows after it are returned (optional)
+	 * @param limit      - maximum number of rows to return, at most AnswerPage.MAX_LIMIT (optional)
+	 * @return columnar stream of all answers of user with userId
+	 */
+    @GetMapping(path = "/answers/users/{userId}", produces = COLUMNAR)
+    public ResponseEntity<StreamingResponseBody> streamAnswerByUserIdColumnar(@PathVariable("userId") Long userId, 
+    														  @RequestParam(value = "recent", defaultValue = "false") boolean recent,
+    														  @RequestParam(value = "columns", required = false) String columns,
+    		 @RequestParam(value = "after", required = false) String after,
+    		 @RequestParam(value = "limit", required = false) Integer limit) {
+    	int columnMask = AnswerColumnarEncoder.parseColumns(columns);
+    	AnswerPage page = AnswerPage.of(after, limit, null, null);
+    	return cachedStreamOf(userKey(userId, recent, COLUMNAR + columnMask), page, (out, producer) -> writeColumnar(out, columnMask, producer), 
+    						  consumer -> answerSvc.streamAnswerByUserId(userId, recent, page, consumer));
+    }
+
+	/**
+	 * Streams all answers for a given question for the ANSWER table in the binary columnar format.
+	 * 
+	 * @param recent  - if true, for each question:user combination, only one most recent answer is returned
+	 * @param qId     - an entry from the questionId field from the ANSWER table
+	 * @param columns - comma-separated columns to include, of userId, questionId, answerDate and answer (default all)
+	 * @param after      - keyset cursor userId,questionId,id; only rows after it are returned (optional)
+	 * @param limit      - maximum number of rows to return, at most AnswerPage.MAX_LIMIT (optional)
+	 * @param fromUserId - only rows with userId at least fromUserId are returned (optional)
+	 * @param toUserId   - only rows with userId less than toUserId are returned (optional)
+	 * @return columnar stream of all answers for question qId
+	 */
+    @GetMapping(path = "/answers/questions/{qId}", produces = COLUMNAR)
+    public ResponseEntity<StreamingResponseBody> streamAnswerByQIdColumnar(@PathVariable("qId") Long qId, 
+    													   @RequestParam(value = "recent", defaultValue = "false") boolean recent,
+    													   @RequestParam(value = "columns", required = false) String columns,
+    		 @RequestParam(value = "after", required = false) String after,
+    		 @RequestParam(value = "limit", required = false) Integer limit,
+    		 @RequestParam(value = "fromUserId", required = false) Long fromUserId,
+    		 @RequestParam(value = "toUserId", required = false) Long toUserId) {
+    	int columnMask = AnswerColumnarEncoder.parseColumns(columns);
+    	AnswerPage page = AnswerPage.of(after, limit, fromUserId, toUserId);
+    	return cachedStreamOf(questionKey(qId, recent, COLUMNAR + columnMask), page, (out, producer) -> writeColumnar(out, columnMask, producer), 
+    						  consumer -> answerSvc.streamAnswerByQId(qId, recent, page, consumer));
+    }
+    
+	/**
+	 * Returns the userId range holding every answer, so that a client can split a full pull into userId-range
+	 * slices of /answers?fromUserId={from}&toUserId={to} and fetch them in parallel.
+	 * 
+	 * @param recent - if true, the range of the most recent answers is returned
+	 * @return JSON object with fromUserId, the smallest userId, and toUserId, one more than the largest userId
+	 */
+    @GetMapping(path = "/answers/userIdRange", produces = "application/json")
+    public ResponseEntity<HashMap<String, Long>> getUserIdRange(@RequestParam(value = "recent", defaultValue = "false") boolean recent) {
+    	if (isNotModified(changeTracker.getTableVersion(), "userIdRange" + recent)) {
+    		return ResponseEntity.status(HttpStatus.NOT_MODIFIED).build();
+    	}
+    	long[] range = answerSvc.getUserIdRange(recent);
+    	
+    	HashMap<String, Long> hmap = new HashMap<String, Long>();
+    	hmap.put("fromUserId", range[0]);
+    	hmap.put("toUserId", range[1]);
+    	return ResponseEntity.ok(hmap);
+    }
+    
+	/**
+	 * Returns the changes to the most recent answers after a watermark, so that a consumer can keep its own copy of
+	 * them up to date instead of reading them all again. Each change carries the current most recent answer of a
+	 * userId/questionId key, or deleted = true if the user no longer has an answer to the question.
+	 * 
+	 * Without sinceId no changes are returned, only the watermark a new consumer should start from. It must be
+	 * taken before the consumer reads the most recent answers, so that no change is missed in between.
+	 * 
+	 * @param sinceId - the watermark returned by the previous call (optional)
+	 * @param limit   - maximum number of change log entries to read, at most AnswerPage.MAX_LIMIT (default 10000)
+	 * @return JSON object with the new watermark, whether more changes are waiting, and the changes in order
+	 */
+    @GetMapping(path = "/answers/changes", produces = "application/json")
+    public AnswerChangeBatch getChanges(@RequestParam(value = "sinceId", required = false) Long sinceId,
+    		 @RequestParam(value = "limit", defaultValue = "10000") int limit) {
+    	if (limit < 1 || limit > AnswerPage.MAX_LIMIT) {
+    		throw new IllegalArgumentException("limit must be between 1 and " + AnswerPage.MAX_LIMIT);
+    	}
+    	if (sinceId == null) {
+    		return new AnswerChangeBatch(answerSvc.getChangeWatermark(), false, new ArrayList<AnswerChange>());
+    	}
+    	return answerSvc.getLatestChangesSince(sinceId, limit);
+    }
+    
+	/**
+	 * Streams the changes to the most recent answers as server-sent events, each carrying the same JSON object as
+	 * /answers/changes and the new watermark as its event id, as soon as they are written. See AnswerChangeStream.
+	 * 
+	 * A client reconnecting after the stream ended sends the id of the last event it received in Last-Event-ID, or
+	 * as sinceId, and resumes right after it.
+	 * 
+	 * @param sinceId     - the watermark to stream changes after (optional, defaults to the current watermark)
+	 * @param lastEventId - Last-Event-ID header, takes precedence over sinceId
+	 * @return text/event-stream of "changes" events
+	 */
+    @GetMapping(path = "/answers/changes/stream", produces = MediaType.TEXT_EVENT_STREAM_VALUE)
+    public SseEmitter streamChanges(@RequestParam(value = "sinceId", required = false) Long sinceId,
+    		 @RequestHeader(value = "Last-Event-ID", required = false) Long lastEventId) {
+    	return changeStream.subscribe(lastEventId != null ? lastEventId : sinceId);
+    }
+    
+    /*
+     * Whole results are served from the response cache when they are in it, and otherwise stored in it as they are
+     * streamed. Paged requests are not cached. Either way the response is measured by AnswerQueryMetrics.
+     */
+    private ResponseEntity<StreamingResponseBody> cachedStreamOf(AnswerResponseCache.Key key, AnswerPage page, RowWriter writer, 
+    															 Consumer<Consumer<Answer>> producer) {
+    	if (isNotModified(versionOf(key), key.getRepresentation() + key.isRecent())) {
+    		return ResponseEntity.status(HttpStatus.NOT_MODIFIED).build();
+    	}
+    	AnswerQueryMetrics.Sample sample = queryMetrics.start(key.getQuery().name().toLowerCase(), 
+    			key.getQuery() == AnswerResponseCache.Query.QUESTION ? key.getId() : null, key.getRepresentation());
+    	if (!page.isUnbounded()) {
+    		return streamOf(page, writer, producer, sample);
+    	}
+    	byte[] cached = responseCache.get(key);
+    	if (cached != null) {
+    		return ResponseEntity.ok(out -> {
+    			out.write(cached);
+    			sample.cached(cached.length);
+    		});
+    	}
+    	AnswerCursor cursor = openCursor(sample.time(producer));
+    	return ResponseEntity.ok(out -> {
+    		AnswerResponseCache.Capture capture = responseCache.capture(key, sample.count(out));
+    		try (AnswerCursor rows = cursor) {
+    			writer.write(capture, rows);
+    		}
+    		capture.commit();
+    		sample.stop();
+    	});
+    }
+    
+    private AnswerChangeTracker.Version versionOf(AnswerResponseCache.Key key) {
+    	switch (key.getQuery()) {
+    	case USER:
+    		return changeTracker.getUserVersion(key.getId());
+    	case QUESTION:
+    		return changeTracker.getQuestionVersion(key.getId());
+    	default:
+    		return changeTracker.getTableVersion();
     	}
-    	return answerSvc.getAnswerByQId(qId);
+    }
+    
+    /*
+     * While AnswerChangeTracker follows the change log, responses carry an ETag and Last-Modified for the version of
+     * the table, user or question they are read from. The version is taken before any row is read, so a change
+     * landing during the request only makes the next request fetch the rows again. Returns true, with the response
+     * status set to 304, if the request's If-None-Match or, without one, its If-Modified-Since still matches.
+     * 
+     * Last-Modified only has whole seconds, so it cannot tell a version from one made later in the same second. A
+     * version made in the current second is therefore sent without it, and If-Modified-Since alone is not taken
+     * as a match for it.
+     */
+    private boolean isNotModified(AnswerChangeTracker.Version version, String representation) {
+    	if (!changeTracker.isTracking()) {
+    		return false;
+    	}
+    	ServletRequestAttributes attributes = (ServletRequestAttributes) RequestContextHolder.currentRequestAttributes();
+    	long modifiedMs = version.getModifiedMs();
+    	boolean settled = modifiedMs / 1000 < System.currentTimeMillis() / 1000;
+    	return new ServletWebRequest(attributes.getRequest(), attributes.getResponse())
+    			.checkNotModified(version.tag(representation), settled ? modifiedMs : -1);
+    }
+    
+    private static AnswerResponseCache.Key allKey(boolean recent, String representation) {
+    	return new AnswerResponseCache.Key(AnswerResponseCache.Query.ALL, 0, recent, representation);
+    }
+    
+    private static AnswerResponseCache.Key userKey(Long userId, boolean recent, String representation) {
+    	return new AnswerResponseCache.Key(AnswerResponseCache.Query.USER, userId, recent, representation);
+    }
+    
+    private static AnswerResponseCache.Key questionKey(Long qId, boolean recent, String representation) {
+    	return new AnswerResponseCache.Key(AnswerResponseCache.Query.QUESTION, qId, recent, representation);
+    }
+    
+    /*
+     * A limited page is read before the response starts, as the next cursor header depends on its last row. The
+     * limit bounds the memory this takes. Any other request is streamed from the database cursor, which is opened
+     * before the response starts, see AnswerCursor.
+     */
+    private ResponseEntity<StreamingResponseBody> streamOf(AnswerPage page, RowWriter writer, Consumer<Consumer<Answer>> producer,
+    													   AnswerQueryMetrics.Sample sample) {
+    	if (!page.isLimited()) {
+    		AnswerCursor cursor = openCursor(sample.time(producer));
+    		return ResponseEntity.ok(out -> {
+    			try (AnswerCursor rows = cursor) {
+    				writer.write(sample.count(out), rows);
+    			}
+    			sample.stop();
+    		});
+    	}
+    	List<Answer> rows = new ArrayList<Answer>();
+    	sample.time(producer).accept(rows::add);
+    	return withNextCursor(page, rows).body(out -> {
+    		sample.serialize(() -> writer.write(sample.count(out), rows::forEach));
+    		sample.stop();
+    	});
+    }
+    
+    private AnswerCursor openCursor(Consumer<Consumer<Answer>> producer) {
+    	return AnswerCursor.open(producer, cursorThreads, cursorStallMs);
+    }
+    
+    private ResponseEntity.BodyBuilder withNextCursor(AnswerPage page, List<Answer> rows) {
+    	ResponseEntity.BodyBuilder response = ResponseEntity.ok();
+    	String nextCursor = page.nextCursor(rows);
+    	if (nextCursor != null) {
+    		response.header(AnswerPage.NEXT_CURSOR_HEADER, nextCursor);
+    	}
+    	return response;
+    }
+    
+    private interface RowWriter {
+    	void write(OutputStream out, Consumer<Consumer<Answer>> producer) throws IOException;
+    }
+    
+    private void writeColumnar(OutputStream out, int columnMask, Consumer<Consumer<Answer>> producer) throws IOException {
+    	AnswerColumnarEncoder encoder = new AnswerColumnarEncoder(out, columnMask);
+    	try {
+    		producer.accept(answer -> {
+    			try {
+    				encoder.write(answer);
+    			}
+    			catch (IOException e) {
+    				throw new UncheckedIOException(e);
+    			}
+    		});
+    	}
+    	catch (UncheckedIOException e) {
+    		throw e.getCause();
+    	}
+    	encoder.finish();
+    }
+    
+    private void writeJson(OutputStream out, Consumer<Consumer<Answer>> producer) throws IOException {
+    	writeRows(out, producer, true);
+    }
+    
+    private void writeNdjson(OutputStream out, Consumer<Consumer<Answer>> producer) throws IOException {
+    	writeRows(out, producer, false);
+    }
+    
+    /*
+     * Writes each row handed over by the producer as one JSON object, either as the elements of one array or as one
+     * line each. The generator buffers internally and is only flushed at the end, so rows reach the client in
+     * buffer-sized chunks rather than one write per row.
+     * 
+     * If the producer fails once rows have been written, a JSON array is left unterminated and the exception is
+     * thrown on, which aborts the response. Newline-delimited JSON is ended first with an error record, one line of
+     * {"error": "<message>"}, so that a client reading line by line can tell a failed stream from a complete one.
+     */
+    private void writeRows(OutputStream out, Consumer<Consumer<Answer>> producer, boolean array) throws IOException {
+    	JsonGenerator gen = objectMapper.getFactory().createGenerator(out);
+    	gen.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+    	if (array) {
+    		gen.writeStartArray();
+    	}
+    	try {
+    		producer.accept(answer -> {
+    			try {
+    				gen.writeObject(answer);
+    				if (!array) {
+    					gen.writeRaw('\n');
+    				}
+    			}
+    			catch (IOException e) {
+    				throw new UncheckedIOException(e);
+    			}
+    		});
+    	}
+    	catch (UncheckedIOException e) {
+    		throw e.getCause();
+    	}
+    	catch (RuntimeException e) {
+    		if (!array) {
+    			gen.writeStartObject();
+    			gen.writeStringField("error", e.getMessage() == null ? e.getClass().getName() : e.getMessage());
+    			gen.writeEndObject();
+    			gen.writeRaw('\n');
+    			gen.flush();
+    			out.flush();
+    		}
+    		throw e;
+    	}
+    	if (array) {
+    		gen.writeEndArray();
+    	}
+    	gen.flush();
     }
 
     
+    /*
+     * Writes rows ordered by userId as one JSON object of userId to questionId:answer objects, starting each user's
+     * object when their first row arrives.
+     */
+    private void writeUserMaps(OutputStream out, Consumer<Consumer<Answer>> producer) throws IOException {
+    	JsonGenerator gen = objectMapper.getFactory().createGenerator(out);
+    	gen.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+    	gen.writeStartObject();
+    	Long[] userId = { null };
+    	try {
+    		producer.accept(answer -> {
+    			try {
+    				if (!Long.valueOf(answer.getUserId()).equals(userId[0])) {
+    					if (userId[0] != null) {
+    						gen.writeEndObject();
+    					}
+    					userId[0] = answer.getUserId();
+    					gen.writeObjectFieldStart(Long.toString(userId[0]));
+    				}
+    				gen.writeStringField(Long.toString(answer.getQuestionId()), answer.getAnswer());
+    			}
+    			catch (IOException e) {
+    				throw new UncheckedIOException(e);
+    			}
+    		});
+    	}
+    	catch (UncheckedIOException e) {
+    		throw e.getCause();
+    	}
+    	if (userId[0] != null) {
+    		gen.writeEndObject();
+    	}
+    	gen.writeEndObject();
+    	gen.flush();
+    }
+    
+    @ExceptionHandler({ IllegalArgumentException.class })
+    public ResponseEntity<String> handleBadRequest(Exception e) {
+        return new ResponseEntity<>(e.getMessage(), HttpStatus.BAD_REQUEST);
+    }
+    
     @ExceptionHandler({ NoSuchElementException.class })
     public ResponseEntity<String> handleException(Exception e) {
         return new ResponseEntity<>(e.getMessage(), HttpStatus.NO_CONTENT);
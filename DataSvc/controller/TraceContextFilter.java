@@ -0,0 +1,32 @@
+import java.io.IOException;
+
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.springframework.core.Ordered;
+import org.springframework.core.annotation.Order;
+import org.springframework.stereotype.Component;
+import org.springframework.web.filter.OncePerRequestFilter;
+
+/*
+ * TraceContextFilter opens a TraceContext for every request, continuing the caller's trace if it sent a traceparent
+ * header. The response carries the request's own context in the traceresponse header, so that a caller that does
+ * not trace can still quote the trace id of a slow or failed request. It is the same filter as DataLogicSvc's.
+ */
+@Component
+@Order(Ordered.HIGHEST_PRECEDENCE)
+public class TraceContextFilter extends OncePerRequestFilter {
+
+	@Override
+	protected void doFilterInternal(HttpServletRequest request, HttpServletResponse response, FilterChain chain)
+			throws ServletException, IOException {
+		TraceContext parent = TraceContext.parse(request.getHeader(TraceContext.HEADER));
+		TraceContext trace = parent == null ? TraceContext.root() : parent.child();
+		response.setHeader("traceresponse", trace.toHeader());
+		try (TraceContext.Scope scope = trace.open()) {
+			chain.doFilter(request, response);
+		}
+	}
+}
@@ -3,6 +3,8 @@ import javax.persistence.Entity;
 import javax.persistence.Id;
 import javax.persistence.Table;
 
+import com.fasterxml.jackson.annotation.JsonIgnore;
+
 import java.time.LocalDateTime;
 
 @Entity
@@ -34,6 +36,12 @@ public class Answer{
 	@Column(name = "questionnaire_id")
 	private Long questionnaire_id;
 
+	//Only used to build keyset pagination cursors, so it is left out of the JSON
+	@JsonIgnore
+	public long getId() {
+		return id;
+	}
+
 	public long getUserId() {
 		return userId;
 	}
@@ -0,0 +1,59 @@
+import java.time.LocalDateTime;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+
+/*
+ * AnswerChange is one entry of the ANSWER_CHANGE log: the (userId, questionId) key of an answer that was inserted,
+ * updated or deleted. See sql/answer_change.sql.
+ *
+ * Entries served by /answers/changes also carry the most recent answer the key has now, or deleted = true if the
+ * user no longer has any answer to the question. Applying them in id order brings a copy of the most recent answers
+ * up to date, whatever the individual writes were.
+ */
+@JsonInclude(JsonInclude.Include.NON_NULL)
+public class AnswerChange {
+
+	private final long id;
+	private final long userId;
+	private final long questionId;
+	private final boolean deleted;
+	private final String answer;
+	private final LocalDateTime answerDate;
+
+	public AnswerChange(long id, long userId, long questionId) {
+		this(id, userId, questionId, false, null, null);
+	}
+
+	public AnswerChange(long id, long userId, long questionId, boolean deleted, String answer, LocalDateTime answerDate) {
+		this.id = id;
+		this.userId = userId;
+		this.questionId = questionId;
+		this.deleted = deleted;
+		this.answer = answer;
+		this.answerDate = answerDate;
+	}
+
+	public long getId() {
+		return id;
+	}
+
+	public long getUserId() {
+		return userId;
+	}
+
+	public long getQuestionId() {
+		return questionId;
+	}
+
+	public boolean isDeleted() {
+		return deleted;
+	}
+
+	public String getAnswer() {
+		return answer;
+	}
+
+	public LocalDateTime getAnswerDate() {
+		return answerDate;
+	}
+}
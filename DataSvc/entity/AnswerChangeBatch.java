@@ -0,0 +1,38 @@
+import java.util.List;
+
+/*
+ * AnswerChangeBatch is one response of /answers/changes: the changes after the requested id, in id order, and the
+ * watermark to request the next batch with.
+ *
+ * The watermark is the id up to which the log has been fully served. It can lag behind the last change in the
+ * batch: change ids are drawn before their transaction commits, so the log can have a gap that a transaction still
+ * in progress fills later, and the watermark stops short of any gap younger than answer_change_grace_ms. Changes
+ * after it are then served again by the next request, which is harmless as each change carries the key's current
+ * answer rather than the write itself.
+ *
+ * more is true if the batch was cut short by its limit, in which case the next one can be requested right away.
+ */
+public class AnswerChangeBatch {
+
+	private final long watermark;
+	private final boolean more;
+	private final List<AnswerChange> changes;
+
+	public AnswerChangeBatch(long watermark, boolean more, List<AnswerChange> changes) {
+		this.watermark = watermark;
+		this.more = more;
+		this.changes = changes;
+	}
+
+	public long getWatermark() {
+		return watermark;
+	}
+
+	public boolean isMore() {
+		return more;
+	}
+
+	public List<AnswerChange> getChanges() {
+		return changes;
+	}
+}
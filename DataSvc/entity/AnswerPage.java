@@ -0,0 +1,123 @@
+import java.util.List;
+
+/*
+ * AnswerPage describes which part of a result the /answers endpoints return: the rows strictly after a keyset
+ * cursor, at most limit of them, restricted to a half-open range of userIds.
+ *
+ * Rows of a paged or ranged request are ordered by (userId, questionId, id), which is also the cursor format, e.g.
+ * ?after=1042,7,991234. A response holding exactly limit rows carries the cursor of its last row in the
+ * NEXT_CURSOR_HEADER header; the next page is requested with that value as after. A response without the header
+ * is the last page.
+ *
+ * The userId range lets a client split a full pull into independent slices, e.g. ?fromUserId=0&toUserId=50000,
+ * that can be fetched in parallel and paged separately.
+ */
+public class AnswerPage {
+
+	public static final String NEXT_CURSOR_HEADER = "X-Next-Cursor";
+
+	public static final int MAX_LIMIT = 100_000;
+
+	private final boolean unbounded;
+	private final long fromUserId;		//Inclusive
+	private final long toUserId;		//Exclusive
+	private final long afterUserId;
+	private final long afterQuestionId;
+	private final long afterId;
+	private final Integer limit;		//Null if the rows are not limited
+
+	private AnswerPage(boolean unbounded, long fromUserId, long toUserId, long afterUserId, long afterQuestionId,
+					   long afterId, Integer limit) {
+		this.unbounded = unbounded;
+		this.fromUserId = fromUserId;
+		this.toUserId = toUserId;
+		this.afterUserId = afterUserId;
+		this.afterQuestionId = afterQuestionId;
+		this.afterId = afterId;
+		this.limit = limit;
+	}
+
+	/*
+	 * Builds a page from the request parameters, any of which may be null. Throws IllegalArgumentException for a
+	 * malformed cursor, a limit outside 1..MAX_LIMIT or an empty userId range.
+	 */
+	public static AnswerPage of(String after, Integer limit, Long fromUserId, Long toUserId) {
+		long afterUserId = Long.MIN_VALUE;
+		long afterQuestionId = Long.MIN_VALUE;
+		long afterId = Long.MIN_VALUE;
+		if (after != null) {
+			String[] parts = after.split(",");
+			if (parts.length != 3) {
+				throw new IllegalArgumentException("after must be userId,questionId,id: " + after);
+			}
+			try {
+				afterUserId = Long.parseLong(parts[0].trim());
+				afterQuestionId = Long.parseLong(parts[1].trim());
+				afterId = Long.parseLong(parts[2].trim());
+			}
+			catch (NumberFormatException e) {
+				throw new IllegalArgumentException("after must be userId,questionId,id: " + after);
+			}
+		}
+		if (limit != null && (limit < 1 || limit > MAX_LIMIT)) {
+			throw new IllegalArgumentException("limit must be between 1 and " + MAX_LIMIT);
+		}
+		long from = fromUserId == null ? Long.MIN_VALUE : fromUserId;
+		long to = toUserId == null ? Long.MAX_VALUE : toUserId;
+		if (from >= to) {
+			throw new IllegalArgumentException("fromUserId must be less than toUserId");
+		}
+
+		boolean unbounded = after == null && limit == null && fromUserId == null && toUserId == null;
+		return new AnswerPage(unbounded, from, to, afterUserId, afterQuestionId, afterId, limit);
+	}
+
+	/*
+	 * True if no paging parameter was given, in which case the whole result is returned in the database's order.
+	 */
+	public boolean isUnbounded() {
+		return unbounded;
+	}
+
+	public boolean isLimited() {
+		return limit != null;
+	}
+
+	public long getFromUserId() {
+		return fromUserId;
+	}
+
+	public long getToUserId() {
+		return toUserId;
+	}
+
+	public long getAfterUserId() {
+		return afterUserId;
+	}
+
+	public long getAfterQuestionId() {
+		return afterQuestionId;
+	}
+
+	public long getAfterId() {
+		return afterId;
+	}
+
+	/*
+	 * Returns the row limit for the query, Integer.MAX_VALUE if the rows are not limited.
+	 */
+	public int getLimit() {
+		return limit == null ? Integer.MAX_VALUE : limit;
+	}
+
+	/*
+	 * Returns the cursor of the page following rows, or null if rows is the last page.
+	 */
+	public String nextCursor(List<Answer> rows) {
+		if (limit == null || rows.size() < limit) {
+			return null;
+		}
+		Answer last = rows.get(rows.size() - 1);
+		return last.getUserId() + "," + last.getQuestionId() + "," + last.getId();
+	}
+}
@@ -1,49 +1,198 @@
+import static org.hibernate.jpa.QueryHints.HINT_FETCH_SIZE;
+import static org.hibernate.jpa.QueryHints.HINT_READONLY;
+
 import java.util.List;
+import java.util.stream.Stream;
 
 import javax.persistence.NamedNativeQuery;
+import javax.persistence.QueryHint;
 import javax.persistence.SqlResultSetMapping;
 
 import org.springframework.data.jpa.repository.JpaRepository;
 import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.jpa.repository.QueryHints;
 import org.springframework.stereotype.Repository;
 
 
 @Repository
 public interface AnswerRepo extends JpaRepository<Answer, String>{
 
+	/*
+	 * The most recent answer of every user to every question is read from the LATEST_ANSWER projection, which triggers
+	 * on ANSWER keep current (see sql/latest_answer.sql). Its primary key is ("userId", "questionId") and it has a
+	 * second index on "questionId", so both filtered variants are index lookups rather than a window over all answers.
+	 */
+	
+	String SELECT_LATEST_ANSWERS = "SELECT id, \"userId\", \"questionId\", answer, answerdate, kit_id, test_id, questionnaire_id \n" + 
+				   "FROM \"LATEST_ANSWER\"";
+	
+	String MOST_RECENT_ANSWERS = SELECT_LATEST_ANSWERS;
+	
+	String MOST_RECENT_ANSWERS_BY_USER_ID = SELECT_LATEST_ANSWERS + " WHERE \"userId\" = ?1";
+	
+	String MOST_RECENT_ANSWERS_BY_QUESTION_ID = SELECT_LATEST_ANSWERS + " WHERE \"questionId\" = ?1";
+	
 	List<Answer> findByUserId(Long id);
 	List<Answer> findByQuestionId(Long id);
 	
-	@Query(value = "SELECT id, \"userId\", \"questionId\", answer, answerdate, kit_id, test_id, questionnaire_id \n" + 
-				   "FROM(\n" + 
-				    	"with temp as (\n" + 
-				    	"SELECT row_number() over (partition by \"userId\", \"questionId\" order by answerdate desc) as row, *  \n" + 
-				    	"FROM \"ANSWER\")\n" + 
-				   "SELECT * from temp \n" + 
-				   "WHERE row = 1) as foo",
-				nativeQuery = true)
+	@Query(value = MOST_RECENT_ANSWERS, nativeQuery = true)
 	List<Answer> findMostRecentAnswers();
 	
-	@Query(value = "SELECT id, \"userId\", \"questionId\", answer, answerdate, kit_id, test_id, questionnaire_id \n" + 
-  				   "FROM(\n" + 
-						"with temp as (\n" + 
-						"SELECT row_number() over (partition by \"userId\", \"questionId\" order by answerdate desc) as row, *  \n" + 
-						"FROM \"ANSWER\")\n" + 
-					"SELECT * from temp \n" + 
-					"WHERE row = 1 AND \"userId\" = ?1) as foo",
-				nativeQuery = true)
+	@Query(value = MOST_RECENT_ANSWERS_BY_USER_ID, nativeQuery = true)
 	List<Answer> findMostRecentAnswersByUserId(Long userId);
 	
-	@Query(	value = "SELECT id, \"userId\", \"questionId\", answer, answerdate, kit_id, test_id, questionnaire_id  "
-  				+   "FROM"
-				+   	"(with temp as" + "(" + 
-						"SELECT row_number() over (partition by \"userId\", \"questionId\" " +
-						"ORDER BY answerdate desc) as row, * " + 
-						"FROM \"ANSWER\") " + 
-					"SELECT * from temp " + 
-					"WHERE row = 1 AND \"questionId\" = ?1) as foo",			
-				nativeQuery = true)
+	@Query(value = MOST_RECENT_ANSWERS_BY_QUESTION_ID, nativeQuery = true)
 	List<Answer> findMostRecentAnswersByQuestionId(Long questionId);
 
+	/*
+	 * The stream* variants below run the same queries as above but return a forward-only cursor instead of a List,
+	 * fetching STREAM_FETCH_SIZE rows per round trip. They must be consumed inside a read-only transaction, which
+	 * is what makes the Postgres driver use a server-side cursor rather than buffering the whole result.
+	 */
+	
+	String STREAM_FETCH_SIZE = "1000";
+	
+	@QueryHints({ @QueryHint(name = HINT_FETCH_SIZE, value = STREAM_FETCH_SIZE), @QueryHint(name = HINT_READONLY, value = "true") })
+	@Query(value = "SELECT a FROM Answer a")
+	Stream<Answer> streamAll();
+
+	@QueryHints({ @QueryHint(name = HINT_FETCH_SIZE, value = STREAM_FETCH_SIZE), @QueryHint(name = HINT_READONLY, value = "true") })
+	@Query(value = "SELECT a FROM Answer a WHERE a.userId = ?1")
+	Stream<Answer> streamByUserId(Long id);
+
+	@QueryHints({ @QueryHint(name = HINT_FETCH_SIZE, value = STREAM_FETCH_SIZE), @QueryHint(name = HINT_READONLY, value = "true") })
+	@Query(value = "SELECT a FROM Answer a WHERE a.questionId = ?1")
+	Stream<Answer> streamByQuestionId(Long id);
+
+	@QueryHints({ @QueryHint(name = HINT_FETCH_SIZE, value = STREAM_FETCH_SIZE), @QueryHint(name = HINT_READONLY, value = "true") })
+	@Query(value = MOST_RECENT_ANSWERS, nativeQuery = true)
+	Stream<Answer> streamMostRecentAnswers();
+
+	@QueryHints({ @QueryHint(name = HINT_FETCH_SIZE, value = STREAM_FETCH_SIZE), @QueryHint(name = HINT_READONLY, value = "true") })
+	@Query(value = MOST_RECENT_ANSWERS_BY_USER_ID, nativeQuery = true)
+	Stream<Answer> streamMostRecentAnswersByUserId(Long userId);
+
+	@QueryHints({ @QueryHint(name = HINT_FETCH_SIZE, value = STREAM_FETCH_SIZE), @QueryHint(name = HINT_READONLY, value = "true") })
+	@Query(value = MOST_RECENT_ANSWERS_BY_QUESTION_ID, nativeQuery = true)
+	Stream<Answer> streamMostRecentAnswersByQuestionId(Long questionId);
+
+	/*
+	 * The most recent answers of a set of users, optionally only to a set of questions, in userId and questionId
+	 * order. The ids are passed as Postgres array literals such as '{1,2,3}' rather than expanded into IN lists, so
+	 * the statement is the same whatever the number of ids, and each userId is one probe of the primary key.
+	 */
+	
+	String MOST_RECENT_ANSWERS_BY_USER_IDS = SELECT_LATEST_ANSWERS + 
+				   " WHERE \"userId\" = ANY(CAST(?1 AS bigint[])) ORDER BY \"userId\", \"questionId\"";
+	
+	String MOST_RECENT_ANSWERS_BY_USER_IDS_AND_QUESTION_IDS = SELECT_LATEST_ANSWERS + 
+				   " WHERE \"userId\" = ANY(CAST(?1 AS bigint[])) AND \"questionId\" = ANY(CAST(?2 AS bigint[]))" +
+				   " ORDER BY \"userId\", \"questionId\"";
+
+	@QueryHints({ @QueryHint(name = HINT_FETCH_SIZE, value = STREAM_FETCH_SIZE), @QueryHint(name = HINT_READONLY, value = "true") })
+	@Query(value = MOST_RECENT_ANSWERS_BY_USER_IDS, nativeQuery = true)
+	Stream<Answer> streamMostRecentAnswersByUserIds(String userIds);
+
+	@QueryHints({ @QueryHint(name = HINT_FETCH_SIZE, value = STREAM_FETCH_SIZE), @QueryHint(name = HINT_READONLY, value = "true") })
+	@Query(value = MOST_RECENT_ANSWERS_BY_USER_IDS_AND_QUESTION_IDS, nativeQuery = true)
+	Stream<Answer> streamMostRecentAnswersByUserIdsAndQuestionIds(String userIds, String questionIds);
+
+	/*
+	 * The stream*Page variants return the rows after a keyset cursor (afterUserId, afterQuestionId, afterId) in that
+	 * order, at most limit of them, and where the path allows it only userIds in [fromUserId, toUserId). See
+	 * AnswerPage. Callers pass Long.MIN_VALUE/Long.MAX_VALUE for the bounds they do not use.
+	 */
+	
+	String KEYSET_ORDER = " ORDER BY \"userId\", \"questionId\", id";
+	
+	String SELECT_ANSWERS = "SELECT id, \"userId\", \"questionId\", answer, answerdate, kit_id, test_id, questionnaire_id \n" + 
+				   "FROM \"ANSWER\"";
+	
+	String ANSWERS_PAGE = SELECT_ANSWERS + 
+				   " WHERE \"userId\" >= ?1 AND \"userId\" < ?2 AND (\"userId\", \"questionId\", id) > (?3, ?4, ?5)" +
+				   KEYSET_ORDER + " LIMIT ?6";
+	
+	String ANSWERS_PAGE_BY_USER_ID = SELECT_ANSWERS + 
+				   " WHERE \"userId\" = ?1 AND (\"userId\", \"questionId\", id) > (?2, ?3, ?4)" +
+				   KEYSET_ORDER + " LIMIT ?5";
+	
+	String ANSWERS_PAGE_BY_QUESTION_ID = SELECT_ANSWERS + 
+				   " WHERE \"questionId\" = ?1 AND \"userId\" >= ?2 AND \"userId\" < ?3 AND (\"userId\", \"questionId\", id) > (?4, ?5, ?6)" +
+				   KEYSET_ORDER + " LIMIT ?7";
+	
+	String MOST_RECENT_ANSWERS_PAGE = SELECT_LATEST_ANSWERS + 
+				   " WHERE \"userId\" >= ?1 AND \"userId\" < ?2 AND (\"userId\", \"questionId\", id) > (?3, ?4, ?5)" +
+				   KEYSET_ORDER + " LIMIT ?6";
+	
+	String MOST_RECENT_ANSWERS_PAGE_BY_USER_ID = SELECT_LATEST_ANSWERS + 
+				   " WHERE \"userId\" = ?1 AND (\"userId\", \"questionId\", id) > (?2, ?3, ?4)" +
+				   KEYSET_ORDER + " LIMIT ?5";
+	
+	String MOST_RECENT_ANSWERS_PAGE_BY_QUESTION_ID = SELECT_LATEST_ANSWERS + 
+				   " WHERE \"questionId\" = ?1 AND \"userId\" >= ?2 AND \"userId\" < ?3 AND (\"userId\", \"questionId\", id) > (?4, ?5, ?6)" +
+				   KEYSET_ORDER + " LIMIT ?7";
+
+	@QueryHints({ @QueryHint(name = HINT_FETCH_SIZE, value = STREAM_FETCH_SIZE), @QueryHint(name = HINT_READONLY, value = "true") })
+	@Query(value = ANSWERS_PAGE, nativeQuery = true)
+	Stream<Answer> streamPage(long fromUserId, long toUserId, long afterUserId, long afterQuestionId, long afterId, int limit);
+
+	@QueryHints({ @QueryHint(name = HINT_FETCH_SIZE, value = STREAM_FETCH_SIZE), @QueryHint(name = HINT_READONLY, value = "true") })
+	@Query(value = ANSWERS_PAGE_BY_USER_ID, nativeQuery = true)
+	Stream<Answer> streamPageByUserId(Long userId, long afterUserId, long afterQuestionId, long afterId, int limit);
+
+	@QueryHints({ @QueryHint(name = HINT_FETCH_SIZE, value = STREAM_FETCH_SIZE), @QueryHint(name = HINT_READONLY, value = "true") })
+	@Query(value = ANSWERS_PAGE_BY_QUESTION_ID, nativeQuery = true)
+	Stream<Answer> streamPageByQuestionId(Long questionId, long fromUserId, long toUserId, 
+										  long afterUserId, long afterQuestionId, long afterId, int limit);
+
+	@QueryHints({ @QueryHint(name = HINT_FETCH_SIZE, value = STREAM_FETCH_SIZE), @QueryHint(name = HINT_READONLY, value = "true") })
+	@Query(value = MOST_RECENT_ANSWERS_PAGE, nativeQuery = true)
+	Stream<Answer> streamMostRecentAnswersPage(long fromUserId, long toUserId, long afterUserId, long afterQuestionId, long afterId, int limit);
+
+	@QueryHints({ @QueryHint(name = HINT_FETCH_SIZE, value = STREAM_FETCH_SIZE), @QueryHint(name = HINT_READONLY, value = "true") })
+	@Query(value = MOST_RECENT_ANSWERS_PAGE_BY_USER_ID, nativeQuery = true)
+	Stream<Answer> streamMostRecentAnswersPageByUserId(Long userId, long afterUserId, long afterQuestionId, long afterId, int limit);
+
+	@QueryHints({ @QueryHint(name = HINT_FETCH_SIZE, value = STREAM_FETCH_SIZE), @QueryHint(name = HINT_READONLY, value = "true") })
+	@Query(value = MOST_RECENT_ANSWERS_PAGE_BY_QUESTION_ID, nativeQuery = true)
+	Stream<Answer> streamMostRecentAnswersPageByQuestionId(Long questionId, long fromUserId, long toUserId, 
+														   long afterUserId, long afterQuestionId, long afterId, int limit);
+
+	/*
+	 * Smallest and largest userIds with an answer, used by clients to split a full pull into userId-range slices.
+	 */
+	
+	@Query(value = "SELECT min(a.userId) FROM Answer a")
+	Long findMinUserId();
+	
+	@Query(value = "SELECT max(a.userId) FROM Answer a")
+	Long findMaxUserId();
+	
+	@Query(value = "SELECT min(\"userId\") FROM \"LATEST_ANSWER\"", nativeQuery = true)
+	Long findMinLatestUserId();
+	
+	@Query(value = "SELECT max(\"userId\") FROM \"LATEST_ANSWER\"", nativeQuery = true)
+	Long findMaxLatestUserId();
+	
+	/*
+	 * Entries of the ANSWER_CHANGE log (see sql/answer_change.sql) after a given id, as {id, userId, questionId}.
+	 */
+	
+	@Query(value = "SELECT id, \"userId\", \"questionId\" FROM \"ANSWER_CHANGE\" WHERE id > ?1 ORDER BY id LIMIT ?2", nativeQuery = true)
+	List<Object[]> findChangesAfter(long afterId, int limit);
+	
+	/*
+	 * Entries of the ANSWER_CHANGE log after a given id joined with the current LATEST_ANSWER row of their key, as
+	 * {id, userId, questionId, settled, deleted, answer, answerdate}. settled is true for entries written more than
+	 * graceSeconds ago, deleted if the key no longer has an answer.
+	 */
+	@Query(value = "SELECT c.id, c.\"userId\", c.\"questionId\", c.changed_at < now() - make_interval(secs => ?2) AS settled, " +
+				   "l.id IS NULL AS deleted, l.answer, l.answerdate FROM \"ANSWER_CHANGE\" c LEFT JOIN \"LATEST_ANSWER\" l " +
+				   "ON l.\"userId\" = c.\"userId\" AND l.\"questionId\" = c.\"questionId\" " +
+				   "WHERE c.id > ?1 ORDER BY c.id LIMIT ?3", nativeQuery = true)
+	List<Object[]> findLatestChangesAfter(long afterId, double graceSeconds, int limit);
+	
+	@Query(value = "SELECT max(id) FROM \"ANSWER_CHANGE\" WHERE changed_at < now() - make_interval(secs => ?1)", nativeQuery = true)
+	Long findLastChangeIdBefore(double ageSeconds);
 	
-}
\ No newline at end of file
+}
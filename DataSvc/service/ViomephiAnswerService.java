@@ -11,8 +11,12 @@ package com.viome.study.viomedb.viomephiAnswerSvc.service;
 
 import java.util.List;
 import java.util.Optional;
+import java.util.function.Consumer;
 
 import com.viome.dto.viomephi.AnswerDTO;
+import com.viome.study.viomedb.viomephiAnswerSvc.entity.AnswerChange;
+import com.viome.study.viomedb.viomephiAnswerSvc.entity.AnswerChangeBatch;
+import com.viome.study.viomedb.viomephiAnswerSvc.entity.AnswerPage;
 import com.viome.study.viomedb.viomephiAnswerSvc.entity.ViomephiAnswer;
 
 public interface ViomephiAnswerService {
@@ -28,5 +32,39 @@ public interface ViomephiAnswerService {
 	List<ViomephiAnswer> getAnswerByQId(Long qId);
 	
 	List<ViomephiAnswer> getRecentAnswerByQId(Long qId);
+	
+	/* The stream* methods hand each row to the consumer as it is read from the database cursor, so callers can
+	 * write rows out without holding the whole result in memory. Unless the page is unbounded, only the rows of
+	 * the page are read, in keyset order. The userId range of the page does not apply to streamAnswerByUserId. */
+	
+	void streamAll(boolean recent, AnswerPage page, Consumer<ViomephiAnswer> consumer);
+	
+	void streamAnswerByUserId(Long userId, boolean recent, AnswerPage page, Consumer<ViomephiAnswer> consumer);
+	
+	void streamAnswerByQId(Long qId, boolean recent, AnswerPage page, Consumer<ViomephiAnswer> consumer);
+	
+	/* Hands the most recent answers of each of userIds to the consumer, ordered by userId and questionId, with one
+	 * query. Only answers to questionIds are read unless it is null. */
+	void streamRecentAnswersByUserIds(List<Long> userIds, List<Long> questionIds, Consumer<ViomephiAnswer> consumer);
+	
+	/* Returns {smallest userId, largest userId + 1}, the half-open userId range holding every answer, or throws
+	 * NoSuchElementException if there are no answers. The upper bound is clamped to Long.MAX_VALUE, which no
+	 * userId range includes. */
+	long[] getUserIdRange(boolean recent);
+	
+	/* Returns up to limit entries of the ANSWER_CHANGE log after afterId, in id order. */
+	List<AnswerChange> getChangesAfter(long afterId, int limit);
+	
+	/* Returns the id of the last ANSWER_CHANGE entry written more than ageMs ago, 0 if there is none. */
+	long getLastChangeIdBefore(long ageMs);
+	
+	/* Returns up to limit changes after sinceId, each with the current most recent answer of its key, and the
+	 * watermark to ask for the next ones with. A key changed several times in the batch is only returned once, at
+	 * its last change. See AnswerChangeBatch. */
+	AnswerChangeBatch getLatestChangesSince(long sinceId, int limit);
+	
+	/* Returns the watermark a new consumer should start from: taken before it reads the most recent answers, it
+	 * makes sure no change is missed in between. */
+	long getChangeWatermark();
 
 }
@@ -1,13 +1,27 @@
 package com.viome.study.viomedb.viomephiAnswerSvc.service;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Transactional;
 
 import com.viome.dto.viomephi.AnswerDTO;
+import com.viome.study.viomedb.viomephiAnswerSvc.entity.AnswerChange;
+import com.viome.study.viomedb.viomephiAnswerSvc.entity.AnswerChangeBatch;
+import com.viome.study.viomedb.viomephiAnswerSvc.entity.AnswerPage;
 import com.viome.study.viomedb.viomephiAnswerSvc.entity.ViomephiAnswer;
 import com.viome.study.viomedb.viomephiAnswerSvc.repository.ViomephiAnswerRepo;
 
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.NoSuchElementException;
 import java.util.Optional;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
 
 
 @Service
@@ -16,6 +30,13 @@ public class ViomephiAnswerServiceImpl implements ViomephiAnswerService {
     @Autowired
     private ViomephiAnswerRepo answerRepo;
     
+    @PersistenceContext
+    private EntityManager entityManager;
+    
+    //How long a gap in the change log may still be filled by a transaction in progress
+    @Value("${answer_change_grace_ms:60000}")
+    private long changeGraceMs;
+    
     @Override
     public List<ViomephiAnswer> getAll(){
     	return answerRepo.findAll();
@@ -43,4 +64,129 @@ public class ViomephiAnswerServiceImpl implements ViomephiAnswerService {
 		return answerRepo.findMostRecentAnswersByQuestionId(qId);
 	}
 	
-}
+	@Transactional(readOnly = true)
+	public void streamAll(boolean recent, AnswerPage page, Consumer<ViomephiAnswer> consumer){
+		if (page.isUnbounded()) {
+			drain(recent ? answerRepo.streamMostRecentAnswers() : answerRepo.streamAll(), consumer);
+			return;
+		}
+		drain(recent ? answerRepo.streamMostRecentAnswersPage(page.getFromUserId(), page.getToUserId(), page.getAfterUserId(),
+															  page.getAfterQuestionId(), page.getAfterId(), page.getLimit())
+					 : answerRepo.streamPage(page.getFromUserId(), page.getToUserId(), page.getAfterUserId(),
+							 				 page.getAfterQuestionId(), page.getAfterId(), page.getLimit()), consumer);
+	}
+	
+	@Transactional(readOnly = true)
+	public void streamAnswerByUserId(Long userId, boolean recent, AnswerPage page, Consumer<ViomephiAnswer> consumer){
+		if (page.isUnbounded()) {
+			drain(recent ? answerRepo.streamMostRecentAnswersByUserId(userId) : answerRepo.streamByUserId(userId), consumer);
+			return;
+		}
+		drain(recent ? answerRepo.streamMostRecentAnswersPageByUserId(userId, page.getAfterUserId(), page.getAfterQuestionId(),
+																	  page.getAfterId(), page.getLimit())
+					 : answerRepo.streamPageByUserId(userId, page.getAfterUserId(), page.getAfterQuestionId(), 
+							 						 page.getAfterId(), page.getLimit()), consumer);
+	}
+	
+	@Transactional(readOnly = true)
+	public void streamAnswerByQId(Long qId, boolean recent, AnswerPage page, Consumer<ViomephiAnswer> consumer){
+		if (page.isUnbounded()) {
+			drain(recent ? answerRepo.streamMostRecentAnswersByQuestionId(qId) : answerRepo.streamByQuestionId(qId), consumer);
+			return;
+		}
+		drain(recent ? answerRepo.streamMostRecentAnswersPageByQuestionId(qId, page.getFromUserId(), page.getToUserId(),
+																		  page.getAfterUserId(), page.getAfterQuestionId(), 
+																		  page.getAfterId(), page.getLimit())
+					 : answerRepo.streamPageByQuestionId(qId, page.getFromUserId(), page.getToUserId(), page.getAfterUserId(),
+							 							 page.getAfterQuestionId(), page.getAfterId(), page.getLimit()), consumer);
+	}
+	
+	@Transactional(readOnly = true)
+	public void streamRecentAnswersByUserIds(List<Long> userIds, List<Long> questionIds, Consumer<ViomephiAnswer> consumer){
+		drain(questionIds == null ? answerRepo.streamMostRecentAnswersByUserIds(arrayLiteral(userIds))
+								  : answerRepo.streamMostRecentAnswersByUserIdsAndQuestionIds(arrayLiteral(userIds), arrayLiteral(questionIds)),
+			  consumer);
+	}
+	
+	//A Postgres array literal such as {1,2,3}, safe to build from numbers
+	private static String arrayLiteral(List<Long> ids){
+		StringBuilder literal = new StringBuilder("{");
+		for (Long id : ids) {
+			if (literal.length() > 1) {
+				literal.append(',');
+			}
+			literal.append(id.longValue());
+		}
+		return literal.append('}').toString();
+	}
+	
+	@Transactional(readOnly = true)
+	public long[] getUserIdRange(boolean recent){
+		Long min = recent ? answerRepo.findMinLatestUserId() : answerRepo.findMinUserId();
+		Long max = recent ? answerRepo.findMaxLatestUserId() : answerRepo.findMaxUserId();
+		if (min == null || max == null) {
+			throw new NoSuchElementException("No answers");
+		}
+		return new long[] { min, max == Long.MAX_VALUE ? max : max + 1 };
+	}
+	
+	public List<AnswerChange> getChangesAfter(long afterId, int limit){
+		List<AnswerChange> changes = new ArrayList<AnswerChange>();
+		for (Object[] row : answerRepo.findChangesAfter(afterId, limit)) {
+			changes.add(new AnswerChange(((Number) row[0]).longValue(), ((Number) row[1]).longValue(), ((Number) row[2]).longValue()));
+		}
+		return changes;
+	}
+	
+	public long getLastChangeIdBefore(long ageMs){
+		Long last = answerRepo.findLastChangeIdBefore(ageMs / 1000.0);
+		return last == null ? 0 : last;
+	}
+	
+	@Transactional(readOnly = true)
+	public AnswerChangeBatch getLatestChangesSince(long sinceId, int limit){
+		List<Object[]> rows = answerRepo.findLatestChangesAfter(sinceId, changeGraceMs / 1000.0, limit);
+		
+		long watermark = sinceId;
+		boolean gap = false;
+		LinkedHashMap<String, AnswerChange> byKey = new LinkedHashMap<String, AnswerChange>();
+		for (Object[] row : rows) {
+			long id = ((Number) row[0]).longValue();
+			long userId = ((Number) row[1]).longValue();
+			long questionId = ((Number) row[2]).longValue();
+			boolean settled = Boolean.TRUE.equals(row[3]);
+			boolean deleted = Boolean.TRUE.equals(row[4]);
+			String answer = (String) row[5];
+			Timestamp answerDate = (Timestamp) row[6];
+			
+			//A gap is only skipped once the entry after it is old enough that nothing in progress can fill it
+			if (!gap && (id == watermark + 1 || settled)) {
+				watermark = id;
+			}
+			else {
+				gap = true;
+			}
+			
+			String key = userId + ":" + questionId;
+			byKey.remove(key);
+			byKey.put(key, new AnswerChange(id, userId, questionId, deleted, answer, 
+											answerDate == null ? null : answerDate.toLocalDateTime()));
+		}
+		return new AnswerChangeBatch(watermark, rows.size() == limit, new ArrayList<AnswerChange>(byKey.values()));
+	}
+	
+	public long getChangeWatermark(){
+		return getLastChangeIdBefore(changeGraceMs);
+	}
+	
+	//Each row is detached once consumed so the persistence context does not accumulate the whole table
+	private void drain(Stream<ViomephiAnswer> answers, Consumer<ViomephiAnswer> consumer){
+		try (Stream<ViomephiAnswer> rows = answers) {
+			rows.forEach(answer -> {
+				consumer.accept(answer);
+				entityManager.detach(answer);
+			});
+		}
+	}
+	
+}
\ No newline at end of file
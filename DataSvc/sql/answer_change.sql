@@ -0,0 +1,42 @@
+/*
+ * ANSWER_CHANGE logs the ("userId", "questionId") key of every row inserted into, updated in or deleted from "ANSWER".
+ * DataSvc polls it for keys changed since the last id it saw and drops the cached responses holding them (see
+ * AnswerResponseCache), so the cache stays correct whichever service writes the answers.
+ *
+ * Ids are drawn as rows are written rather than at commit, so a poller can see a gap that a transaction still in
+ * progress fills later, or that a rolled back one never fills. Pollers must not skip past a gap until it is older
+ * than any transaction writing answers.
+ *
+ * Only keys are logged, not the rows. Pollers only ever read recent entries, so old ones can be purged at any
+ * time, e.g. daily with
+ * 		DELETE FROM public."ANSWER_CHANGE" WHERE changed_at < now() - interval '1 day';
+ *
+ * Run once against the database (e.g. psql -1 -f answer_change.sql). It is safe to run again.
+ */
+
+CREATE TABLE IF NOT EXISTS public."ANSWER_CHANGE" (
+	id bigserial PRIMARY KEY,
+	"userId" bigint NOT NULL,
+	"questionId" bigint NOT NULL,
+	changed_at timestamp NOT NULL DEFAULT now()
+);
+
+CREATE INDEX IF NOT EXISTS "ANSWER_CHANGE_changed_at_idx" ON public."ANSWER_CHANGE" (changed_at);
+
+
+CREATE OR REPLACE FUNCTION public.answer_change_log() RETURNS trigger AS $$
+BEGIN
+	IF TG_OP IN ('INSERT', 'UPDATE') THEN
+		INSERT INTO public."ANSWER_CHANGE" ("userId", "questionId") VALUES (NEW."userId", NEW."questionId");
+	END IF;
+	IF TG_OP = 'DELETE' OR (TG_OP = 'UPDATE' AND (OLD."userId", OLD."questionId") IS DISTINCT FROM (NEW."userId", NEW."questionId")) THEN
+		INSERT INTO public."ANSWER_CHANGE" ("userId", "questionId") VALUES (OLD."userId", OLD."questionId");
+	END IF;
+	RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+
+DROP TRIGGER IF EXISTS "ANSWER_answer_change" ON public."ANSWER";
+CREATE TRIGGER "ANSWER_answer_change"
+	AFTER INSERT OR UPDATE OR DELETE ON public."ANSWER"
+	FOR EACH ROW EXECUTE PROCEDURE public.answer_change_log();
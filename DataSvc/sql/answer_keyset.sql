@@ -0,0 +1,12 @@
+/*
+ * Indexes behind the keyset-paginated and userId-ranged /answers requests (see AnswerPage), which read ANSWER in
+ * ("userId", "questionId", id) order. The LATEST_ANSWER variants are served by the indexes in latest_answer.sql.
+ *
+ * Run once against the database, e.g. psql -f answer_keyset.sql
+ */
+
+--/answers and /answers/users/{userId}
+CREATE INDEX IF NOT EXISTS "ANSWER_userId_questionId_id_idx" ON public."ANSWER" ("userId", "questionId", id);
+
+--/answers/questions/{qId}
+CREATE INDEX IF NOT EXISTS "ANSWER_questionId_userId_id_idx" ON public."ANSWER" ("questionId", "userId", id);
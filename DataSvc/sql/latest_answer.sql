@@ -0,0 +1,104 @@
+/*
+ * LATEST_ANSWER holds the most recent row of "ANSWER" for every ("userId", "questionId"), maintained by triggers on
+ * "ANSWER" so that it stays current whichever service writes the answers. The ?recent=true endpoints of DataSvc read
+ * it instead of ranking the whole ANSWER table with row_number() on every request.
+ *
+ * The most recent row is the one with the latest answerdate. A row without an answerdate never replaces a dated one,
+ * and ties go to the higher id so that the choice does not depend on scan order.
+ *
+ * Run once against the database (e.g. psql -f latest_answer.sql), without -1: the script opens its own transaction
+ * around the lock, triggers and backfill. It is safe to run again: the table is created only if missing and is
+ * reconciled with "ANSWER" before the script commits.
+ */
+
+CREATE TABLE IF NOT EXISTS public."LATEST_ANSWER" (
+	"userId" bigint NOT NULL,
+	"questionId" bigint NOT NULL,
+	id bigint NOT NULL,
+	answer text,
+	answerdate timestamp,
+	kit_id text,
+	test_id bigint,
+	questionnaire_id bigint,
+	PRIMARY KEY ("userId", "questionId")
+);
+
+--/answers/users/{userId} is a prefix scan of the primary key, /answers/questions/{qId} uses this index
+CREATE INDEX IF NOT EXISTS "LATEST_ANSWER_questionId_idx" ON public."LATEST_ANSWER" ("questionId", "userId");
+
+--Lets the triggers find the new most recent row of a key with a single index probe after an update or delete
+CREATE INDEX IF NOT EXISTS "ANSWER_userId_questionId_answerdate_idx"
+	ON public."ANSWER" ("userId", "questionId", answerdate DESC NULLS LAST, id DESC);
+
+
+/*
+ * Re-derives the LATEST_ANSWER row of one key from "ANSWER". Used when a row is updated or deleted, where the
+ * previous most recent row may no longer be the right one.
+ */
+CREATE OR REPLACE FUNCTION public.latest_answer_refresh(p_user_id bigint, p_question_id bigint) RETURNS void AS $$
+BEGIN
+	INSERT INTO public."LATEST_ANSWER" AS l ("userId", "questionId", id, answer, answerdate, kit_id, test_id, questionnaire_id)
+		SELECT a."userId", a."questionId", a.id, a.answer, a.answerdate, a.kit_id, a.test_id, a.questionnaire_id
+		FROM public."ANSWER" a
+		WHERE a."userId" = p_user_id AND a."questionId" = p_question_id
+		ORDER BY a.answerdate DESC NULLS LAST, a.id DESC
+		LIMIT 1
+	ON CONFLICT ("userId", "questionId") DO UPDATE
+		SET id = EXCLUDED.id, answer = EXCLUDED.answer, answerdate = EXCLUDED.answerdate, kit_id = EXCLUDED.kit_id,
+			test_id = EXCLUDED.test_id, questionnaire_id = EXCLUDED.questionnaire_id;
+
+	IF NOT FOUND THEN
+		DELETE FROM public."LATEST_ANSWER" WHERE "userId" = p_user_id AND "questionId" = p_question_id;
+	END IF;
+END;
+$$ LANGUAGE plpgsql;
+
+
+/*
+ * An inserted row only ever competes with the current most recent row of its key, so inserts are a single upsert.
+ * Updates and deletes re-derive the affected keys.
+ */
+CREATE OR REPLACE FUNCTION public.latest_answer_maintain() RETURNS trigger AS $$
+BEGIN
+	IF TG_OP = 'INSERT' THEN
+		INSERT INTO public."LATEST_ANSWER" AS l ("userId", "questionId", id, answer, answerdate, kit_id, test_id, questionnaire_id)
+			VALUES (NEW."userId", NEW."questionId", NEW.id, NEW.answer, NEW.answerdate, NEW.kit_id, NEW.test_id, NEW.questionnaire_id)
+		ON CONFLICT ("userId", "questionId") DO UPDATE
+			SET id = EXCLUDED.id, answer = EXCLUDED.answer, answerdate = EXCLUDED.answerdate, kit_id = EXCLUDED.kit_id,
+				test_id = EXCLUDED.test_id, questionnaire_id = EXCLUDED.questionnaire_id
+			WHERE (EXCLUDED.answerdate IS NOT NULL AND (l.answerdate IS NULL OR EXCLUDED.answerdate > l.answerdate))
+			   OR (EXCLUDED.answerdate IS NOT DISTINCT FROM l.answerdate AND EXCLUDED.id > l.id);
+		RETURN NULL;
+	END IF;
+
+	IF TG_OP = 'UPDATE' THEN
+		PERFORM public.latest_answer_refresh(NEW."userId", NEW."questionId");
+		IF (OLD."userId", OLD."questionId") IS DISTINCT FROM (NEW."userId", NEW."questionId") THEN
+			PERFORM public.latest_answer_refresh(OLD."userId", OLD."questionId");
+		END IF;
+		RETURN NULL;
+	END IF;
+
+	PERFORM public.latest_answer_refresh(OLD."userId", OLD."questionId");
+	RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+
+
+BEGIN;
+
+--Blocks writers until the triggers exist and the backfill has seen every row, so no answer is missed in between
+LOCK TABLE public."ANSWER" IN SHARE ROW EXCLUSIVE MODE;
+
+DROP TRIGGER IF EXISTS "ANSWER_latest_answer" ON public."ANSWER";
+CREATE TRIGGER "ANSWER_latest_answer"
+	AFTER INSERT OR UPDATE OR DELETE ON public."ANSWER"
+	FOR EACH ROW EXECUTE PROCEDURE public.latest_answer_maintain();
+
+DELETE FROM public."LATEST_ANSWER";
+INSERT INTO public."LATEST_ANSWER" ("userId", "questionId", id, answer, answerdate, kit_id, test_id, questionnaire_id)
+	SELECT DISTINCT ON ("userId", "questionId") "userId", "questionId", id, answer, answerdate, kit_id, test_id, questionnaire_id
+	FROM public."ANSWER"
+	ORDER BY "userId", "questionId", answerdate DESC NULLS LAST, id DESC;
+
+COMMIT;
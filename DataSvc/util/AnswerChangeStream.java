@@ -0,0 +1,156 @@
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.MediaType;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+
+/*
+ * AnswerChangeStream pushes the changes served by /answers/changes to subscribers of /answers/changes/stream as
+ * server-sent events, so that consumers learn of new answers as soon as they are written instead of polling for
+ * them.
+ *
+ * Every event is named "changes" and carries an AnswerChangeBatch as its data and the batch's watermark as its id.
+ * A subscriber that reconnects with the id of the last event it received, in Last-Event-ID or ?sinceId=, resumes
+ * right after it. Without either it starts from the current watermark, which it is sent at once in an event with
+ * no changes.
+ *
+ * Every answer_stream_poll_ms the change log is read after the watermark of each subscriber. Subscribers at the
+ * same watermark, normally all of them, share one query, and nothing is read while there are no subscribers. A
+ * subscriber is sent a batch when its watermark moves or the batch holds changes it has not been sent yet, and
+ * otherwise every answer_stream_heartbeat_ms, so that it can tell an idle stream from a dead connection. Changes
+ * held after a gap in the log (see AnswerChangeBatch) are therefore sent again with heartbeats until the gap is
+ * filled or skipped, which is harmless.
+ *
+ * Streams end after answer_stream_timeout_ms and are expected to reconnect, so that connections do not outlive
+ * the proxies and load balancers in front of DataSvc. The emitter is given that timeout explicitly, so it does not
+ * depend on spring.mvc.async.request-timeout, which AnswerApplication leaves unlimited for streamed responses.
+ */
+@Component
+public class AnswerChangeStream {
+
+	//Change log entries read per event
+	private static final int CHANGE_BATCH = 10_000;
+
+	private final AnswerService answerSvc;
+	private final long heartbeatMs;
+	private final long timeoutMs;
+	private final List<Subscriber> subscribers = new CopyOnWriteArrayList<Subscriber>();
+	private boolean failureReported;
+
+	public AnswerChangeStream(AnswerService answerSvc,
+							  @Value("${answer_stream_heartbeat_ms:15000}") long heartbeatMs,
+							  @Value("${answer_stream_timeout_ms:300000}") long timeoutMs) {
+		this.answerSvc = answerSvc;
+		this.heartbeatMs = heartbeatMs;
+		this.timeoutMs = timeoutMs;
+	}
+
+	/*
+	 * Opens a stream of the changes after sinceId, or after the current watermark if sinceId is null.
+	 */
+	public SseEmitter subscribe(Long sinceId) {
+		SseEmitter emitter = new SseEmitter(timeoutMs);
+		Subscriber subscriber = new Subscriber(emitter, sinceId != null ? sinceId : answerSvc.getChangeWatermark());
+		emitter.onCompletion(() -> subscribers.remove(subscriber));
+		emitter.onError(error -> subscribers.remove(subscriber));
+		emitter.onTimeout(emitter::complete);
+
+		if (sinceId == null) {
+			synchronized (this) {
+				send(subscriber, new AnswerChangeBatch(subscriber.watermark, false, new ArrayList<AnswerChange>()));
+			}
+		}
+		subscribers.add(subscriber);
+		return emitter;
+	}
+
+	public int getSubscriberCount() {
+		return subscribers.size();
+	}
+
+	@Scheduled(fixedDelayString = "${answer_stream_poll_ms:250}")
+	public synchronized void push() {
+		if (subscribers.isEmpty()) {
+			return;
+		}
+		HashMap<Long, AnswerChangeBatch> batches = new HashMap<Long, AnswerChangeBatch>();
+		try {
+			for (Subscriber subscriber : subscribers) {
+				AnswerChangeBatch batch;
+				do {
+					long from = subscriber.watermark;
+					batch = batches.computeIfAbsent(from, watermark -> answerSvc.getLatestChangesSince(watermark, CHANGE_BATCH));
+					if (!subscriber.isSent(batch) && !send(subscriber, batch)) {
+						break;
+					}
+					if (batch.getWatermark() == from) {
+						break;		//Held at a gap
+					}
+				} while (batch.isMore());
+			}
+			failureReported = false;
+		}
+		catch (RuntimeException e) {
+			//Subscribers are left waiting, and drop the connection themselves if this lasts
+			if (!failureReported) {
+				System.err.println("Cannot read ANSWER_CHANGE, no changes are pushed to subscribers: " + e);
+				failureReported = true;
+			}
+		}
+	}
+
+	//Returns false, and ends the stream, if the subscriber cannot be written to
+	private boolean send(Subscriber subscriber, AnswerChangeBatch batch) {
+		try {
+			subscriber.emitter.send(SseEmitter.event()
+					.id(Long.toString(batch.getWatermark()))
+					.name("changes")
+					.data(batch, MediaType.APPLICATION_JSON));
+		}
+		catch (IOException | IllegalStateException e) {
+			subscribers.remove(subscriber);
+			subscriber.emitter.completeWithError(e);
+			return false;
+		}
+		subscriber.sent(batch);
+		return true;
+	}
+
+	private final class Subscriber {
+		final SseEmitter emitter;
+		long watermark;
+		long sentThroughId;		//Largest change id sent, which can be past the watermark while it is held at a gap
+		long sentAtMs;
+
+		Subscriber(SseEmitter emitter, long watermark) {
+			this.emitter = emitter;
+			this.watermark = watermark;
+			this.sentThroughId = watermark;
+		}
+
+		boolean isSent(AnswerChangeBatch batch) {
+			return batch.getWatermark() == watermark && lastChangeId(batch) <= sentThroughId
+					&& System.currentTimeMillis() - sentAtMs < heartbeatMs;
+		}
+
+		void sent(AnswerChangeBatch batch) {
+			watermark = batch.getWatermark();
+			sentThroughId = Math.max(Math.max(sentThroughId, watermark), lastChangeId(batch));
+			sentAtMs = System.currentTimeMillis();
+		}
+
+		private long lastChangeId(AnswerChangeBatch batch) {
+			long last = batch.getWatermark();
+			for (AnswerChange change : batch.getChanges()) {
+				last = Math.max(last, change.getId());
+			}
+			return last;
+		}
+	}
+}
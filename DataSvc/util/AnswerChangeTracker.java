@@ -0,0 +1,206 @@
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+/*
+ * AnswerChangeTracker follows the ANSWER_CHANGE log (see sql/answer_change.sql) so that DataSvc learns of answers
+ * written by other services, and keeps a version for the whole table, each user and each question from it.
+ *
+ * Every answer_change_poll_ms the log is read for entries since the last poll. Each entry bumps the versions of the
+ * table, its user and its question, and is then handed to the listeners. Entries after a gap in the ids are applied
+ * at once, but the gap is only skipped once it is older than answer_change_grace_ms, in case a transaction still in
+ * progress fills it.
+ *
+ * Versions count changes applied by this instance since it started, so they are only comparable within one
+ * instance; Version.tag() includes the start time to keep them apart. A user or question that has not changed since
+ * then has version 0. Only recently changed users and questions are held in memory: once their last change is
+ * older than answer_version_horizon_ms, they are dropped and share one floor version instead, the newest of those
+ * dropped. A floor is never older than the version it replaces, so dropping an entry can only make a client fetch
+ * unchanged answers again, never keep a changed answer from it.
+ *
+ * If the log cannot be read, isTracking() turns false and callers must not rely on the versions.
+ */
+@Component
+public class AnswerChangeTracker {
+
+	public interface Listener {
+		void answerChanged(long userId, long questionId);
+	}
+
+	//Entries read per poll
+	private static final int CHANGE_BATCH = 10_000;
+
+	private final AnswerService answerSvc;
+	private final long graceMs;
+	private final String epoch;
+	private final List<Listener> listeners = new CopyOnWriteArrayList<Listener>();
+
+	//All ANSWER_CHANGE ids up to lastChangeId have been applied, as have those in appliedAfter
+	private long lastChangeId = -1;
+	private final Set<Long> appliedAfter = new HashSet<Long>();
+	private long gapSinceMs;
+	private volatile boolean tracking;
+	private boolean failureReported;
+
+	private long sequence;
+	private Version tableVersion;
+	private final HashMap<Long, Version> userVersions = new HashMap<Long, Version>();
+	private final HashMap<Long, Version> questionVersions = new HashMap<Long, Version>();
+	private final long horizonMs;
+	private Version floorVersion;		//Of every user and question without an entry
+	private long collapsedAtMs;
+
+	public AnswerChangeTracker(AnswerService answerSvc,
+							   @Value("${answer_change_grace_ms:60000}") long graceMs,
+							   @Value("${answer_version_horizon_ms:3600000}") long horizonMs) {
+		this.answerSvc = answerSvc;
+		this.graceMs = graceMs;
+		this.horizonMs = horizonMs;
+		long startMs = System.currentTimeMillis();
+		this.epoch = Long.toString(startMs, 36);
+		this.floorVersion = new Version(0, startMs);
+		this.tableVersion = floorVersion;
+		this.collapsedAtMs = startMs;
+	}
+
+	public void addListener(Listener listener) {
+		listeners.add(listener);
+	}
+
+	/*
+	 * True while the log is being read, i.e. while the versions follow the answers.
+	 */
+	public boolean isTracking() {
+		return tracking;
+	}
+
+	public synchronized Version getTableVersion() {
+		return tableVersion;
+	}
+
+	public synchronized Version getUserVersion(long userId) {
+		return userVersions.getOrDefault(userId, floorVersion);
+	}
+
+	public synchronized Version getQuestionVersion(long questionId) {
+		return questionVersions.getOrDefault(questionId, floorVersion);
+	}
+
+	@Scheduled(fixedDelayString = "${answer_change_poll_ms:1000}")
+	public void poll() {
+		try {
+			if (lastChangeId < 0) {
+				//Nothing has been served yet, so only changes that may still have gaps before them need applying
+				lastChangeId = answerSvc.getLastChangeIdBefore(graceMs);
+			}
+			List<AnswerChange> applied = new ArrayList<AnswerChange>();
+			synchronized (this) {
+				for (AnswerChange change : answerSvc.getChangesAfter(lastChangeId, CHANGE_BATCH)) {
+					if (appliedAfter.add(change.getId())) {
+						apply(change);
+						applied.add(change);
+					}
+				}
+				collapse();
+			}
+			for (AnswerChange change : applied) {
+				for (Listener listener : listeners) {
+					listener.answerChanged(change.getUserId(), change.getQuestionId());
+				}
+			}
+			advanceChangeId();
+			tracking = true;
+			failureReported = false;
+		}
+		catch (RuntimeException e) {
+			if (!failureReported) {
+				System.err.println("Cannot read ANSWER_CHANGE, answers written elsewhere will not be noticed: " + e);
+				failureReported = true;
+			}
+			tracking = false;
+		}
+	}
+
+	private void apply(AnswerChange change) {
+		Version version = new Version(++sequence, System.currentTimeMillis());
+		tableVersion = version;
+		userVersions.put(change.getUserId(), version);
+		questionVersions.put(change.getQuestionId(), version);
+	}
+
+	//Drops the entries past the horizon into the floor version, at most once per horizon
+	private void collapse() {
+		long now = System.currentTimeMillis();
+		if (now - collapsedAtMs < horizonMs) {
+			return;
+		}
+		collapsedAtMs = now;
+		floorVersion = collapse(userVersions, now - horizonMs, floorVersion);
+		floorVersion = collapse(questionVersions, now - horizonMs, floorVersion);
+	}
+
+	private static Version collapse(HashMap<Long, Version> versions, long beforeMs, Version floor) {
+		for (Iterator<Version> entries = versions.values().iterator(); entries.hasNext(); ) {
+			Version version = entries.next();
+			if (version.modifiedMs < beforeMs) {
+				if (version.number > floor.number) {
+					floor = version;
+				}
+				entries.remove();
+			}
+		}
+		return floor;
+	}
+
+	private void advanceChangeId() {
+		while (appliedAfter.remove(lastChangeId + 1)) {
+			lastChangeId++;
+		}
+		if (appliedAfter.isEmpty()) {
+			gapSinceMs = 0;
+			return;
+		}
+		long now = System.currentTimeMillis();
+		if (gapSinceMs == 0) {
+			gapSinceMs = now;
+		}
+		else if (now - gapSinceMs > graceMs) {
+			lastChangeId = appliedAfter.stream().mapToLong(Long::longValue).min().getAsLong() - 1;
+			gapSinceMs = 0;
+			advanceChangeId();
+		}
+	}
+
+	/*
+	 * The version of the table, a user or a question: the number of the last change applied to it, and when it was
+	 * applied.
+	 */
+	public final class Version {
+		private final long number;
+		private final long modifiedMs;
+
+		private Version(long number, long modifiedMs) {
+			this.number = number;
+			this.modifiedMs = modifiedMs;
+		}
+
+		public long getModifiedMs() {
+			return modifiedMs;
+		}
+
+		/*
+		 * An entity tag for this version of the given representation.
+		 */
+		public String tag(String representation) {
+			return "\"" + epoch + "-" + Long.toString(number, 36) + "-" + Integer.toHexString(representation.hashCode()) + "\"";
+		}
+	}
+}
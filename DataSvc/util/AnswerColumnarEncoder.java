@@ -0,0 +1,160 @@
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/*
+ * AnswerColumnarEncoder writes Answer rows in the compact binary format served as application/x-answer-columnar.
+ *
+ * The stream starts with a header of MAGIC (int), VERSION (short) and a column bitmask (byte), followed by blocks of
+ * up to BLOCK_ROWS rows. Each block is:
+ * 		int rowCount					0 marks the end of the stream
+ * 		int newDictionaryEntries		answer strings first seen in this block, each as int length + UTF-8 bytes
+ * 		long[rowCount] userId			if USER_ID is selected
+ * 		long[rowCount] questionId		if QUESTION_ID is selected
+ * 		long[rowCount] answerDate		if ANSWER_DATE is selected, epoch seconds (UTC), Long.MIN_VALUE for null
+ * 		int[rowCount] answer			if ANSWER is selected, index into the dictionary, -1 for null
+ *
+ * The answer dictionary grows across blocks, so each distinct answer string is sent once per stream. Rows are
+ * written out a block at a time, so the encoder only ever holds one block in memory.
+ */
+public class AnswerColumnarEncoder {
+
+	public static final String MEDIA_TYPE = "application/x-answer-columnar";
+
+	public static final int MAGIC = 0x414E5343;		//"ANSC"
+	public static final short VERSION = 1;
+
+	public static final int USER_ID = 1;
+	public static final int QUESTION_ID = 2;
+	public static final int ANSWER_DATE = 4;
+	public static final int ANSWER = 8;
+	public static final int ALL_COLUMNS = USER_ID | QUESTION_ID | ANSWER_DATE | ANSWER;
+
+	static final int BLOCK_ROWS = 8192;
+
+	private final DataOutputStream out;
+	private final int columns;
+
+	private final long[] userIds = new long[BLOCK_ROWS];
+	private final long[] questionIds = new long[BLOCK_ROWS];
+	private final long[] answerDates = new long[BLOCK_ROWS];
+	private final int[] answerCodes = new int[BLOCK_ROWS];
+	private int rows = 0;
+
+	private final HashMap<String, Integer> dictionary = new HashMap<String, Integer>();
+	private final List<String> newEntries = new ArrayList<String>();
+
+	public AnswerColumnarEncoder(OutputStream out, int columns) throws IOException {
+		this.out = new DataOutputStream(new BufferedOutputStream(out, 64 * 1024));
+		this.columns = columns;
+
+		this.out.writeInt(MAGIC);
+		this.out.writeShort(VERSION);
+		this.out.writeByte(columns);
+	}
+
+	/*
+	 * Parses a comma-separated projection such as "userId,questionId,answer" into a column bitmask. A null or empty
+	 * projection selects every column.
+	 */
+	public static int parseColumns(String projection) {
+		if (projection == null || projection.trim().isEmpty()) {
+			return ALL_COLUMNS;
+		}
+
+		int mask = 0;
+		for (String column : projection.split(",")) {
+			switch (column.trim()) {
+				case "userId":		mask |= USER_ID;		break;
+				case "questionId":	mask |= QUESTION_ID;	break;
+				case "answerDate":	mask |= ANSWER_DATE;	break;
+				case "answer":		mask |= ANSWER;			break;
+				default:
+					throw new IllegalArgumentException("Unknown column '" + column.trim() + 
+													   "', expected userId, questionId, answerDate or answer");
+			}
+		}
+		return mask;
+	}
+
+	public void write(Answer answer) throws IOException {
+		userIds[rows] = answer.getUserId();
+		questionIds[rows] = answer.getQuestionId();
+
+		LocalDateTime answerDate = answer.getAnswerDate();
+		answerDates[rows] = answerDate == null ? Long.MIN_VALUE : answerDate.toEpochSecond(ZoneOffset.UTC);
+
+		if ((columns & ANSWER) != 0) {
+			answerCodes[rows] = encodeAnswer(answer.getAnswer());
+		}
+
+		if (++rows == BLOCK_ROWS) {
+			writeBlock();
+		}
+	}
+
+	/*
+	 * Writes any buffered rows and the end-of-stream marker. The underlying stream is flushed but not closed.
+	 */
+	public void finish() throws IOException {
+		if (rows > 0) {
+			writeBlock();
+		}
+		out.writeInt(0);
+		out.flush();
+	}
+
+	private int encodeAnswer(String answer) {
+		if (answer == null) {
+			return -1;
+		}
+		Integer code = dictionary.get(answer);
+		if (code == null) {
+			code = dictionary.size();
+			dictionary.put(answer, code);
+			newEntries.add(answer);
+		}
+		return code;
+	}
+
+	private void writeBlock() throws IOException {
+		out.writeInt(rows);
+
+		out.writeInt(newEntries.size());
+		for (String entry : newEntries) {
+			byte[] bytes = entry.getBytes(StandardCharsets.UTF_8);
+			out.writeInt(bytes.length);
+			out.write(bytes);
+		}
+		newEntries.clear();
+
+		if ((columns & USER_ID) != 0) {
+			writeLongs(userIds);
+		}
+		if ((columns & QUESTION_ID) != 0) {
+			writeLongs(questionIds);
+		}
+		if ((columns & ANSWER_DATE) != 0) {
+			writeLongs(answerDates);
+		}
+		if ((columns & ANSWER) != 0) {
+			for (int i = 0; i < rows; i++) {
+				out.writeInt(answerCodes[i]);
+			}
+		}
+		rows = 0;
+	}
+
+	private void writeLongs(long[] column) throws IOException {
+		for (int i = 0; i < rows; i++) {
+			out.writeLong(column[i]);
+		}
+	}
+}
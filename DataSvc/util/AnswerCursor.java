@@ -0,0 +1,114 @@
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/*
+ * AnswerCursor runs a query that streams answers on a thread of its own and hands its rows to the thread writing
+ * the response, so that a streamed /answers response is only started once its query has run.
+ *
+ * open() waits for the first row, or for the query to end, on the request thread. A query that fails before its
+ * first row therefore fails the request there, where the controller's exception handlers still apply, instead of
+ * in the middle of a 200 response. The remaining rows are passed through a bounded queue as the response is
+ * written, so a slow client holds the query back as before rather than having the rows buffered for it. A failure
+ * after the first row is thrown again to the writer by accept().
+ *
+ * The writer must close() the cursor once done, which also ends the query at its next row if the writer stopped
+ * early. The query is ended as well if the writer takes no row for stallMs, so that a response which is never
+ * written does not hold a database connection for ever.
+ */
+public class AnswerCursor implements Consumer<Consumer<Answer>>, AutoCloseable {
+
+	private static final int QUEUED_ROWS = 1024;
+	private static final Object END = new Object();
+
+	private final BlockingQueue<Object> rows = new ArrayBlockingQueue<Object>(QUEUED_ROWS);
+	private final long stallMs;
+	private volatile RuntimeException failure;		//Set before END is queued
+	private volatile boolean closed;
+	private Object next;
+
+	private AnswerCursor(long stallMs) {
+		this.stallMs = stallMs;
+	}
+
+	/*
+	 * Starts the query on the executor, in the trace of the calling thread, and returns once it has read its first
+	 * row. Throws the exception the query failed with if it failed before that.
+	 */
+	public static AnswerCursor open(Consumer<Consumer<Answer>> query, Executor executor, long stallMs) {
+		AnswerCursor cursor = new AnswerCursor(stallMs);
+		TraceContext trace = TraceContext.current();
+		executor.execute(() -> cursor.read(query, trace));
+		cursor.next = cursor.take();
+		if (cursor.next == END && cursor.failure != null) {
+			throw cursor.failure;
+		}
+		return cursor;
+	}
+
+	private void read(Consumer<Consumer<Answer>> query, TraceContext trace) {
+		try (TraceContext.Scope scope = trace == null ? null : trace.open()) {
+			query.accept(this::put);
+		}
+		catch (RuntimeException e) {
+			failure = e;
+		}
+		finally {
+			try {
+				if (!closed) {
+					rows.offer(END, stallMs, TimeUnit.MILLISECONDS);
+				}
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	private void put(Answer answer) {
+		try {
+			if (closed || !rows.offer(answer, stallMs, TimeUnit.MILLISECONDS) || closed) {
+				throw new CancellationException("The answer response stopped taking rows");
+			}
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new CancellationException("Interrupted while queueing answers");
+		}
+	}
+
+	private Object take() {
+		try {
+			return rows.take();
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			close();
+			throw new CancellationException("Interrupted while reading answers");
+		}
+	}
+
+	/*
+	 * Hands every row of the query to the consumer, and then throws the exception the query failed with, if any.
+	 * Can only be called once.
+	 */
+	@Override
+	public void accept(Consumer<Answer> consumer) {
+		for (Object row = next; row != END; row = take()) {
+			consumer.accept((Answer) row);
+		}
+		next = END;
+		if (failure != null) {
+			throw failure;
+		}
+	}
+
+	@Override
+	public void close() {
+		closed = true;
+		rows.clear();		//Unblocks the query, which then sees it is closed
+	}
+}
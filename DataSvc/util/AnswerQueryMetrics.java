@@ -0,0 +1,200 @@
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+/*
+ * AnswerQueryMetrics splits the time of each /answers response between reading its rows from the database and
+ * writing them out, which the overall http.server.requests timer cannot tell apart as rows are written while they
+ * are read:
+ * 		answer.query				time spent in the database cursor: running the query and fetching and mapping rows
+ * 		answer.serialize			time spent writing rows out: JSON, NDJSON or columnar encoding and the response stream
+ * 		answer.query.rows			rows read per response
+ * 		answer.response.bytes		body bytes per response, tagged cached=true when served from AnswerResponseCache
+ *
+ * All are tagged with the query (all, user, users or question) and the questionClass of a question query, and the
+ * last two with the representation (json, ndjson or columnar). Questions are classed by answer_metrics_question_classes,
+ * a comma-separated list of questionId=class, and every other question is "other", so that a tag never takes one
+ * value per questionId. Queries without a questionId have questionClass "none".
+ *
+ * The split is measured by timing each row's hand-over to the writer, which adds two clock reads per row.
+ */
+@Component
+public class AnswerQueryMetrics {
+
+	private static final String NONE = "none";
+	private static final String OTHER = "other";
+
+	private final MeterRegistry registry;
+	private final Map<Long, String> questionClasses = new HashMap<Long, String>();
+
+	public AnswerQueryMetrics(ObjectProvider<MeterRegistry> meterRegistry,
+							  @Value("${answer_metrics_question_classes:1=birthdate,2=height,3=weight}") String questionClasses) {
+		this.registry = meterRegistry.getIfAvailable(SimpleMeterRegistry::new);
+		for (String entry : questionClasses.split(",")) {
+			if (entry.trim().isEmpty()) {
+				continue;
+			}
+			String[] idClass = entry.split("=");
+			if (idClass.length != 2) {
+				throw new IllegalArgumentException("answer_metrics_question_classes entries must be questionId=class, not " + entry);
+			}
+			this.questionClasses.put(Long.parseLong(idClass[0].trim()), idClass[1].trim());
+		}
+	}
+
+	/*
+	 * Starts measuring one response. questionId is null unless the query is for one question, and representation is
+	 * the key representation of AnswerResponseCache or a media type.
+	 */
+	public Sample start(String query, Long questionId, String representation) {
+		String questionClass = questionId == null ? NONE : questionClasses.getOrDefault(questionId, OTHER);
+		return new Sample(query, questionClass, representationOf(representation));
+	}
+
+	private static String representationOf(String representation) {
+		if (representation.startsWith(AnswerColumnarEncoder.MEDIA_TYPE)) {
+			return "columnar";
+		}
+		return representation.endsWith("ndjson") ? "ndjson" : "json";
+	}
+
+	/*
+	 * Writes rows out, as done by the writers of Api.
+	 */
+	public interface Write {
+		void run() throws IOException;
+	}
+
+	/*
+	 * The measurements of one response, recorded by stop() or cached().
+	 */
+	public final class Sample {
+
+		private final String query;
+		private final String questionClass;
+		private final String representation;
+
+		private long queryNanos;
+		private long serializeNanos;
+		private long rows;
+		private long bytes;
+
+		Sample(String query, String questionClass, String representation) {
+			this.query = query;
+			this.questionClass = questionClass;
+			this.representation = representation;
+		}
+
+		/*
+		 * Wraps a producer of database rows so that its time is split between the cursor and the consumer it hands
+		 * rows to. The wrapped producer must run on one thread at a time.
+		 */
+		public Consumer<Consumer<Answer>> time(Consumer<Consumer<Answer>> producer) {
+			return consumer -> {
+				long[] consumerNanos = { 0 };
+				long startNs = System.nanoTime();
+				try {
+					producer.accept(answer -> {
+						long rowStartNs = System.nanoTime();
+						try {
+							consumer.accept(answer);
+						}
+						finally {
+							consumerNanos[0] += System.nanoTime() - rowStartNs;
+							rows++;
+						}
+					});
+				}
+				finally {
+					queryNanos += System.nanoTime() - startNs - consumerNanos[0];
+					serializeNanos += consumerNanos[0];
+				}
+			};
+		}
+
+		/*
+		 * Runs a write of rows already read, counting its time as serialization.
+		 */
+		public void serialize(Write write) throws IOException {
+			long startNs = System.nanoTime();
+			try {
+				write.run();
+			}
+			finally {
+				serializeNanos += System.nanoTime() - startNs;
+			}
+		}
+
+		/*
+		 * Wraps the response stream to count the bytes written through it.
+		 */
+		public OutputStream count(OutputStream out) {
+			return new FilterOutputStream(out) {
+				@Override
+				public void write(int b) throws IOException {
+					out.write(b);
+					bytes++;
+				}
+
+				@Override
+				public void write(byte[] b, int off, int len) throws IOException {
+					out.write(b, off, len);
+					bytes += len;
+				}
+			};
+		}
+
+		/*
+		 * Records a response written from the rows read through time().
+		 */
+		public void stop() {
+			Timer.builder("answer.query")
+				 .description("Time reading the rows of an /answers response from the database")
+				 .tags("query", query, "questionClass", questionClass)
+				 .register(registry)
+				 .record(queryNanos, TimeUnit.NANOSECONDS);
+			Timer.builder("answer.serialize")
+				 .description("Time writing out the rows of an /answers response")
+				 .tags("query", query, "questionClass", questionClass, "representation", representation)
+				 .register(registry)
+				 .record(serializeNanos, TimeUnit.NANOSECONDS);
+			DistributionSummary.builder("answer.query.rows")
+				 .description("Rows read for an /answers response")
+				 .tags("query", query, "questionClass", questionClass)
+				 .register(registry)
+				 .record(rows);
+			recordBytes(false);
+		}
+
+		/*
+		 * Records a response served whole from AnswerResponseCache.
+		 */
+		public void cached(int length) {
+			bytes = length;
+			recordBytes(true);
+		}
+
+		private void recordBytes(boolean cached) {
+			DistributionSummary.builder("answer.response.bytes")
+				 .description("Body bytes of an /answers response")
+				 .baseUnit("bytes")
+				 .tags("query", query, "questionClass", questionClass, "representation", representation,
+					   "cached", String.valueOf(cached))
+				 .register(registry)
+				 .record(bytes);
+		}
+	}
+}
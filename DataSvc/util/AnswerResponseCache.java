@@ -0,0 +1,301 @@
+import java.io.ByteArrayOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+/*
+ * AnswerResponseCache holds the serialized bodies of recent /answers responses, so that a repeated request is
+ * answered with the stored bytes without querying the database or running Jackson again.
+ *
+ * Entries are keyed by query, id, recent and representation (JSON, NDJSON or columnar with its column selection).
+ * Only whole results are cached; paged requests always go to the database.
+ *
+ * The cache is bounded by answer_cache_max_bytes of body bytes rather than by entry count, and evicts the least
+ * recently used entries to stay under it. A body larger than an eighth of the bound is never cached, so that one
+ * full-table response cannot flush everything else. Entries expire answer_cache_ttl_ms after they were stored.
+ *
+ * Entries are also dropped as soon as AnswerChangeTracker reports that an answer they hold was written: each entry
+ * for the whole table, the changed user or the changed question is removed. A response being written while a change
+ * is applied is not stored, as it may have read the answer from before the change. If the change log cannot be read,
+ * entries only expire.
+ *
+ * Setting answer_cache_max_bytes to 0 disables the cache.
+ *
+ * Lookups are counted by answer.cache.requests, tagged with the query and a result of hit or miss, so the hit ratio
+ * of each query is its hit count over its total.
+ */
+@Component
+public class AnswerResponseCache {
+
+	public enum Query { ALL, USER, QUESTION }
+
+	//Approximate heap taken by an entry beside its body: map node, key, entry and array headers
+	private static final int ENTRY_OVERHEAD = 160;
+
+	private final long maxBytes;
+	private final long maxEntryBytes;
+	private final long ttlMs;
+
+	private final LinkedHashMap<Key, Entry> entries = new LinkedHashMap<Key, Entry>(16, 0.75f, true);
+	private long bytes;
+	private long generation;
+
+	private final Counter[] hits = new Counter[Query.values().length];
+	private final Counter[] misses = new Counter[Query.values().length];
+	private final Counter evictedForSize;
+	private final Counter expired;
+	private final Counter invalidated;
+
+	public AnswerResponseCache(AnswerChangeTracker changeTracker, ObjectProvider<MeterRegistry> meterRegistry,
+							   @Value("${answer_cache_max_bytes:67108864}") long maxBytes,
+							   @Value("${answer_cache_ttl_ms:60000}") long ttlMs) {
+		this.maxBytes = maxBytes;
+		this.maxEntryBytes = maxBytes / 8;
+		this.ttlMs = ttlMs;
+		changeTracker.addListener(this::invalidate);
+
+		MeterRegistry registry = meterRegistry.getIfAvailable(SimpleMeterRegistry::new);
+		for (Query query : Query.values()) {
+			hits[query.ordinal()] = requests(registry, query, "hit");
+			misses[query.ordinal()] = requests(registry, query, "miss");
+		}
+		this.evictedForSize = evictions(registry, "size");
+		this.expired = evictions(registry, "expired");
+		this.invalidated = evictions(registry, "invalidated");
+		Gauge.builder("answer.cache.bytes", this, AnswerResponseCache::getBytes)
+			 .description("Bytes held by cached /answers responses, including per-entry overhead")
+			 .register(registry);
+		Gauge.builder("answer.cache.entries", this, AnswerResponseCache::getEntryCount)
+			 .description("Cached /answers responses")
+			 .register(registry);
+	}
+
+	private static Counter requests(MeterRegistry registry, Query query, String result) {
+		return Counter.builder("answer.cache.requests")
+				.description("Lookups of cached /answers responses")
+				.tag("query", query.name().toLowerCase())
+				.tag("result", result)
+				.register(registry);
+	}
+
+	private static Counter evictions(MeterRegistry registry, String cause) {
+		return Counter.builder("answer.cache.evictions")
+				.description("Cached /answers responses removed before being requested again")
+				.tag("cause", cause)
+				.register(registry);
+	}
+
+	/*
+	 * Returns the cached body for key, or null.
+	 */
+	public synchronized byte[] get(Key key) {
+		if (maxBytes <= 0) {
+			return null;
+		}
+		Entry entry = entries.get(key);
+		if (entry != null && System.currentTimeMillis() >= entry.expiresAtMs) {
+			remove(key, expired);
+			entry = null;
+		}
+		if (entry == null) {
+			misses[key.query.ordinal()].increment();
+			return null;
+		}
+		hits[key.query.ordinal()].increment();
+		return entry.body;
+	}
+
+	/*
+	 * Wraps the response stream so that what is written through it is also kept, and stored for key by commit() if
+	 * it turns out small enough and no answer was written in the meantime.
+	 */
+	public synchronized Capture capture(Key key, OutputStream out) {
+		return new Capture(key, out, generation);
+	}
+
+	/*
+	 * Removes every entry that may hold an answer of userId to questionId.
+	 */
+	public synchronized void invalidate(long userId, long questionId) {
+		generation++;
+		Iterator<Map.Entry<Key, Entry>> it = entries.entrySet().iterator();
+		while (it.hasNext()) {
+			Map.Entry<Key, Entry> e = it.next();
+			Key key = e.getKey();
+			if (key.query == Query.ALL || (key.query == Query.USER && key.id == userId)
+									   || (key.query == Query.QUESTION && key.id == questionId)) {
+				bytes -= weight(e.getValue().body);
+				it.remove();
+				invalidated.increment();
+			}
+		}
+	}
+
+	public synchronized long getBytes() {
+		return bytes;
+	}
+
+	public synchronized int getEntryCount() {
+		return entries.size();
+	}
+
+	private synchronized void put(Key key, byte[] body, long capturedGeneration) {
+		if (capturedGeneration != generation) {
+			return;
+		}
+		Entry previous = entries.put(key, new Entry(body, System.currentTimeMillis() + ttlMs));
+		if (previous != null) {
+			bytes -= weight(previous.body);
+		}
+		bytes += weight(body);
+
+		Iterator<Map.Entry<Key, Entry>> eldest = entries.entrySet().iterator();
+		while (bytes > maxBytes && eldest.hasNext()) {
+			Map.Entry<Key, Entry> e = eldest.next();
+			bytes -= weight(e.getValue().body);
+			eldest.remove();
+			evictedForSize.increment();
+		}
+	}
+
+	private void remove(Key key, Counter cause) {
+		Entry entry = entries.remove(key);
+		if (entry != null) {
+			bytes -= weight(entry.body);
+			cause.increment();
+		}
+	}
+
+	private static long weight(byte[] body) {
+		return body.length + ENTRY_OVERHEAD;
+	}
+
+	private static final class Entry {
+		final byte[] body;
+		final long expiresAtMs;
+
+		Entry(byte[] body, long expiresAtMs) {
+			this.body = body;
+			this.expiresAtMs = expiresAtMs;
+		}
+	}
+
+	/*
+	 * Identifies one response: the query, its userId or questionId (0 for ALL), whether only the most recent answers
+	 * were asked for, and the representation the body is written in.
+	 */
+	public static final class Key {
+		private final Query query;
+		private final long id;
+		private final boolean recent;
+		private final String representation;
+
+		public Key(Query query, long id, boolean recent, String representation) {
+			this.query = query;
+			this.id = id;
+			this.recent = recent;
+			this.representation = representation;
+		}
+
+		public Query getQuery() {
+			return query;
+		}
+
+		public long getId() {
+			return id;
+		}
+
+		public boolean isRecent() {
+			return recent;
+		}
+
+		public String getRepresentation() {
+			return representation;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof Key)) {
+				return false;
+			}
+			Key other = (Key) o;
+			return query == other.query && id == other.id && recent == other.recent && representation.equals(other.representation);
+		}
+
+		@Override
+		public int hashCode() {
+			return Objects.hash(query, id, recent, representation);
+		}
+	}
+
+	/*
+	 * Passes everything written through to the response and keeps a copy until it outgrows the largest cacheable
+	 * body. The response stream is neither flushed nor closed by it.
+	 */
+	public final class Capture extends FilterOutputStream {
+		private final Key key;
+		private final long capturedGeneration;
+		private ByteArrayOutputStream copy = new ByteArrayOutputStream();
+
+		private Capture(Key key, OutputStream out, long capturedGeneration) {
+			super(out);
+			this.key = key;
+			this.capturedGeneration = capturedGeneration;
+			if (maxBytes <= 0) {
+				copy = null;
+			}
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			out.write(b);
+			keep(1);
+			if (copy != null) {
+				copy.write(b);
+			}
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			out.write(b, off, len);
+			keep(len);
+			if (copy != null) {
+				copy.write(b, off, len);
+			}
+		}
+
+		@Override
+		public void close() throws IOException {
+			flush();
+		}
+
+		private void keep(int len) {
+			if (copy != null && copy.size() + len > maxEntryBytes) {
+				copy = null;
+			}
+		}
+
+		/*
+		 * Stores the body once the whole response has been written.
+		 */
+		public void commit() {
+			if (copy != null) {
+				put(key, copy.toByteArray(), capturedGeneration);
+				copy = null;
+			}
+		}
+	}
+}
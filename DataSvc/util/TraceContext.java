@@ -0,0 +1,141 @@
+import java.util.concurrent.ThreadLocalRandom;
+
+import org.slf4j.MDC;
+
+/*
+ * TraceContext is the W3C Trace Context of the request being served, received from DataLogicSvc in the traceparent
+ * header ("00-<32 hex trace id>-<16 hex span id>-<2 hex flags>"), so that both sides of a call can be stitched
+ * together by trace id in any tracing or log backend that reads the standard header.
+ *
+ * TraceContextFilter opens one per request: a child of the caller's context if it sent a valid traceparent, and a
+ * new root otherwise. While it is open it is current() on the request thread, and its trace and span ids are in the
+ * logging MDC as traceId and spanId.
+ *
+ * The context is kept in a thread local, so it does not follow work handed to other threads; such work has to open
+ * it again there (see AnswerCursor).
+ *
+ * DataLogicSvc/util/TraceContext.java is the canonical copy, which also serves outgoing calls. This one is cut down
+ * to parsing the header and propagating the context within DataSvc, which makes no calls of its own; a change to
+ * the header format has to be made to both.
+ */
+public final class TraceContext {
+
+	public static final String HEADER = "traceparent";
+
+	private static final ThreadLocal<TraceContext> CURRENT = new ThreadLocal<TraceContext>();
+
+	private final String traceId;
+	private final String spanId;
+	private final String flags;
+
+	private TraceContext(String traceId, String spanId, String flags) {
+		this.traceId = traceId;
+		this.spanId = spanId;
+		this.flags = flags;
+	}
+
+	/*
+	 * Returns the context of a traceparent header, or null if the header is missing or malformed.
+	 */
+	public static TraceContext parse(String header) {
+		if (header == null) {
+			return null;
+		}
+		String[] parts = header.trim().split("-");
+		if (parts.length < 4 || !isHex(parts[0], 2) || parts[0].equals("ff") || (parts[0].equals("00") && parts.length != 4)
+			|| !isHex(parts[1], 32) || !isHex(parts[2], 16) || !isHex(parts[3], 2) || isZero(parts[1]) || isZero(parts[2])) {
+			return null;
+		}
+		return new TraceContext(parts[1], parts[2], parts[3]);
+	}
+
+	/*
+	 * Starts a new, sampled trace.
+	 */
+	public static TraceContext root() {
+		ThreadLocalRandom random = ThreadLocalRandom.current();
+		return new TraceContext(hex(random.nextLong() | 1L) + hex(random.nextLong()), newSpanId(), "01");
+	}
+
+	/*
+	 * Returns a new span of the same trace, as sent on an outgoing call or opened for an incoming one.
+	 */
+	public TraceContext child() {
+		return new TraceContext(traceId, newSpanId(), flags);
+	}
+
+	/*
+	 * Returns the context open on this thread, or null.
+	 */
+	public static TraceContext current() {
+		return CURRENT.get();
+	}
+
+	/*
+	 * Makes this context current on this thread until the returned scope is closed, which restores the previous one.
+	 */
+	public Scope open() {
+		Scope scope = new Scope(CURRENT.get());
+		CURRENT.set(this);
+		MDC.put("traceId", traceId);
+		MDC.put("spanId", spanId);
+		return scope;
+	}
+
+	public String toHeader() {
+		return "00-" + traceId + "-" + spanId + "-" + flags;
+	}
+
+	private static String newSpanId() {
+		return hex(ThreadLocalRandom.current().nextLong() | 1L);
+	}
+
+	private static String hex(long value) {
+		String digits = Long.toHexString(value);
+		return "0000000000000000".substring(digits.length()) + digits;
+	}
+
+	private static boolean isHex(String s, int length) {
+		if (s.length() != length) {
+			return false;
+		}
+		for (int i = 0; i < length; i++) {
+			char c = s.charAt(i);
+			if (!(c >= '0' && c <= '9') && !(c >= 'a' && c <= 'f')) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static boolean isZero(String hex) {
+		for (int i = 0; i < hex.length(); i++) {
+			if (hex.charAt(i) != '0') {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	public static final class Scope implements AutoCloseable {
+		private final TraceContext previous;
+
+		private Scope(TraceContext previous) {
+			this.previous = previous;
+		}
+
+		@Override
+		public void close() {
+			if (previous == null) {
+				CURRENT.remove();
+				MDC.remove("traceId");
+				MDC.remove("spanId");
+			}
+			else {
+				CURRENT.set(previous);
+				MDC.put("traceId", previous.traceId);
+				MDC.put("spanId", previous.spanId);
+			}
+		}
+	}
+}
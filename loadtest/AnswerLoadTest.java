@@ -0,0 +1,381 @@
+import java.io.IOException;
+import java.net.URI;
+import java.net.URLEncoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+/*
+ * AnswerLoadTest runs DataSvc and DataLogicSvc end to end against a seeded Postgres and replays a mix of requests
+ * on them at a target rate (see LoadTestDatabase, ServiceProcess and LoadGenerator).
+ *
+ * It reports, by endpoint, the p50, p99 and p99.9 latencies and the throughput of successful requests, and by run,
+ * the peak heap, collections and collection time of each service and the time Postgres spent executing
+ * statements. Resources are only measured per service and per run, so in the default mixed mode they cover the
+ * whole mix; in isolated mode each endpoint of the mix is run on its own, one after the other, which attributes
+ * them to single endpoints.
+ *
+ * Both services are run from their executable jars, built as usual. The load test itself needs the PostgreSQL JDBC
+ * driver and zonky's embedded-postgres on its classpath, unless --jdbc-url points it at an existing database (whose
+ * ANSWER table --seed=true replaces). To run:
+ * 		java -cp <classpath> AnswerLoadTest --datasvc-jar=<jar> --datalogicsvc-jar=<jar> [--<option>=<value> ...]
+ *
+ * Options, with their defaults:
+ * 		--rows=1000000			ANSWER rows to seed, as users * questions * versions
+ * 		--questions=20			questions answered by each user, at least 3
+ * 		--versions=2			answers to each question by each user, of which only the last one is most recent
+ * 		--rate=50				requests per second
+ * 		--warmup=60				seconds of load before measuring, after the services are up
+ * 		--duration=120			seconds of load measured, per endpoint in isolated mode
+ * 		--mix=...				comma-separated endpoint:weight pairs, see ENDPOINTS below for the names
+ * 		--mode=mixed			mixed, or isolated to run each endpoint of the mix on its own
+ * 		--max-in-flight=256		outstanding requests beyond which requests are dropped
+ * 		--timeout=60			request timeout in seconds
+ * 		--service-jvm-args=-Xms2g -Xmx2g	JVM options of each service
+ * 		--sql-dir=DataSvc/sql	scripts run against ANSWER after seeding
+ * 		--log-dir=loadtest-logs	where the output of the services goes
+ * 		--jdbc-url, --db-user, --db-password, --seed		an existing database, in place of the embedded one
+ */
+public class AnswerLoadTest {
+
+	private static final String MIN_ANSWER_DATE = "2000-01-01";
+	private static final int SAMPLE_SIZE = 10_000;
+
+	private static final Map<String, String> DEFAULTS = new LinkedHashMap<String, String>();
+	static {
+		DEFAULTS.put("datasvc-jar", null);
+		DEFAULTS.put("datalogicsvc-jar", null);
+		DEFAULTS.put("rows", "1000000");
+		DEFAULTS.put("questions", "20");
+		DEFAULTS.put("versions", "2");
+		DEFAULTS.put("rate", "50");
+		DEFAULTS.put("warmup", "60");
+		DEFAULTS.put("duration", "120");
+		DEFAULTS.put("mix", "answers-user:20,answers-question:2,map:1,map-user:20,cohort-age:15,cohort-bmi:10,"
+							+ "cohort-answer:15,cohort-value:7,cohort-select:10");
+		DEFAULTS.put("mode", "mixed");
+		DEFAULTS.put("max-in-flight", "256");
+		DEFAULTS.put("timeout", "60");
+		DEFAULTS.put("service-jvm-args", "-Xms2g -Xmx2g");
+		DEFAULTS.put("sql-dir", "DataSvc/sql");
+		DEFAULTS.put("log-dir", "loadtest-logs");
+		DEFAULTS.put("jdbc-url", null);
+		DEFAULTS.put("db-user", "postgres");
+		DEFAULTS.put("db-password", "postgres");
+		DEFAULTS.put("seed", null);
+	}
+
+	public static void main(String[] args) throws Exception {
+		Map<String, String> options = parse(args);
+		int questions = Integer.parseInt(options.get("questions"));
+		int versions = Integer.parseInt(options.get("versions"));
+		int users = (int) Math.max(1, Long.parseLong(options.get("rows")) / ((long) questions * versions));
+		double rate = Double.parseDouble(options.get("rate"));
+		Duration warmup = Duration.ofSeconds(Long.parseLong(options.get("warmup")));
+		Duration duration = Duration.ofSeconds(Long.parseLong(options.get("duration")));
+		Duration timeout = Duration.ofSeconds(Long.parseLong(options.get("timeout")));
+		boolean isolated = "isolated".equals(options.get("mode"));
+		List<String> jvmArgs = Arrays.asList(options.get("service-jvm-args").trim().split("\\s+"));
+		Path logDir = Files.createDirectories(Paths.get(options.get("log-dir")));
+
+		HttpClient client = HttpClient.newBuilder()
+				.connectTimeout(Duration.ofSeconds(5))
+				.version(HttpClient.Version.HTTP_1_1)
+				.build();
+
+		String jdbcUrl = options.get("jdbc-url");
+		boolean seed = options.get("seed") != null ? Boolean.parseBoolean(options.get("seed")) : jdbcUrl == null;
+		List<AutoCloseable> resources = new ArrayList<AutoCloseable>();
+		try {
+			LoadTestDatabase db = jdbcUrl == null ? LoadTestDatabase.startEmbedded()
+												  : LoadTestDatabase.existing(jdbcUrl, options.get("db-user"), options.get("db-password"));
+			resources.add(db);
+			if (seed) {
+				long started = System.nanoTime();
+				db.seed(users, questions, versions, Paths.get(options.get("sql-dir")));
+				System.out.printf("Seeded %,d ANSWER rows for %,d users in %,d s%n", (long) users * questions * versions, users,
+								  TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - started));
+			}
+			List<LoadTestDatabase.SampledAnswer> sample = db.sampleLatestAnswers(SAMPLE_SIZE);
+
+			Map<String, String> dataProperties = new LinkedHashMap<String, String>();
+			dataProperties.put("spring.datasource.url", db.getJdbcUrl());
+			dataProperties.put("spring.datasource.username", db.getUser());
+			dataProperties.put("spring.datasource.password", db.getPassword());
+			ServiceProcess dataSvc = new ServiceProcess("DataSvc", Paths.get(options.get("datasvc-jar")), jvmArgs,
+														dataProperties, logDir.resolve("DataSvc.log"));
+			resources.add(0, dataSvc);
+			dataSvc.start();
+			dataSvc.awaitReady(client, "/answers/userIdRange?recent=true", Duration.ofMinutes(5));
+
+			//DataSvc has no authentication of its own, any credentials do
+			Map<String, String> logicProperties = new LinkedHashMap<String, String>();
+			logicProperties.put("answer_url", dataSvc.getBaseUrl() + "/answers");
+			logicProperties.put("answer_url_uname", "loadtest");
+			logicProperties.put("answer_url_pass", "loadtest");
+			ServiceProcess logicSvc = new ServiceProcess("DataLogicSvc", Paths.get(options.get("datalogicsvc-jar")), jvmArgs,
+														 logicProperties, logDir.resolve("DataLogicSvc.log"));
+			resources.add(0, logicSvc);
+			logicSvc.start();
+			//The first cohort request loads the whole index from DataSvc
+			logicSvc.awaitReady(client, "/answer-logic/users/age/max/0", Duration.ofMinutes(15));
+
+			List<LoadGenerator.Endpoint> mix = parseMix(options.get("mix"), endpoints(dataSvc.getBaseUrl(), logicSvc.getBaseUrl(), sample, timeout));
+			LoadGenerator generator = new LoadGenerator(client, Integer.parseInt(options.get("max-in-flight")), timeout);
+			List<ServiceProcess> services = Arrays.asList(dataSvc, logicSvc);
+
+			System.out.printf("Warming up for %d s%n", warmup.getSeconds());
+			generator.run(mix, rate, warmup);
+
+			Map<String, LoadGenerator.EndpointResult> latencies = new LinkedHashMap<String, LoadGenerator.EndpointResult>();
+			Map<String, RunResources> runResources = new LinkedHashMap<String, RunResources>();
+			if (isolated) {
+				for (LoadGenerator.Endpoint endpoint : mix) {
+					System.out.printf("Running %s alone for %d s at %.0f/s%n", endpoint.name, duration.getSeconds(), rate);
+					RunResources measured = new RunResources(services, db);
+					latencies.putAll(generator.run(Collections.singletonList(endpoint.withWeight(1)), rate, duration));
+					runResources.put(endpoint.name, measured.finish());
+				}
+			}
+			else {
+				System.out.printf("Running the mix for %d s at %.0f/s%n", duration.getSeconds(), rate);
+				RunResources measured = new RunResources(services, db);
+				latencies.putAll(generator.run(mix, rate, duration));
+				runResources.put("mix", measured.finish());
+			}
+			report(latencies, runResources, services);
+		}
+		finally {
+			for (AutoCloseable resource : resources) {
+				try {
+					resource.close();
+				}
+				catch (Exception e) {
+					System.err.println("Could not stop " + resource + ": " + e);
+				}
+			}
+		}
+	}
+
+	private static Map<String, String> parse(String[] args) {
+		Map<String, String> options = new LinkedHashMap<String, String>(DEFAULTS);
+		for (String arg : args) {
+			int equals = arg.indexOf('=');
+			String name = arg.startsWith("--") && equals > 2 ? arg.substring(2, equals) : null;
+			if (name == null || !DEFAULTS.containsKey(name)) {
+				usage("Unknown option " + arg);
+			}
+			options.put(name, arg.substring(equals + 1));
+		}
+		if (options.get("datasvc-jar") == null || options.get("datalogicsvc-jar") == null) {
+			usage("--datasvc-jar and --datalogicsvc-jar are required");
+		}
+		return options;
+	}
+
+	private static void usage(String message) {
+		System.err.println(message);
+		System.err.println("Usage: AnswerLoadTest --datasvc-jar=<jar> --datalogicsvc-jar=<jar> [--<option>=<value> ...], options and defaults:");
+		DEFAULTS.forEach((name, value) -> System.err.println("\t--" + name + (value == null ? "" : "=" + value)));
+		System.exit(2);
+	}
+
+	/*
+	 * The endpoints a mix can name. Requests draw their userIds, questionIds and answers from a sample of the most
+	 * recent answers, so they select real users whatever the database holds.
+	 */
+	private static Map<String, LoadGenerator.Endpoint> endpoints(String dataUrl, String logicUrl,
+																 List<LoadTestDatabase.SampledAnswer> sample, Duration timeout) {
+		List<LoadTestDatabase.SampledAnswer> choices = new ArrayList<LoadTestDatabase.SampledAnswer>();
+		List<LoadTestDatabase.SampledAnswer> numbers = new ArrayList<LoadTestDatabase.SampledAnswer>();
+		for (LoadTestDatabase.SampledAnswer sampled : sample) {
+			if (sampled.questionId <= 3) {
+				continue;		//Birth date, height and weight have endpoints of their own
+			}
+			try {
+				Double.parseDouble(sampled.answer);
+				numbers.add(sampled);
+			}
+			catch (NumberFormatException e) {
+				choices.add(sampled);
+			}
+		}
+
+		Map<String, LoadGenerator.Endpoint> endpoints = new LinkedHashMap<String, LoadGenerator.Endpoint>();
+		add(endpoints, "answers", random -> get(dataUrl + "/answers?recent=true", timeout));
+		add(endpoints, "answers-user", random ->
+			get(dataUrl + "/answers/users/" + pick(sample, random).userId + "?recent=true", timeout));
+		add(endpoints, "answers-question", random ->
+			get(dataUrl + "/answers/questions/" + pick(sample, random).questionId + "?recent=true", timeout));
+		add(endpoints, "map", random -> get(logicUrl + "/answer-logic/map", timeout));
+		add(endpoints, "map-user", random -> get(logicUrl + "/answer-logic/map/users/" + pick(sample, random).userId, timeout));
+		add(endpoints, "cohort-age", random -> {
+			int min = 18 + random.nextInt(30);
+			return get(logicUrl + "/answer-logic/users/age/between/" + min + "/" + (min + 5 + random.nextInt(30)), timeout);
+		});
+		add(endpoints, "cohort-bmi", random -> {
+			int min = 16 + random.nextInt(14);
+			return get(logicUrl + "/answer-logic/users/bmi/between/" + min + "/" + (min + 2 + random.nextInt(8)), timeout);
+		});
+		if (!choices.isEmpty()) {
+			add(endpoints, "cohort-answer", random -> {
+				LoadTestDatabase.SampledAnswer sampled = pick(choices, random);
+				return get(logicUrl + "/answer-logic/users/questions/" + sampled.questionId + "/answers/"
+						   + encode(sampled.answer) + "?minAnswerDate=" + MIN_ANSWER_DATE, timeout);
+			});
+			add(endpoints, "cohort-select", random -> {
+				LoadTestDatabase.SampledAnswer sampled = pick(choices, random);
+				String body = "{\"op\": \"and\", \"args\": ["
+							  + "{\"op\": \"age\", \"min\": 18, \"max\": 65},"
+							  + "{\"op\": \"answer\", \"questionId\": " + sampled.questionId + ", \"answers\": [\""
+							  + sampled.answer.replace("\\", "\\\\").replace("\"", "\\\"") + "\"]},"
+							  + "{\"op\": \"not\", \"args\": [{\"op\": \"bmi\", \"min\": 30}]}]}";
+				return HttpRequest.newBuilder(URI.create(logicUrl + "/answer-logic/users/select"))
+						.timeout(timeout)
+						.header("Content-Type", "application/json")
+						.POST(HttpRequest.BodyPublishers.ofString(body))
+						.build();
+			});
+		}
+		if (!numbers.isEmpty()) {
+			add(endpoints, "cohort-value", random -> {
+				LoadTestDatabase.SampledAnswer sampled = pick(numbers, random);
+				return get(logicUrl + "/answer-logic/users/questions/" + sampled.questionId + "/min/" + sampled.answer
+						   + "?minAnswerDate=" + MIN_ANSWER_DATE, timeout);
+			});
+		}
+		return endpoints;
+	}
+
+	private static void add(Map<String, LoadGenerator.Endpoint> endpoints, String name, Function<Random, HttpRequest> request) {
+		endpoints.put(name, new LoadGenerator.Endpoint(name, 0, request));
+	}
+
+	private static HttpRequest get(String url, Duration timeout) {
+		return HttpRequest.newBuilder(URI.create(url)).timeout(timeout).header("Accept", "application/json").GET().build();
+	}
+
+	private static <T> T pick(List<T> list, Random random) {
+		return list.get(random.nextInt(list.size()));
+	}
+
+	private static String encode(String pathSegment) {
+		return URLEncoder.encode(pathSegment, StandardCharsets.UTF_8).replace("+", "%20");
+	}
+
+	private static List<LoadGenerator.Endpoint> parseMix(String mix, Map<String, LoadGenerator.Endpoint> endpoints) {
+		List<LoadGenerator.Endpoint> weighted = new ArrayList<LoadGenerator.Endpoint>();
+		for (String entry : mix.split(",")) {
+			String[] nameWeight = entry.trim().split(":");
+			LoadGenerator.Endpoint endpoint = endpoints.get(nameWeight[0]);
+			if (endpoint == null) {
+				throw new IllegalArgumentException("Unknown endpoint '" + nameWeight[0] + "' in --mix, expected one of " + endpoints.keySet()
+												   + " (cohort-answer, cohort-select and cohort-value need answers to questions after 3)");
+			}
+			double weight = nameWeight.length > 1 ? Double.parseDouble(nameWeight[1]) : 1;
+			if (weight > 0) {
+				weighted.add(endpoint.withWeight(weight));
+			}
+		}
+		if (weighted.isEmpty()) {
+			throw new IllegalArgumentException("--mix has no endpoint with a positive weight");
+		}
+		return weighted;
+	}
+
+	private static void report(Map<String, LoadGenerator.EndpointResult> latencies, Map<String, RunResources> runResources,
+							   List<ServiceProcess> services) {
+		System.out.println();
+		System.out.printf("%-18s %9s %7s %8s %9s %9s %9s %9s %9s%n",
+						  "endpoint", "requests", "errors", "dropped", "req/s", "p50 ms", "p99 ms", "p99.9 ms", "max ms");
+		for (LoadGenerator.EndpointResult result : latencies.values()) {
+			System.out.printf("%-18s %9d %7d %8d %9.1f %9.1f %9.1f %9.1f %9.1f%n",
+							  result.name, result.getCount(), result.errors.get(), result.dropped.get(), result.getThroughput(),
+							  result.percentileMillis(0.50), result.percentileMillis(0.99), result.percentileMillis(0.999),
+							  result.percentileMillis(1.0));
+		}
+
+		System.out.println();
+		StringBuilder header = new StringBuilder(String.format("%-18s", "run"));
+		for (ServiceProcess service : services) {
+			header.append(String.format(" %20s %10s %10s", service.getName() + " heap MB", "GCs", "GC ms"));
+		}
+		header.append(String.format(" %10s %10s", "DB ms", "DB calls"));
+		System.out.println(header);
+		runResources.forEach((run, measured) -> {
+			StringBuilder row = new StringBuilder(String.format("%-18s", run));
+			for (long[] service : measured.services) {
+				row.append(String.format(" %20.0f %10d %10d", service[0] / 1048576.0, service[1], service[2]));
+			}
+			row.append(measured.db == null ? String.format(" %10s %10s", "n/a", "n/a")
+										   : String.format(" %10.0f %10.0f", measured.db[0], measured.db[1]));
+			System.out.println(row);
+		});
+		System.out.println();
+		System.out.println("Latencies are measured from when each request was due. Heap is the peak used heap sampled every "
+						   + "500 ms; DB time is the execution time summed over pg_stat_statements.");
+	}
+
+	/*
+	 * The resources used by the services and the database from construction until finish(): for each service,
+	 * {peak used heap bytes, collections, collection milliseconds}, and {statement milliseconds, calls} for the
+	 * database, null if these are unavailable.
+	 */
+	private static final class RunResources {
+		private final List<ServiceProcess> processes;
+		private final LoadTestDatabase database;
+		private final long[][] before;
+		private final long[] peakHeap;
+		private final ScheduledExecutorService sampler = Executors.newSingleThreadScheduledExecutor();
+
+		long[][] services;
+		double[] db;
+
+		RunResources(List<ServiceProcess> processes, LoadTestDatabase database) {
+			this.processes = processes;
+			this.database = database;
+			this.before = new long[processes.size()][];
+			this.peakHeap = new long[processes.size()];
+			database.resetStatementStats();
+			for (int i = 0; i < processes.size(); i++) {
+				before[i] = processes.get(i).sample();
+				peakHeap[i] = before[i][0];
+			}
+			sampler.scheduleAtFixedRate(this::samplePeakHeap, 500, 500, TimeUnit.MILLISECONDS);
+		}
+
+		private synchronized void samplePeakHeap() {
+			for (int i = 0; i < processes.size(); i++) {
+				peakHeap[i] = Math.max(peakHeap[i], processes.get(i).sample()[0]);
+			}
+		}
+
+		RunResources finish() throws InterruptedException {
+			sampler.shutdown();
+			sampler.awaitTermination(5, TimeUnit.SECONDS);
+			samplePeakHeap();
+			services = new long[processes.size()][];
+			for (int i = 0; i < processes.size(); i++) {
+				long[] after = processes.get(i).sample();
+				services[i] = new long[] { peakHeap[i], after[1] - before[i][1], after[2] - before[i][2] };
+			}
+			db = database.readStatementStats();
+			return this;
+		}
+	}
+}
@@ -0,0 +1,172 @@
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Function;
+
+/*
+ * LoadGenerator replays a weighted mix of requests at a fixed rate, open loop: request i is due at start + i / rate
+ * whether or not earlier ones have been answered, and its latency is measured from when it was due rather than from
+ * when it was sent. A slow service therefore shows up in the latencies of every request queued behind it, as it
+ * would for real clients, instead of slowing the generator down with it (coordinated omission).
+ *
+ * At most maxInFlight requests are outstanding; requests due beyond that are not sent and are counted as dropped.
+ */
+public class LoadGenerator {
+
+	private final HttpClient client;
+	private final int maxInFlight;
+	private final Duration timeout;
+
+	public LoadGenerator(HttpClient client, int maxInFlight, Duration timeout) {
+		this.client = client;
+		this.maxInFlight = maxInFlight;
+		this.timeout = timeout;
+	}
+
+	/*
+	 * Sends requests from the mix at rate per second for duration, waits for the outstanding ones, and returns the
+	 * results by endpoint name, in the order of the mix.
+	 */
+	public Map<String, EndpointResult> run(List<Endpoint> mix, double rate, Duration duration) throws InterruptedException {
+		double totalWeight = 0;
+		Map<String, EndpointResult> results = new LinkedHashMap<String, EndpointResult>();
+		for (Endpoint endpoint : mix) {
+			totalWeight += endpoint.weight;
+			results.put(endpoint.name, new EndpointResult(endpoint.name));
+		}
+
+		Random random = new Random(11);
+		Semaphore inFlight = new Semaphore(maxInFlight);
+		long intervalNanos = (long) (TimeUnit.SECONDS.toNanos(1) / rate);
+		long start = System.nanoTime();
+		long end = start + duration.toNanos();
+		for (long i = 0; ; i++) {
+			long due = start + i * intervalNanos;
+			if (due >= end) {
+				break;
+			}
+			for (long wait = due - System.nanoTime(); wait > 0; wait = due - System.nanoTime()) {
+				LockSupport.parkNanos(wait);
+			}
+
+			Endpoint endpoint = pick(mix, totalWeight, random.nextDouble());
+			EndpointResult result = results.get(endpoint.name);
+			if (!inFlight.tryAcquire()) {
+				result.dropped.incrementAndGet();
+				continue;
+			}
+			HttpRequest request = endpoint.request.apply(random);
+			client.sendAsync(request, HttpResponse.BodyHandlers.discarding())
+				  .whenComplete((response, e) -> {
+					  long latency = System.nanoTime() - due;
+					  inFlight.release();
+					  if (e != null || response.statusCode() >= 400) {
+						  result.errors.incrementAndGet();
+					  }
+					  else {
+						  result.record(latency);
+					  }
+				  });
+		}
+
+		//Outstanding requests time out after timeout at the latest
+		if (!inFlight.tryAcquire(maxInFlight, timeout.toMillis() + 1000, TimeUnit.MILLISECONDS)) {
+			System.err.println("Some requests were still outstanding " + timeout + " after the end of the run");
+		}
+		double seconds = (System.nanoTime() - start) / 1e9;
+		results.values().forEach(result -> result.seconds = seconds);
+		return results;
+	}
+
+	private static Endpoint pick(List<Endpoint> mix, double totalWeight, double point) {
+		double threshold = point * totalWeight;
+		for (Endpoint endpoint : mix) {
+			threshold -= endpoint.weight;
+			if (threshold < 0) {
+				return endpoint;
+			}
+		}
+		return mix.get(mix.size() - 1);
+	}
+
+	/*
+	 * A named request, built afresh for each call from the generator's Random, and its share of the mix.
+	 */
+	public static final class Endpoint {
+		final String name;
+		final double weight;
+		final Function<Random, HttpRequest> request;
+
+		public Endpoint(String name, double weight, Function<Random, HttpRequest> request) {
+			this.name = name;
+			this.weight = weight;
+			this.request = request;
+		}
+
+		public Endpoint withWeight(double weight) {
+			return new Endpoint(name, weight, request);
+		}
+	}
+
+	/*
+	 * The latencies of an endpoint's successful requests, and the count of its failed and dropped ones.
+	 */
+	public static final class EndpointResult {
+		final String name;
+		final AtomicLong errors = new AtomicLong();
+		final AtomicLong dropped = new AtomicLong();
+		private long[] latencies = new long[1024];
+		private int count;
+		private boolean sorted;
+		double seconds;
+
+		EndpointResult(String name) {
+			this.name = name;
+		}
+
+		synchronized void record(long latencyNanos) {
+			if (count == latencies.length) {
+				latencies = Arrays.copyOf(latencies, count * 2);
+			}
+			latencies[count++] = latencyNanos;
+			sorted = false;
+		}
+
+		public synchronized int getCount() {
+			return count;
+		}
+
+		/*
+		 * Successful requests per second over the whole run.
+		 */
+		public synchronized double getThroughput() {
+			return seconds > 0 ? count / seconds : 0;
+		}
+
+		/*
+		 * Returns the latency, in milliseconds, that a share p of the successful requests did not exceed, or NaN if
+		 * there were none.
+		 */
+		public synchronized double percentileMillis(double p) {
+			if (count == 0) {
+				return Double.NaN;
+			}
+			if (!sorted) {
+				Arrays.sort(latencies, 0, count);
+				sorted = true;
+			}
+			int index = Math.min(count - 1, Math.max(0, (int) Math.ceil(p * count) - 1));
+			return latencies[index] / 1e6;
+		}
+	}
+}
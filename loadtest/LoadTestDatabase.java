@@ -0,0 +1,259 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.postgresql.copy.CopyIn;
+import org.postgresql.copy.CopyManager;
+import org.postgresql.core.BaseConnection;
+
+import io.zonky.test.db.postgres.embedded.EmbeddedPostgres;
+
+/*
+ * LoadTestDatabase provides the Postgres database DataSvc runs against during a load test: an embedded one started
+ * for the run, or an existing one given by JDBC URL. The ANSWER table is Postgres-only (see DataSvc/sql, which uses
+ * plpgsql triggers and ON CONFLICT), so H2 cannot stand in for it.
+ *
+ * seed() creates ANSWER, fills it with COPY and then runs the scripts in DataSvc/sql, so that LATEST_ANSWER,
+ * ANSWER_CHANGE and the keyset indexes are set up as in production. The synthetic answers are shaped like the real
+ * ones, so that the cohort endpoints have something to select on:
+ * 		question 1		birth dates
+ * 		question 2		heights in "[n]ft [m]in" format, 5% of them malformed
+ * 		question 3		weights in pounds
+ * 		questions 4..	alternately a choice among a few answers and a numeric value from 0 to 10
+ * Every user answers every question versions times, a month apart, so the table holds users * questions * versions
+ * rows of which LATEST_ANSWER keeps users * questions.
+ *
+ * Database time is read from pg_stat_statements where the extension is available. The embedded database is started
+ * with it preloaded if its binaries include it; on an existing database it must already be in
+ * shared_preload_libraries. Without it database time is reported as unavailable.
+ */
+public class LoadTestDatabase implements Closeable {
+
+	static final long FIRST_USER_ID = 100_000L;
+
+	private static final String[] CHOICES = { "Good", "Fair", "Poor", "Excellent", "Yes", "No" };
+	private static final String[] MALFORMED_HEIGHTS = { "5.9", "5ft 10.5in", "178cm", "5ft ten in" };
+	private static final String[] SCRIPTS = { "answer_keyset.sql", "latest_answer.sql", "answer_change.sql" };
+	private static final int COPY_BUFFER = 1 << 20;
+
+	private final EmbeddedPostgres embedded;
+	private final String jdbcUrl;
+	private final String user;
+	private final String password;
+	private boolean statementStats;
+
+	private LoadTestDatabase(EmbeddedPostgres embedded, String jdbcUrl, String user, String password) {
+		this.embedded = embedded;
+		this.jdbcUrl = jdbcUrl;
+		this.user = user;
+		this.password = password;
+	}
+
+	/*
+	 * Starts an embedded Postgres, with pg_stat_statements preloaded if its binaries have it.
+	 */
+	public static LoadTestDatabase startEmbedded() throws IOException {
+		EmbeddedPostgres embedded;
+		try {
+			embedded = EmbeddedPostgres.builder()
+					.setServerConfig("shared_preload_libraries", "pg_stat_statements")
+					.start();
+		}
+		catch (IOException | RuntimeException e) {
+			System.err.println("Embedded Postgres cannot preload pg_stat_statements, database time will be unavailable: " + e);
+			embedded = EmbeddedPostgres.builder().start();
+		}
+		return new LoadTestDatabase(embedded, embedded.getJdbcUrl("postgres", "postgres"), "postgres", "postgres");
+	}
+
+	public static LoadTestDatabase existing(String jdbcUrl, String user, String password) {
+		return new LoadTestDatabase(null, jdbcUrl, user, password);
+	}
+
+	public String getJdbcUrl() {
+		return jdbcUrl;
+	}
+
+	public String getUser() {
+		return user;
+	}
+
+	public String getPassword() {
+		return password;
+	}
+
+	public Connection connect() throws SQLException {
+		return DriverManager.getConnection(jdbcUrl, user, password);
+	}
+
+	/*
+	 * Replaces ANSWER with users * questions * versions synthetic rows and runs the scripts of sqlDir against it.
+	 */
+	public void seed(int users, int questions, int versions, Path sqlDir) throws SQLException, IOException {
+		if (questions < 3) {
+			throw new IllegalArgumentException("questions must include the birth date, height and weight questions 1 to 3");
+		}
+		try (Connection conn = connect(); Statement stmt = conn.createStatement()) {
+			stmt.execute("DROP TABLE IF EXISTS public.\"LATEST_ANSWER\", public.\"ANSWER_CHANGE\", public.\"ANSWER\" CASCADE");
+			stmt.execute("CREATE TABLE public.\"ANSWER\" (id bigserial PRIMARY KEY, \"userId\" bigint NOT NULL, "
+						 + "\"questionId\" bigint NOT NULL, answer text, answerdate timestamp, kit_id text, "
+						 + "test_id bigint, questionnaire_id bigint)");
+
+			//Rows are loaded before the scripts add their triggers and indexes, which is far faster than the other
+			//way around; latest_answer.sql fills LATEST_ANSWER from them
+			copyAnswers(conn, users, questions, versions);
+			stmt.execute("SELECT setval(pg_get_serial_sequence('public.\"ANSWER\"', 'id'), max(id)) FROM public.\"ANSWER\"");
+
+			for (String script : SCRIPTS) {
+				stmt.execute(new String(Files.readAllBytes(sqlDir.resolve(script)), StandardCharsets.UTF_8));
+			}
+			stmt.execute("ANALYZE");
+		}
+	}
+
+	private static void copyAnswers(Connection conn, int users, int questions, int versions) throws SQLException {
+		CopyManager copyManager = new CopyManager(conn.unwrap(BaseConnection.class));
+		CopyIn copy = copyManager.copyIn("COPY public.\"ANSWER\" (id, \"userId\", \"questionId\", answer, answerdate, "
+										 + "kit_id, test_id, questionnaire_id) FROM STDIN WITH (FORMAT csv)");
+		try {
+			Random random = new Random(42);
+			LocalDateTime firstAnswerDate = LocalDateTime.of(2018, 1, 1, 0, 0);
+			StringBuilder rows = new StringBuilder(COPY_BUFFER + 1024);
+			long id = 0;
+			for (int i = 0; i < users; i++) {
+				long userId = FIRST_USER_ID + i;
+				for (long qId = 1; qId <= questions; qId++) {
+					for (int v = 0; v < versions; v++) {
+						LocalDateTime answerDate = firstAnswerDate.plusDays(30L * v + random.nextInt(30)).plusSeconds(random.nextInt(86_400));
+						rows.append(++id).append(',').append(userId).append(',').append(qId).append(",\"")
+							.append(answer(random, qId)).append("\",").append(answerDate).append(",kit")
+							.append(userId).append(",1,1\n");
+					}
+				}
+				if (rows.length() >= COPY_BUFFER) {
+					write(copy, rows);
+				}
+			}
+			write(copy, rows);
+			copy.endCopy();
+		}
+		finally {
+			if (copy.isActive()) {
+				copy.cancelCopy();
+			}
+		}
+	}
+
+	private static void write(CopyIn copy, StringBuilder rows) throws SQLException {
+		byte[] bytes = rows.toString().getBytes(StandardCharsets.UTF_8);
+		copy.writeToCopy(bytes, 0, bytes.length);
+		rows.setLength(0);
+	}
+
+	private static String answer(Random random, long qId) {
+		if (qId == 1) {
+			return LocalDate.of(1930, 1, 1).plusDays(random.nextInt(75 * 365)).toString();
+		}
+		if (qId == 2) {
+			if (random.nextInt(20) == 0) {
+				return MALFORMED_HEIGHTS[random.nextInt(MALFORMED_HEIGHTS.length)];
+			}
+			return (4 + random.nextInt(3)) + "ft " + random.nextInt(12) + "in";
+		}
+		if (qId == 3) {
+			return Integer.toString(90 + random.nextInt(210));
+		}
+		return qId % 2 == 0 ? CHOICES[random.nextInt(CHOICES.length)] : Integer.toString(random.nextInt(11));
+	}
+
+	/*
+	 * Returns a random sample of the most recent answers, from which the load test draws the userIds, questionIds and
+	 * answers of its requests.
+	 */
+	public List<SampledAnswer> sampleLatestAnswers(int size) throws SQLException {
+		List<SampledAnswer> sample = new ArrayList<SampledAnswer>(size);
+		try (Connection conn = connect(); Statement stmt = conn.createStatement();
+			 ResultSet rs = stmt.executeQuery("SELECT \"userId\", \"questionId\", answer FROM public.\"LATEST_ANSWER\" "
+					 						  + "WHERE answer IS NOT NULL ORDER BY random() LIMIT " + size)) {
+			while (rs.next()) {
+				sample.add(new SampledAnswer(rs.getLong(1), rs.getLong(2), rs.getString(3)));
+			}
+		}
+		if (sample.isEmpty()) {
+			throw new IllegalStateException("LATEST_ANSWER is empty, nothing to load test with");
+		}
+		return sample;
+	}
+
+	/*
+	 * Clears pg_stat_statements and returns true if it is available.
+	 */
+	public boolean resetStatementStats() {
+		try (Connection conn = connect(); Statement stmt = conn.createStatement()) {
+			stmt.execute("CREATE EXTENSION IF NOT EXISTS pg_stat_statements");
+			stmt.execute("SELECT pg_stat_statements_reset()");
+			statementStats = true;
+		}
+		catch (SQLException e) {
+			statementStats = false;
+		}
+		return statementStats;
+	}
+
+	/*
+	 * Returns {total execution milliseconds, calls} of the statements run since resetStatementStats(), or null if
+	 * pg_stat_statements is not available.
+	 */
+	public double[] readStatementStats() {
+		if (!statementStats) {
+			return null;
+		}
+		//The column was renamed in Postgres 13
+		for (String column : new String[] { "total_exec_time", "total_time" }) {
+			try (Connection conn = connect(); Statement stmt = conn.createStatement();
+				 ResultSet rs = stmt.executeQuery("SELECT coalesce(sum(" + column + "), 0), coalesce(sum(calls), 0) "
+				 								  + "FROM pg_stat_statements WHERE query NOT LIKE '%pg_stat_statements%'")) {
+				rs.next();
+				return new double[] { rs.getDouble(1), rs.getDouble(2) };
+			}
+			catch (SQLException e) {
+				//Try the other name
+			}
+		}
+		return null;
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (embedded != null) {
+			embedded.close();
+		}
+	}
+
+	/*
+	 * One most recent answer, as sampled by sampleLatestAnswers().
+	 */
+	public static final class SampledAnswer {
+		final long userId;
+		final long questionId;
+		final String answer;
+
+		SampledAnswer(long userId, long questionId, String answer) {
+			this.userId = userId;
+			this.questionId = questionId;
+			this.answer = answer;
+		}
+	}
+}
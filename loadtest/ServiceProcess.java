@@ -0,0 +1,151 @@
+import java.io.IOException;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.net.ServerSocket;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import javax.management.MBeanServerConnection;
+import javax.management.remote.JMXConnector;
+import javax.management.remote.JMXConnectorFactory;
+import javax.management.remote.JMXServiceURL;
+
+/*
+ * ServiceProcess runs one of the services from its jar in a JVM of its own, as it runs in production: DataSvc and
+ * DataLogicSvc have classes of the same names in the default package, so they could not share one JVM anyway.
+ *
+ * Each service gets a free HTTP port and a free JMX port, over which the load test samples its heap and its
+ * collectors. Spring properties are passed as --name=value arguments, and the service's output goes to a log file.
+ */
+public class ServiceProcess implements AutoCloseable {
+
+	private final String name;
+	private final Path jar;
+	private final List<String> jvmArgs;
+	private final Map<String, String> properties;
+	private final Path log;
+	private final int port;
+	private final int jmxPort;
+
+	private Process process;
+	private JMXConnector jmx;
+	private MemoryMXBean memory;
+	private List<GarbageCollectorMXBean> collectors;
+
+	public ServiceProcess(String name, Path jar, List<String> jvmArgs, Map<String, String> properties, Path log) throws IOException {
+		this.name = name;
+		this.jar = jar;
+		this.jvmArgs = jvmArgs;
+		this.properties = properties;
+		this.log = log;
+		this.port = freePort();
+		this.jmxPort = freePort();
+	}
+
+	private static int freePort() throws IOException {
+		try (ServerSocket socket = new ServerSocket(0)) {
+			return socket.getLocalPort();
+		}
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public String getBaseUrl() {
+		return "http://127.0.0.1:" + port;
+	}
+
+	public void start() throws IOException {
+		List<String> command = new ArrayList<String>();
+		command.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+		command.addAll(jvmArgs);
+		command.add("-Dcom.sun.management.jmxremote.port=" + jmxPort);
+		command.add("-Dcom.sun.management.jmxremote.rmi.port=" + jmxPort);
+		command.add("-Dcom.sun.management.jmxremote.authenticate=false");
+		command.add("-Dcom.sun.management.jmxremote.ssl=false");
+		command.add("-Djava.rmi.server.hostname=127.0.0.1");
+		command.add("-jar");
+		command.add(jar.toString());
+		command.add("--server.port=" + port);
+		properties.forEach((property, value) -> command.add("--" + property + "=" + value));
+
+		process = new ProcessBuilder(command)
+				.redirectErrorStream(true)
+				.redirectOutput(log.toFile())
+				.start();
+	}
+
+	/*
+	 * Waits until a GET of path answers with a 2xx status, then connects to the service's JMX port.
+	 */
+	public void awaitReady(HttpClient client, String path, Duration timeout) throws IOException, InterruptedException {
+		long deadline = System.nanoTime() + timeout.toNanos();
+		HttpRequest request = HttpRequest.newBuilder(URI.create(getBaseUrl() + path)).timeout(timeout).GET().build();
+		while (true) {
+			if (!process.isAlive()) {
+				throw new IOException(name + " exited with status " + process.exitValue() + ", see " + log);
+			}
+			try {
+				int status = client.send(request, HttpResponse.BodyHandlers.discarding()).statusCode();
+				if (status >= 200 && status < 300) {
+					break;
+				}
+			}
+			catch (IOException e) {
+				//Not listening yet
+			}
+			if (System.nanoTime() > deadline) {
+				throw new IOException(name + " was not ready within " + timeout + ", see " + log);
+			}
+			Thread.sleep(1000);
+		}
+
+		jmx = JMXConnectorFactory.connect(new JMXServiceURL("service:jmx:rmi:///jndi/rmi://127.0.0.1:" + jmxPort + "/jmxrmi"));
+		MBeanServerConnection connection = jmx.getMBeanServerConnection();
+		memory = ManagementFactory.newPlatformMXBeanProxy(connection, ManagementFactory.MEMORY_MXBEAN_NAME, MemoryMXBean.class);
+		collectors = ManagementFactory.getPlatformMXBeans(connection, GarbageCollectorMXBean.class);
+	}
+
+	/*
+	 * Returns {used heap bytes, collections, collection milliseconds}, the last two summed over all collectors.
+	 */
+	public long[] sample() {
+		long gcCount = 0;
+		long gcTime = 0;
+		for (GarbageCollectorMXBean collector : collectors) {
+			gcCount += Math.max(0, collector.getCollectionCount());
+			gcTime += Math.max(0, collector.getCollectionTime());
+		}
+		return new long[] { memory.getHeapMemoryUsage().getUsed(), gcCount, gcTime };
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (jmx != null) {
+			jmx.close();
+		}
+		if (process != null && process.isAlive()) {
+			process.destroy();
+			try {
+				if (!process.waitFor(30, TimeUnit.SECONDS)) {
+					process.destroyForcibly();
+				}
+			}
+			catch (InterruptedException e) {
+				process.destroyForcibly();
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+}